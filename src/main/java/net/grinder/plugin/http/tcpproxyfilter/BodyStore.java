@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.grinder.common.Closer;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Content addressed store of the recorded bodies which are too large to keep in the recording.
+ *
+ * <p>
+ * Each body is written to a temporary file of the store directory while its SHA-1 digest is
+ * computed. Once it is complete, it is renamed to {@code <digest>.dat}, unless a body with the
+ * same content is already stored, in which case it is deleted and the stored file is used. So a
+ * payload which is sent many times is kept once, across the recordings.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class BodyStore {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File m_directory;
+
+	private final AtomicLong m_stored = new AtomicLong();
+	private final AtomicLong m_duplicates = new AtomicLong();
+	private final AtomicLong m_storedBytes = new AtomicLong();
+	private final AtomicLong m_duplicateBytes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *            directory of the stored bodies. It is created when the first body is stored.
+	 */
+	public BodyStore(File directory) {
+		m_directory = directory;
+	}
+
+	/**
+	 * Get the directory of the stored bodies.
+	 *
+	 * @return directory
+	 */
+	public File getDirectory() {
+		return m_directory;
+	}
+
+	/**
+	 * Start storing a body.
+	 *
+	 * @return stream which the body is written to
+	 * @throws IOException
+	 *             if the temporary file can not be created
+	 */
+	public Entry newEntry() throws IOException {
+		FileUtils.forceMkdir(m_directory);
+		return new Entry(File.createTempFile("body", ".tmp", m_directory));
+	}
+
+	/**
+	 * Get a new file name in the directory of the store, for a body which is written outside the
+	 * store. The file is not created.
+	 *
+	 * @return file which does not exist yet
+	 */
+	public File newFileName() {
+		return new File(m_directory, "body-" + UUID.randomUUID() + ".dat");
+	}
+
+	private synchronized File commit(File tempFile, String digest, long size) throws IOException {
+		final File file = new File(m_directory, digest + ".dat");
+
+		if (file.exists()) {
+			FileUtils.deleteQuietly(tempFile);
+			m_duplicates.incrementAndGet();
+			m_duplicateBytes.addAndGet(size);
+		} else {
+			FileUtils.moveFile(tempFile, file);
+			m_stored.incrementAndGet();
+			m_storedBytes.addAndGet(size);
+		}
+
+		return file;
+	}
+
+	/**
+	 * Get the number of the bodies which were written to the store.
+	 *
+	 * @return stored body count
+	 */
+	public long getStoredCount() {
+		return m_stored.get();
+	}
+
+	/**
+	 * Get the number of the bodies which were already in the store.
+	 *
+	 * @return duplicate body count
+	 */
+	public long getDuplicateCount() {
+		return m_duplicates.get();
+	}
+
+	@Override
+	public String toString() {
+		final long bytes = m_storedBytes.get() + m_duplicateBytes.get();
+
+		return String.format("Body store %s: stored=%d, duplicates=%d, deduplicated bytes=%d/%d (%d%%)",
+						m_directory, m_stored.get(), m_duplicates.get(), m_duplicateBytes.get(), bytes,
+						bytes == 0 ? 0 : m_duplicateBytes.get() * 100 / bytes);
+	}
+
+	/**
+	 * Body being stored. It must be either committed or aborted.
+	 */
+	public final class Entry extends OutputStream {
+		private final File m_tempFile;
+		private final OutputStream m_outputStream;
+		private final MessageDigest m_digest;
+		private long m_size;
+
+		private Entry(File tempFile) throws IOException {
+			m_tempFile = tempFile;
+			m_outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+
+			try {
+				m_digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			m_outputStream.write(b);
+			m_digest.update((byte) b);
+			++m_size;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			m_outputStream.write(bytes, offset, length);
+			m_digest.update(bytes, offset, length);
+			m_size += length;
+		}
+
+		/**
+		 * Finish the body.
+		 *
+		 * @return file of the body in the store
+		 * @throws IOException
+		 *             if the body can not be stored. The entry is aborted.
+		 */
+		public File commit() throws IOException {
+			try {
+				m_outputStream.close();
+				return BodyStore.this.commit(m_tempFile, toHex(m_digest.digest()), m_size);
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Discard the body.
+		 */
+		public void abort() {
+			Closer.close(m_outputStream);
+			FileUtils.deleteQuietly(m_tempFile);
+		}
+
+		/**
+		 * Same as {@link #abort()}, so that a stream which is closed without a commit leaves
+		 * nothing behind.
+		 */
+		@Override
+		public void close() {
+			abort();
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		final char[] result = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; ++i) {
+			result[i * 2] = HEX_DIGITS[bytes[i] >> 4 & 0x0f];
+			result[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+		}
+
+		return new String(result);
+	}
+}
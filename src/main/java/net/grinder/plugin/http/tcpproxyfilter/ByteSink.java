@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+/**
+ * Stage which the bytes of a recorded body pass through as they arrive.
+ *
+ * @since 1.0
+ */
+interface ByteSink {
+
+	/**
+	 * Take the next bytes of the body.
+	 *
+	 * @param bytes
+	 *            buffer. It is reused once the method returns.
+	 * @param offset
+	 *            offset of the first byte
+	 * @param length
+	 *            number of the bytes
+	 */
+	void write(byte[] bytes, int offset, int length);
+
+	/**
+	 * Called after the last byte of the body. The sink releases its resources.
+	 */
+	void end();
+}
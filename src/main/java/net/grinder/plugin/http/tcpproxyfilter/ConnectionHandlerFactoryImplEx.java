@@ -27,20 +27,27 @@ import net.grinder.util.http.URIParser;
  * @since 1.0
  */
 public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFactory {
+
+	/**
+	 * Default size of the largest request body kept in memory. It is the size above which even a
+	 * form is recorded as a data file.
+	 */
+	public static final int DEFAULT_BODY_MEMORY_LIMIT = 0x40000;
+
 	private final HTTPRecordingEx m_httpRecording;
-	private final RegularExpressions m_regularExpressions;
 	private final URIParser m_uriParser;
 	private final AttributeStringParser m_attributeStringParser;
+	private volatile TokenExtractor m_tokenExtractor;
 	private final StringEscaper m_postBodyStringEscaper;
 	private final FileTypeFilter m_fileTypeFilter;
+	private final ExchangeStatistics m_exchangeStatistics = new ExchangeStatistics();
+	private volatile int m_bodyMemoryLimit = DEFAULT_BODY_MEMORY_LIMIT;
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param httpRecording
 	 *            Common recording state.
-	 * @param regularExpressions
-	 *            Compiled regular expressions.
 	 * @param uriParser
 	 *            A URI parser.
 	 * @param attributeStringParser
@@ -50,13 +57,14 @@ public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFa
 	 * @param fileTypeFilter
 	 *            fileTypeFilter
 	 */
-	public ConnectionHandlerFactoryImplEx(HTTPRecordingEx httpRecording, RegularExpressions regularExpressions,
-					URIParser uriParser, AttributeStringParser attributeStringParser,
-					StringEscaper postBodyStringEscaper, FileTypeFilter fileTypeFilter) {
+	public ConnectionHandlerFactoryImplEx(HTTPRecordingEx httpRecording, URIParser uriParser,
+					AttributeStringParser attributeStringParser, StringEscaper postBodyStringEscaper,
+					FileTypeFilter fileTypeFilter) {
 		m_httpRecording = httpRecording;
-		m_regularExpressions = regularExpressions;
 		m_uriParser = uriParser;
 		m_attributeStringParser = attributeStringParser;
+		m_tokenExtractor = new TokenExtractor(attributeStringParser, new String[0],
+						TokenExtractor.DEFAULT_MAX_VALUE_LENGTH);
 		m_postBodyStringEscaper = postBodyStringEscaper;
 		m_fileTypeFilter = fileTypeFilter;
 	}
@@ -69,7 +77,39 @@ public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFa
 	 * @return A new ConnectionHandler.
 	 */
 	public ConnectionHandler create(ConnectionDetails connectionDetails) {
-		return new ConnectionHandlerImplEx(m_httpRecording, m_regularExpressions, m_uriParser, m_attributeStringParser,
-						m_postBodyStringEscaper, connectionDetails, m_fileTypeFilter);
+		return new ConnectionHandlerImplEx(m_httpRecording, m_tokenExtractor, m_uriParser, m_postBodyStringEscaper,
+						connectionDetails, m_fileTypeFilter, m_exchangeStatistics, m_bodyMemoryLimit);
+	}
+
+	/**
+	 * Set the JSON keys whose string values are recorded as tokens, in addition to the hidden
+	 * inputs and the hyperlink parameters. It applies to the connections opened afterwards.
+	 * 
+	 * @param keys
+	 *            key names
+	 */
+	public void setTokenKeys(String[] keys) {
+		m_tokenExtractor = new TokenExtractor(m_attributeStringParser, keys, TokenExtractor.DEFAULT_MAX_VALUE_LENGTH);
+	}
+
+	/**
+	 * Set the size of the largest request body kept in memory. A larger body is written to a data
+	 * file as it arrives, and recorded as such. It applies to the connections opened afterwards.
+	 * 
+	 * @param bodyMemoryLimit
+	 *            size in bytes
+	 */
+	public void setBodyMemoryLimit(int bodyMemoryLimit) {
+		m_bodyMemoryLimit = bodyMemoryLimit;
+	}
+
+	/**
+	 * Get the statistics which count how the responses of all the connections were matched to
+	 * their requests.
+	 * 
+	 * @return statistics
+	 */
+	public ExchangeStatistics getExchangeStatistics() {
+		return m_exchangeStatistics;
 	}
 }
@@ -26,17 +26,15 @@ import static net.grinder.util.CollectionUtils.newHashMap;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
 
 import net.grinder.common.Closer;
 import net.grinder.plugin.http.xml.BasicAuthorizationHeaderType;
@@ -53,7 +51,7 @@ import net.grinder.plugin.http.xml.TokenReferenceType;
 import net.grinder.plugin.http.xml.TokenResponseLocationType;
 import net.grinder.tools.tcpproxy.CommentSource;
 import net.grinder.tools.tcpproxy.ConnectionDetails;
-import net.grinder.util.AttributeStringParser;
+import net.grinder.tools.tcpproxy.HTTPMessageParser;
 import net.grinder.util.NoOp;
 import net.grinder.util.StringEscaper;
 import net.grinder.util.http.URIParser;
@@ -81,55 +79,71 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 					Arrays.asList(new RequestType.Method.Enum[] { RequestType.Method.OPTIONS, RequestType.Method.POST,
 							RequestType.Method.PUT, }));
 
+	private static final int HTTP_SWITCHING_PROTOCOLS = 101;
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHandlerFactoryImplEx.class);
 	private final HTTPRecordingEx m_httpRecording;
 
-	private final RegularExpressions m_regularExpressions;
+	private final TokenExtractor m_tokenExtractor;
 
 	private final URIParser m_uriParser;
-	private final AttributeStringParser m_attributeStringParser;
 	private final StringEscaper m_postBodyStringEscaper;
 	private final CommentSource m_commentSource;
 
 	private final ConnectionDetails m_connectionDetails;
 
-	// Buffer should be at least as large as the HTTPProxyTCPProxyEngineEx buffer.
-	// We've introduced buffers at this level to solve a specific issue
-	// (bug 3484390). Later, we may push this up the API, and perhaps copy
-	// directly from a socket channel into the buffer.
-	private final ByteBuffer m_requestBuffer = ByteBuffer.allocate(40960);
+	// Both streams are parsed incrementally, so each byte is examined once
+	// however the proxy engine splits the stream.
+	private final HTTPMessageParser m_requestParser = new HTTPMessageParser(new RequestListener());
+	private final HTTPMessageParser m_responseParser = new HTTPMessageParser(m_requestParser, new ResponseListener());
 
+	// The request being received.
 	private Request m_request;
 
+	// The requests waiting for their response, in the order they were sent. A
+	// null element stands for a request which is not recorded.
+	private final LinkedList<Request> m_outstandingRequests = new LinkedList<Request>();
+
+	// The request whose response is being received.
+	private Request m_respondedRequest;
+	private boolean m_droppingResponse;
+
+	// Set once a response switched the connection to another protocol, such as
+	// WebSocket. The rest of the request stream is not HTTP.
+	private boolean m_switchedProtocols;
+
 	private final FileTypeFilter m_fileTypeFilter;
+	private final ExchangeStatistics m_exchangeStatistics;
+	private final int m_bodyMemoryLimit;
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param httpRecording
 	 *            httpRecording
-	 * @param regularExpressions
-	 *            regularExpressions
+	 * @param tokenExtractor
+	 *            extractor of the tokens in the response bodies
 	 * @param uriParser
 	 *            uriParser
-	 * @param attributeStringParser
-	 *            attributeStringParser
 	 * @param postBodyStringEscaper
 	 *            postBodyStringEscaper
 	 * @param connectionDetails
 	 *            connectionDetails
 	 * @param fileTypeFilter
 	 *            fileTypeFilter
+	 * @param exchangeStatistics
+	 *            statistics which count how the responses were matched
+	 * @param bodyMemoryLimit
+	 *            size of the largest request body kept in memory. A larger body is written to a
+	 *            data file as it arrives.
 	 */
-	public ConnectionHandlerImplEx(HTTPRecordingEx httpRecording, RegularExpressions regularExpressions,
-					URIParser uriParser, AttributeStringParser attributeStringParser,
-					StringEscaper postBodyStringEscaper, ConnectionDetails connectionDetails,
-					FileTypeFilter fileTypeFilter) {
+	public ConnectionHandlerImplEx(HTTPRecordingEx httpRecording, TokenExtractor tokenExtractor,
+					URIParser uriParser, StringEscaper postBodyStringEscaper, ConnectionDetails connectionDetails,
+					FileTypeFilter fileTypeFilter, ExchangeStatistics exchangeStatistics, int bodyMemoryLimit) {
 
 		m_httpRecording = httpRecording;
-		m_regularExpressions = regularExpressions;
+		m_tokenExtractor = tokenExtractor;
 		m_uriParser = uriParser;
-		m_attributeStringParser = attributeStringParser;
 		m_postBodyStringEscaper = postBodyStringEscaper;
 		m_commentSource = new CommentSource() {
 			@Override
@@ -139,6 +153,8 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		};
 		m_connectionDetails = connectionDetails;
 		m_fileTypeFilter = fileTypeFilter;
+		m_exchangeStatistics = exchangeStatistics;
+		m_bodyMemoryLimit = bodyMemoryLimit;
 	}
 
 	/**
@@ -146,82 +162,106 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 	 */
 	@Override
 	public synchronized void handleRequest(byte[] buffer, int length) {
-
-		try {
-			m_requestBuffer.put(buffer, 0, length);
-		} catch (BufferOverflowException e) {
-			LOGGER.error("Filled buffer without matching request line", e);
-			m_requestBuffer.clear();
-			return;
+		if (!m_switchedProtocols) {
+			m_requestParser.parse(buffer, 0, length);
 		}
+	}
 
-		m_requestBuffer.flip();
+	public synchronized void handleResponse(byte[] buffer, int length) {
+		m_responseParser.parse(buffer, 0, length);
+	}
 
-		// String used to parse headers - header names are US-ASCII encoded and
-		// anchored to start of line. The correct character set to use for URL's
-		// is not well defined by RFC 2616, so we use ISO8859_1. This way we are
-		// at least non-lossy (US-ASCII maps characters above 0x7F to '?').
-		final String asciiString;
-		try {
-			asciiString = new String(m_requestBuffer.array(), 0, m_requestBuffer.remaining(), "ISO8859_1");
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(e);
-		}
+	/**
+	 * Called when a new request message is canceld.
+	 */
+	public synchronized void requestCanceled() {
+		if (m_request != null) {
+			m_request.cancel();
 
-		if (m_request != null && m_request.isComplete()) {
-			requestFinished();
-		}
+			// Its response is still expected, but not recorded.
+			final int index = m_outstandingRequests.lastIndexOf(m_request);
 
-		final Matcher matcher = m_regularExpressions.getRequestLinePattern().matcher(asciiString);
+			if (index >= 0) {
+				m_outstandingRequests.set(index, null);
+			}
 
-		if (matcher.find()) {
-			// Packet is start of new request message.
+			if (m_respondedRequest == m_request) {
+				m_respondedRequest = null;
+			}
 
-			final String method = matcher.group(1);
-			final String relativeURI = matcher.group(2);
+			m_request = null;
+		}
+	}
 
-			if (RequestType.Method.Enum.forString(method) != null) {
-				requestFinished();
+	/**
+	 * Called when the connection is closed. Any incomplete request line is discarded.
+	 */
+	public synchronized void requestFinished() {
+		// Completes a response which is delimited by the end of the connection.
+		m_responseParser.close();
 
-				if (!m_fileTypeFilter.isFiltered(relativeURI)) {
-					m_request = new Request(method, relativeURI, m_commentSource.getComments());
-				}
-			}
+		if (!m_outstandingRequests.isEmpty()) {
+			m_exchangeStatistics.requestsUnanswered(m_outstandingRequests.size());
+			LOGGER.debug("{} requests were not answered on {}", m_outstandingRequests.size(), m_connectionDetails);
 		}
 
-		// Stuff we do whatever.
-
-		if (m_request == null) {
-			// We haven't received enough bytes to match the request line.
-			m_requestBuffer.position(m_requestBuffer.limit()).limit(m_requestBuffer.capacity());
+		for (Request request : m_outstandingRequests) {
+			if (request != null) {
+				request.end();
+			}
+		}
 
-			return;
-		} else if (m_request.getBody() != null) {
-			m_request.getBody().write(m_requestBuffer.array(), 0, m_requestBuffer.remaining());
-			m_requestBuffer.clear();
+		m_outstandingRequests.clear();
+		m_respondedRequest = null;
 
-			return;
+		if (m_request != null) {
+			m_request.end();
+			m_request = null;
 		}
+	}
 
-		// Still parsing headers.
+	/**
+	 * Records the requests as the request parser finds their parts.
+	 */
+	private final class RequestListener implements HTTPMessageParser.Listener {
+
+		@Override
+		public void startLine(String line) {
+			// Packet is start of new request message. The previous request ends
+			// when both it and its response are complete.
+			m_request = newRequest(line);
+			m_outstandingRequests.add(m_request);
+			m_exchangeStatistics.requestSent(m_outstandingRequests.size());
+		}
+
+		private Request newRequest(String line) {
+			// Method SP Request-URI SP HTTP-Version. The correct character set to use
+			// for URL's is not well defined by RFC 2616, so the parser decodes the
+			// line as ISO8859_1. This way we are at least non-lossy.
+			final String requestLine = line.trim();
+			final int methodEnd = indexOfWhiteSpace(requestLine);
+			final int versionStart = lastIndexOfWhiteSpace(requestLine);
+
+			if (methodEnd < 0 || versionStart <= methodEnd || !requestLine.startsWith("HTTP/", versionStart + 1)) {
+				LOGGER.error("Malformed request line {}", requestLine);
+				return null;
+			}
 
-		String headers = asciiString;
-		final int bodyStart;
+			final String method = requestLine.substring(0, methodEnd);
+			final String relativeURI = relativeURI(requestLine.substring(methodEnd + 1, versionStart).trim());
 
-		final Matcher messageBodyMatcher = m_regularExpressions.getMessageBodyPattern().matcher(asciiString);
+			if (RequestType.Method.Enum.forString(method) != null && !m_fileTypeFilter.isFiltered(relativeURI)) {
+				return new Request(method, relativeURI, m_commentSource.getComments());
+			}
 
-		if (messageBodyMatcher.find()) {
-			bodyStart = messageBodyMatcher.start(1);
-			headers = asciiString.substring(0, bodyStart);
-		} else {
-			bodyStart = -1;
+			return null;
 		}
 
-		final Matcher headerMatcher = m_regularExpressions.getHeaderPattern().matcher(headers);
-
-		while (headerMatcher.find()) {
-			final String name = headerMatcher.group(1);
-			final String value = headerMatcher.group(2);
+		@Override
+		public void header(String name, String value) {
+			if (m_request == null) {
+				return;
+			}
 
 			if (m_httpRecording.getParameters().isMirroredHeader(name)) {
 				m_request.addHeader(name, value);
@@ -229,138 +269,215 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 
 			if ("Content-Type".equalsIgnoreCase(name)) {
 				m_request.setContentType(value);
+			} else if ("Content-Length".equalsIgnoreCase(name)) {
+				try {
+					m_request.setContentLength(Integer.parseInt(value));
+				} catch (NumberFormatException e) {
+					LOGGER.error("Invalid Content-Length {} for {}", value, m_request);
+				}
+			} else if ("Authorization".equalsIgnoreCase(name) && value.regionMatches(true, 0, "Basic", 0, 5)
+							&& value.length() > 5 && Character.isWhitespace(value.charAt(5))) {
+				m_request.addBasicAuthorization(value.substring(6).trim());
 			}
+		}
 
-			if ("Content-Length".equalsIgnoreCase(name)) {
-				m_request.setContentLength(Integer.parseInt(value));
+		@Override
+		public void headersComplete() {
+			// Create the body after parsing the headers as we need to know the
+			// content length.
+			if (m_request != null && m_request.expectingBody()) {
+				m_request.new RequestBody();
 			}
 		}
 
-		final Matcher authorizationMatcher = m_regularExpressions.getBasicAuthorizationHeaderPattern().matcher(headers);
+		@Override
+		public void body(byte[] bytes, int offset, int length) {
+			if (m_request == null) {
+				return;
+			}
 
-		if (authorizationMatcher.find()) {
-			m_request.addBasicAuthorization(authorizationMatcher.group(1));
+			if (m_request.getBody() != null) {
+				m_request.getBody().write(bytes, offset, length);
+			} else {
+				LOGGER.warn("Not expecting body, found {} bytes for {}", length, m_request);
+			}
 		}
 
-		// Write out the body after parsing the headers as we need to
-		// know the content length.
-
-		if (bodyStart > -1) {
-			final int bodyLength = m_requestBuffer.remaining() - bodyStart;
+		@Override
+		public void messageComplete() {
+			// If the response has not completed yet, it ends the request. This
+			// allows us to parse the response.
+			if (m_request != null) {
+				m_request.setComplete();
 
-			if (m_request.expectingBody()) {
-				m_request.new RequestBody().write(m_requestBuffer.array(), bodyStart, bodyLength);
-			} else {
-				if (bodyLength != 0) {
-					LOGGER.warn("Not expecting body, found {} bytes for {}", bodyLength, m_request);
+				if (m_request.isResponded()) {
+					m_request.end();
 				}
-
-				m_request.setComplete();
 			}
 		}
-
-		m_requestBuffer.clear();
 	}
 
-	public synchronized void handleResponse(byte[] buffer, int length) {
+	/**
+	 * Records the responses as the response parser finds their parts.
+	 */
+	private final class ResponseListener implements HTTPMessageParser.Listener {
+
+		@Override
+		public void startLine(String line) {
+			// Responses come in the order of their requests. An interim response
+			// leaves the request at the head for the final one.
+			if (m_outstandingRequests.isEmpty()) {
+				m_exchangeStatistics.responseDropped();
+				LOGGER.warn("Response {} without a request on {}", line, m_connectionDetails);
+				m_respondedRequest = null;
+				m_droppingResponse = true;
+				return;
+			}
 
-		if (m_request == null) {
-			// We don't support pipelining.
-			// LOGGER.error("UNEXPECTED - No current request");
-			return;
-		}
+			m_droppingResponse = false;
+
+			// HTTP-Version SP Status-Code SP Reason-Phrase. The parser has checked
+			// the version and the status code.
+			final int status = Integer.parseInt(line.substring(9, 12));
+
+			if (isInterim(status)) {
+				m_respondedRequest = null;
+				return;
+			}
 
-		// See notes in handleRequest about why we use this code page.
-		final String asciiString;
-		try {
-			asciiString = new String(buffer, 0, length, "ISO8859_1");
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(e);
+			m_respondedRequest = m_outstandingRequests.getFirst();
+
+			if (m_respondedRequest != null) {
+				final String reasonPhrase = line.length() > 13 ? line.substring(13).trim() : "";
+				m_respondedRequest.addNewResponse(status, reasonPhrase);
+			}
 		}
 
-		final Matcher matcher = m_regularExpressions.getResponseLinePattern().matcher(asciiString);
+		@Override
+		public void header(String name, String value) {
+			final Response response = getResponse();
 
-		if (matcher.find()) {
-			// Packet is start of new response message.
+			if (response == null) {
+				return;
+			}
 
-			m_httpRecording.markLastResponseTime();
+			if ("Content-Encoding".equalsIgnoreCase(name)) {
+				response.setContentEncoding(value);
+				return;
+			}
 
-			m_request.addNewResponse(Integer.parseInt(matcher.group(1)), matcher.group(2));
-		}
+			if (!"Location".equalsIgnoreCase(name)) {
+				return;
+			}
 
-		final Response response = m_request.getResponse();
+			m_uriParser.parse(value, new URIParser.AbstractParseListener() {
 
-		if (response == null) {
-			LOGGER.error("UNEXPECTED - No current response");
-		} else if (response.getBody() != null) {
-			response.getBody().write(buffer, 0, length);
-		} else {
-			// Still parsing headers.
+				public boolean pathParameterNameValue(String name, String value) {
+					response.addResponseTokenReference(name, value,
+									TokenResponseLocationType.RESPONSE_LOCATION_HEADER_PATH_PARAMETER);
 
-			String headers = asciiString;
-			int bodyStart = -1;
+					return true;
+				}
 
-			if (m_request.expectingResponseBody()) {
-				final Matcher messageBodyMatcher = m_regularExpressions.getMessageBodyPattern().matcher(asciiString);
+				public boolean queryStringNameValue(String name, String value) {
+					response.addResponseTokenReference(name, value,
+									TokenResponseLocationType.RESPONSE_LOCATION_HEADER_QUERY_STRING);
 
-				if (messageBodyMatcher.find()) {
-					bodyStart = messageBodyMatcher.start(1);
-					headers = asciiString.substring(0, bodyStart);
+					return true;
 				}
+			});
+		}
+
+		@Override
+		public void headersComplete() {
+			if (m_responseParser.getStatusCode() == HTTP_SWITCHING_PROTOCOLS) {
+				m_switchedProtocols = true;
 			}
 
-			final Matcher headerMatcher = m_regularExpressions.getHeaderPattern().matcher(headers);
+			final Response response = getResponse();
 
-			while (headerMatcher.find()) {
-				final String name = headerMatcher.group(1);
-				final String value = headerMatcher.group(2);
+			if (response != null && m_respondedRequest.expectingResponseBody()) {
+				response.new ResponseBody();
+			}
+		}
 
-				if ("Location".equals(name)) {
-					m_uriParser.parse(value, new URIParser.AbstractParseListener() {
+		@Override
+		public void body(byte[] bytes, int offset, int length) {
+			final Response response = getResponse();
 
-						public boolean pathParameterNameValue(String name, String value) {
-							response.addResponseTokenReference(name, value,
-											TokenResponseLocationType.RESPONSE_LOCATION_HEADER_PATH_PARAMETER);
+			if (response != null && response.getBody() != null) {
+				response.getBody().write(bytes, offset, length);
+			}
+		}
 
-							return true;
-						}
+		@Override
+		public void messageComplete() {
+			if (isInterim(m_responseParser.getStatusCode()) || m_droppingResponse) {
+				// An interim response; the final one follows. Or a dropped one.
+				return;
+			}
 
-						public boolean queryStringNameValue(String name, String value) {
-							response.addResponseTokenReference(name, value,
-											TokenResponseLocationType.RESPONSE_LOCATION_HEADER_QUERY_STRING);
+			m_outstandingRequests.removeFirst();
+			m_exchangeStatistics.responseMatched();
 
-							return true;
-						}
-					});
-				}
+			final Request request = m_respondedRequest;
+			m_respondedRequest = null;
+
+			if (request == null) {
+				return;
+			}
+
+			// The last byte of the response has passed, so the body is scanned and
+			// released now rather than when the next request arrives.
+			m_httpRecording.markLastResponseTime();
+			request.setResponded();
+
+			if (request.isComplete()) {
+				request.end();
+			} else {
+				request.getResponse().end();
 			}
+		}
+
+		private Response getResponse() {
+			return m_respondedRequest != null ? m_respondedRequest.getResponse() : null;
+		}
+
+		private boolean isInterim(int status) {
+			return status >= 100 && status < 200 && status != HTTP_SWITCHING_PROTOCOLS;
+		}
+	}
 
-			// Write out the body after parsing the headers for consistency with
-			// handleRequest.
-			if (bodyStart > -1) {
-				response.new ResponseBody().write(buffer, bodyStart, length - bodyStart);
+	private static int indexOfWhiteSpace(String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) == ' ' || s.charAt(i) == '\t') {
+				return i;
 			}
 		}
+
+		return -1;
 	}
 
-	/**
-	 * Called when a new request message is canceld.
-	 */
-	public synchronized void requestCanceled() {
-		if (m_request != null) {
-			m_request.cancel();
-			m_request = null;
+	private static int lastIndexOfWhiteSpace(String s) {
+		for (int i = s.length() - 1; i >= 0; --i) {
+			if (s.charAt(i) == ' ' || s.charAt(i) == '\t') {
+				return i;
+			}
 		}
+
+		return -1;
 	}
 
 	/**
-	 * Called when a new request message is expected.
+	 * Remove the scheme and the authority of an absolute request URI, as sent to a proxy.
 	 */
-	public synchronized void requestFinished() {
-		if (m_request != null) {
-			m_request.end();
-			m_request = null;
+	private static String relativeURI(String uri) {
+		if (uri.startsWith("http://") || uri.startsWith("https://")) {
+			final int pathStart = uri.indexOf('/', uri.indexOf("://") + 3);
+			return pathStart < 0 ? "/" : uri.substring(pathStart);
 		}
+
+		return uri;
 	}
 
 	private final class Request {
@@ -370,6 +487,8 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		private String m_contentType = null;
 		private RequestBody m_body;
 		private boolean m_complete;
+		private boolean m_responded;
+		private boolean m_ended;
 
 		private Response m_response = null;
 
@@ -451,6 +570,12 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		}
 
 		public void end() {
+			if (m_ended) {
+				return;
+			}
+
+			m_ended = true;
+
 			if (getBody() != null) {
 				getBody().end();
 			}
@@ -460,14 +585,21 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			}
 
 			LOGGER.debug("Request finished {}", m_requestXML);
+			m_httpRecording.requestEnded(m_requestXML);
 		}
 
 		private class RequestBody extends AbstractBody {
 			public RequestBody() {
+				super(m_bodyMemoryLimit);
 				assert m_body == null;
 				m_body = this;
 			}
 
+			@Override
+			protected BodyStore.Entry createSpillEntry() throws IOException {
+				return m_httpRecording.getBodyStore().newEntry();
+			}
+
 			public void write(byte[] bytes, int start, int length) {
 				// findbugs can't know that we're only called with the
 				// ConnectionHandlerImplementation
@@ -491,7 +623,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 					// also rely on these events if no Content-Length is specified.
 					if (m_contentLength != -1 && getSize() >= m_contentLength) {
 
-						m_request.setComplete();
+						setComplete();
 					}
 				}
 			}
@@ -511,25 +643,31 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 					isMultipart = false;
 				}
 
-				final byte[] bytes = toByteArray();
+				if (isSpilled()) {
+					// Too large to keep in memory, it was stored as it arrived.
+					final File file = endSpill();
 
-				if (bytes.length > 0x4000 && !isFormData || bytes.length > 0x40000) {
-					// Large amount of data, use a file.
-					final File file = m_httpRecording.createBodyDataFileName();
-
-					FileOutputStream dataStream = null;
+					if (file != null) {
+						body.setFile(file.getPath());
+					}
+				} else if (getSize() > 0x4000 && !isFormData || getSize() > 0x40000) {
+					// Large amount of data, use a file. A payload which was recorded
+					// before shares its file.
+					BodyStore.Entry entry = null;
 
 					try {
-						dataStream = new FileOutputStream(file);
-						dataStream.write(bytes, 0, bytes.length);
+						entry = m_httpRecording.getBodyStore().newEntry();
+						writeTo(entry);
 
-						body.setFile(file.getPath());
+						body.setFile(entry.commit().getPath());
 					} catch (IOException e) {
-						LOGGER.error("Failed to write body data to '" + file + "'", e);
+						LOGGER.error("Failed to store body data", e);
 					} finally {
-						Closer.close(dataStream);
+						Closer.close(entry);
 					}
 				} else {
+					final byte[] bytes = toByteArray();
+
 					// Basic handling of strings; should use content character encoding.
 					final String iso88591String;
 
@@ -604,12 +742,21 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		public boolean isComplete() {
 			return m_complete;
 		}
+
+		public void setResponded() {
+			m_responded = true;
+		}
+
+		public boolean isResponded() {
+			return m_responded;
+		}
 	}
 
 	private final class Response {
 
 		private final ResponseType m_responseXML;
 		private ResponseBody m_body;
+		private String m_contentEncoding;
 		private final Map<String, ResponseTokenReferenceType> m_tokensInResponseMap = newHashMap();
 
 		public Response(ResponseType responseXML) {
@@ -620,9 +767,14 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			return m_body;
 		}
 
+		public void setContentEncoding(String contentEncoding) {
+			m_contentEncoding = contentEncoding;
+		}
+
 		public void end() {
 			if (getBody() != null) {
 				getBody().end();
+				m_body = null;
 			}
 		}
 
@@ -651,80 +803,163 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			}
 		}
 
-		private class ResponseBody extends AbstractBody {
+		private class ResponseBody {
+			private final ByteSink m_sink;
+
 			public ResponseBody() {
 				assert m_body == null;
 				m_body = this;
-			}
 
-			public void end() {
 				// Parse body for href="<url>" patterns containing URL tokens. We could
 				// choose to do this only for certain content types, (probably just
 				// text/html) but its better to catch too many tokens than too few.
+				// The body is decoded and scanned as it arrives, so it is never held
+				// as a whole.
+				final ByteSink scanner = m_tokenExtractor.newScanner(new TokenExtractor.Listener() {
+					@Override
+					public void uri(String uri) {
+						m_uriParser.parse(uri, new URIParser.AbstractParseListener() {
+
+							public boolean pathParameterNameValue(String name, String value) {
+								addResponseTokenReference(name, value,
+												TokenResponseLocationType.RESPONSE_BODY_URI_PATH_PARAMETER);
+
+								return true;
+							}
+
+							public boolean queryStringNameValue(String name, String value) {
+								addResponseTokenReference(name, value,
+												TokenResponseLocationType.RESPONSE_BODY_URI_QUERY_STRING);
+
+								return true;
+							}
+						});
+					}
+
+					@Override
+					public void nameValue(String name, String value) {
+						// The JSON values are recorded as hidden inputs too, so that the
+						// form fields of the same name are tokenised.
+						addResponseTokenReference(name, value, TokenResponseLocationType.RESPONSE_BODY_HIDDEN_INPUT);
+					}
+				});
 
 				// This ought to respect content character encoding.
-				final String iso85591String;
+				m_sink = ContentDecoder.decoding(m_contentEncoding, scanner);
+			}
 
-				try {
-					iso85591String = new String(toByteArray(), "ISO8859_1");
-				} catch (UnsupportedEncodingException e) {
-					throw new AssertionError(e);
+			public void write(byte[] bytes, int start, int length) {
+				if (m_sink != null) {
+					m_sink.write(bytes, start, length);
 				}
+			}
 
-				final Matcher uriMatcher = m_regularExpressions.getHyperlinkURIPattern().matcher(iso85591String);
+			public void end() {
+				if (m_sink != null) {
+					m_sink.end();
+				}
+			}
+		}
+	}
 
-				while (uriMatcher.find()) {
-					m_uriParser.parse(uriMatcher.group(1), new URIParser.AbstractParseListener() {
+	/**
+	 * Body which is kept in memory up to a limit, and written to the body store beyond it.
+	 */
+	private abstract static class AbstractBody {
+		private final int m_memoryLimit;
+		private ByteArrayOutputStream m_entityBodyByteStream = new ByteArrayOutputStream();
+		private boolean m_spilled;
+		private BodyStore.Entry m_spillEntry;
+		private int m_size;
 
-						public boolean pathParameterNameValue(String name, String value) {
-							addResponseTokenReference(name, value,
-											TokenResponseLocationType.RESPONSE_BODY_URI_PATH_PARAMETER);
+		protected AbstractBody(int memoryLimit) {
+			m_memoryLimit = memoryLimit;
+		}
 
-							return true;
-						}
+		public void write(byte[] bytes, int start, int length) {
+			m_size += length;
 
-						public boolean queryStringNameValue(String name, String value) {
-							addResponseTokenReference(name, value,
-											TokenResponseLocationType.RESPONSE_BODY_URI_QUERY_STRING);
+			if (!m_spilled && m_entityBodyByteStream.size() + length > m_memoryLimit) {
+				spill();
+			}
 
-							return true;
-						}
-					});
+			if (!m_spilled) {
+				m_entityBodyByteStream.write(bytes, start, length);
+			} else if (m_spillEntry != null) {
+				try {
+					m_spillEntry.write(bytes, start, length);
+				} catch (IOException e) {
+					LOGGER.error("Failed to store body data", e);
+					m_spillEntry.abort();
+					m_spillEntry = null;
 				}
+			}
+		}
 
-				final Matcher hiddenParameterMatcher = m_regularExpressions.getHiddenInputPattern().matcher(
-								iso85591String);
-
-				while (hiddenParameterMatcher.find()) {
-					final AttributeStringParser.AttributeMap map = m_attributeStringParser.parse(hiddenParameterMatcher
-									.group());
+		private void spill() {
+			m_spilled = true;
 
-					final String name = map.get("name");
-					final String value = map.get("value");
+			try {
+				m_spillEntry = createSpillEntry();
+				m_entityBodyByteStream.writeTo(m_spillEntry);
+			} catch (IOException e) {
+				LOGGER.error("Failed to store body data", e);
 
-					if (name != null && value != null) {
-						addResponseTokenReference(name, value, TokenResponseLocationType.RESPONSE_BODY_HIDDEN_INPUT);
-					}
+				if (m_spillEntry != null) {
+					m_spillEntry.abort();
+					m_spillEntry = null;
 				}
 			}
-		}
-	}
 
-	private abstract static class AbstractBody {
-		private final ByteArrayOutputStream m_entityBodyByteStream = new ByteArrayOutputStream();
-
-		public void write(byte[] bytes, int start, int length) {
-			m_entityBodyByteStream.write(bytes, start, length);
+			// The rest of the body goes straight to the store.
+			m_entityBodyByteStream = null;
 		}
 
 		public abstract void end();
 
+		/**
+		 * Start storing the body once it exceeds the memory limit.
+		 *
+		 * @return entry of the body store
+		 * @throws IOException
+		 *             if the entry can not be created
+		 */
+		protected abstract BodyStore.Entry createSpillEntry() throws IOException;
+
 		protected final int getSize() {
-			return m_entityBodyByteStream.size();
+			return m_size;
+		}
+
+		protected final boolean isSpilled() {
+			return m_spilled;
+		}
+
+		/**
+		 * Finish storing the body.
+		 *
+		 * @return file of the body, or {@code null} if it could not be stored
+		 */
+		protected final File endSpill() {
+			if (m_spillEntry == null) {
+				return null;
+			}
+
+			try {
+				return m_spillEntry.commit();
+			} catch (IOException e) {
+				LOGGER.error("Failed to store body data", e);
+				return null;
+			} finally {
+				m_spillEntry = null;
+			}
 		}
 
 		protected final byte[] toByteArray() {
 			return m_entityBodyByteStream.toByteArray();
 		}
+
+		protected final void writeTo(OutputStream outputStream) throws IOException {
+			m_entityBodyByteStream.writeTo(outputStream);
+		}
 	}
 }
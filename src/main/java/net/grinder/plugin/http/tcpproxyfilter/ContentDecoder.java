@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ByteSink} which removes a gzip or deflate content coding from a body as it arrives, and
+ * passes the decoded bytes on.
+ *
+ * <p>
+ * The body is never held as a whole. Only the gzip header is buffered until it is complete; the
+ * rest goes straight through an {@link Inflater}. A body which turns out not to be in the coding
+ * is dropped with a debug message, since it only feeds the token scanning.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class ContentDecoder implements ByteSink {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ContentDecoder.class);
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+	private static final int GZIP_FIXED_HEADER_LENGTH = 10;
+	private static final int GZIP_FHCRC = 2;
+	private static final int GZIP_FEXTRA = 4;
+	private static final int GZIP_FNAME = 8;
+	private static final int GZIP_FCOMMENT = 16;
+
+	private static final int ZLIB_METHOD_DEFLATE = 8;
+
+	private final ByteSink m_sink;
+	private final boolean m_gzip;
+	private final byte[] m_buffer = new byte[BUFFER_SIZE];
+
+	private Inflater m_inflater;
+	private byte[] m_header = new byte[0];
+	private boolean m_done;
+
+	private ContentDecoder(ByteSink sink, boolean gzip) {
+		m_sink = sink;
+		m_gzip = gzip;
+	}
+
+	/**
+	 * Wrap the given sink with the decoders for a Content-Encoding header value.
+	 *
+	 * @param contentEncoding
+	 *            Content-Encoding header value, or {@code null} if the body is not encoded
+	 * @param sink
+	 *            sink which takes the decoded bytes
+	 * @return sink which takes the encoded bytes, or {@code null} if one of the codings is not
+	 *         supported
+	 */
+	static ByteSink decoding(String contentEncoding, ByteSink sink) {
+		if (contentEncoding == null) {
+			return sink;
+		}
+
+		// The codings are listed in the order they were applied, so the last one
+		// is removed first.
+		ByteSink result = sink;
+
+		for (String each : contentEncoding.split(",")) {
+			final String coding = each.trim();
+
+			if ("gzip".equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+				result = new ContentDecoder(result, true);
+			} else if ("deflate".equalsIgnoreCase(coding)) {
+				result = new ContentDecoder(result, false);
+			} else if (coding.length() != 0 && !"identity".equalsIgnoreCase(coding)) {
+				LOGGER.debug("Content-Encoding {} is not supported, the body is not scanned", coding);
+				return null;
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		if (m_done || length == 0) {
+			return;
+		}
+
+		if (m_inflater == null) {
+			final byte[] header = Arrays.copyOf(m_header, m_header.length + length);
+			System.arraycopy(bytes, offset, header, m_header.length, length);
+
+			final int headerLength = m_gzip ? gzipHeaderLength(header) : 0;
+
+			if (headerLength < 0) {
+				// Incomplete, or not gzip at all.
+				m_header = header;
+				return;
+			}
+
+			m_header = null;
+
+			if (m_gzip) {
+				m_inflater = new Inflater(true);
+			} else {
+				// RFC 2616 deflate is a zlib stream, but some servers send the raw
+				// deflate data.
+				m_inflater = new Inflater(!isZlibHeader(header[0]));
+			}
+
+			inflate(header, headerLength, header.length - headerLength);
+		} else {
+			inflate(bytes, offset, length);
+		}
+	}
+
+	private void inflate(byte[] bytes, int offset, int length) {
+		m_inflater.setInput(bytes, offset, length);
+
+		try {
+			while (!m_inflater.finished()) {
+				final int inflated = m_inflater.inflate(m_buffer);
+
+				if (inflated > 0) {
+					m_sink.write(m_buffer, 0, inflated);
+				} else if (m_inflater.needsInput() || m_inflater.needsDictionary()) {
+					return;
+				}
+			}
+
+			// The gzip trailer, or the bytes after it, are not needed.
+			m_done = true;
+		} catch (DataFormatException e) {
+			LOGGER.debug("Failed to decode the body, it is not scanned: {}", e.getMessage());
+			m_done = true;
+		}
+	}
+
+	/**
+	 * Find the length of the gzip header (RFC 1952, 2.3) at the start of the given bytes.
+	 *
+	 * @return length, or -1 if the header is not complete yet
+	 */
+	private int gzipHeaderLength(byte[] bytes) {
+		if (bytes.length >= 2 && ((bytes[0] & 0xff) != GZIP_MAGIC_1 || (bytes[1] & 0xff) != GZIP_MAGIC_2)) {
+			LOGGER.debug("Body is not in gzip format, it is not scanned");
+			m_done = true;
+			return -1;
+		}
+
+		if (bytes.length < GZIP_FIXED_HEADER_LENGTH) {
+			return -1;
+		}
+
+		final int flags = bytes[3] & 0xff;
+		int length = GZIP_FIXED_HEADER_LENGTH;
+
+		if ((flags & GZIP_FEXTRA) != 0) {
+			if (bytes.length < length + 2) {
+				return -1;
+			}
+
+			length += 2 + (bytes[length] & 0xff | (bytes[length + 1] & 0xff) << 8);
+		}
+
+		if ((flags & GZIP_FNAME) != 0) {
+			length = skipZeroTerminated(bytes, length);
+		}
+
+		if ((flags & GZIP_FCOMMENT) != 0) {
+			length = skipZeroTerminated(bytes, length);
+		}
+
+		if ((flags & GZIP_FHCRC) != 0 && length >= 0) {
+			length += 2;
+		}
+
+		return length >= 0 && length <= bytes.length ? length : -1;
+	}
+
+	private static int skipZeroTerminated(byte[] bytes, int start) {
+		if (start < 0) {
+			return -1;
+		}
+
+		for (int i = start; i < bytes.length; ++i) {
+			if (bytes[i] == 0) {
+				return i + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private static boolean isZlibHeader(byte first) {
+		return (first & 0x0f) == ZLIB_METHOD_DEFLATE && (first & 0xff) >> 4 <= 7;
+	}
+
+	@Override
+	public void end() {
+		if (m_inflater != null) {
+			m_inflater.end();
+		}
+
+		m_sink.end();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the recorded responses were matched to their requests, across all the connections.
+ *
+ * <p>
+ * A client may send several requests on a connection before the first response arrives. The
+ * responses come back in the same order, so each connection keeps its outstanding requests in a
+ * FIFO. A response which finds the FIFO empty is dropped, and a request which is still in the
+ * FIFO when the connection closes is recorded without a response. Both should stay at zero.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class ExchangeStatistics {
+	private final AtomicLong m_matchedResponses = new AtomicLong();
+	private final AtomicLong m_droppedResponses = new AtomicLong();
+	private final AtomicLong m_unansweredRequests = new AtomicLong();
+	private final AtomicLong m_pipelinedRequests = new AtomicLong();
+	private final AtomicInteger m_maxOutstandingRequests = new AtomicInteger();
+
+	/**
+	 * Count a request which was sent while the given number of the requests on the same connection
+	 * were waiting for their response.
+	 *
+	 * @param outstandingRequests
+	 *            number of the requests waiting, including the new one
+	 */
+	void requestSent(int outstandingRequests) {
+		if (outstandingRequests > 1) {
+			m_pipelinedRequests.incrementAndGet();
+		}
+
+		for (int max = m_maxOutstandingRequests.get(); outstandingRequests > max; max = m_maxOutstandingRequests
+						.get()) {
+			if (m_maxOutstandingRequests.compareAndSet(max, outstandingRequests)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Count a response which was matched to its request.
+	 */
+	void responseMatched() {
+		m_matchedResponses.incrementAndGet();
+	}
+
+	/**
+	 * Count a response which arrived when no request was waiting.
+	 */
+	void responseDropped() {
+		m_droppedResponses.incrementAndGet();
+	}
+
+	/**
+	 * Count the requests whose connection closed before their response arrived.
+	 *
+	 * @param count
+	 *            number of the requests
+	 */
+	void requestsUnanswered(int count) {
+		m_unansweredRequests.addAndGet(count);
+	}
+
+	/**
+	 * Get the number of the responses matched to their requests.
+	 *
+	 * @return matched response count
+	 */
+	public long getMatchedResponses() {
+		return m_matchedResponses.get();
+	}
+
+	/**
+	 * Get the number of the responses which arrived when no request was waiting.
+	 *
+	 * @return dropped response count
+	 */
+	public long getDroppedResponses() {
+		return m_droppedResponses.get();
+	}
+
+	/**
+	 * Get the number of the requests whose connection closed before their response arrived.
+	 *
+	 * @return unanswered request count
+	 */
+	public long getUnansweredRequests() {
+		return m_unansweredRequests.get();
+	}
+
+	/**
+	 * Get the number of the requests sent before the response of a previous request on the same
+	 * connection had completed.
+	 *
+	 * @return pipelined request count
+	 */
+	public long getPipelinedRequests() {
+		return m_pipelinedRequests.get();
+	}
+
+	/**
+	 * Get the largest number of the requests which waited for their response on one connection.
+	 *
+	 * @return maximum outstanding request count
+	 */
+	public int getMaxOutstandingRequests() {
+		return m_maxOutstandingRequests.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Recorded exchanges: matched=%d, dropped responses=%d, unanswered requests=%d, "
+						+ "pipelined requests=%d, max outstanding=%d", m_matchedResponses.get(),
+						m_droppedResponses.get(), m_unansweredRequests.get(), m_pipelinedRequests.get(),
+						m_maxOutstandingRequests.get());
+	}
+}
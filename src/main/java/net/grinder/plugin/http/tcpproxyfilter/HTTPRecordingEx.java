@@ -31,9 +31,25 @@ public interface HTTPRecordingEx extends HTTPRecording {
 	 */
 	void delete(RequestType requestType);
 
+	/**
+	 * Called once the exchange of the given {@link RequestType} is complete. It is not changed
+	 * afterwards, so the recording may keep it in a more compact form.
+	 * 
+	 * @param requestType
+	 *            requestType whose exchange is complete
+	 */
+	void requestEnded(RequestType requestType);
+
 	/**
 	 * RESET the HTTP Recording.
 	 */
 	void reset();
 
+	/**
+	 * Get the store of the bodies which are too large to keep in the recording.
+	 * 
+	 * @return body store
+	 */
+	BodyStore getBodyStore();
+
 }
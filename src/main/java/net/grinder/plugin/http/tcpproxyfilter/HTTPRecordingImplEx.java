@@ -23,12 +23,14 @@
 package net.grinder.plugin.http.tcpproxyfilter;
 
 import static java.util.Collections.emptySet;
-import static net.grinder.util.CollectionUtils.newHashMap;
+import static java.util.Collections.newSetFromMap;
 import static net.grinder.util.CollectionUtils.newIdentityHashMap;
 import static net.grinder.util.TypeUtil.cast;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,10 +39,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 
 import net.grinder.common.GrinderBuild;
+import net.grinder.plugin.http.tcpproxyfilter.options.FileType;
 import net.grinder.plugin.http.xml.BaseURIType;
 import net.grinder.plugin.http.xml.CommonHeadersType;
 import net.grinder.plugin.http.xml.HTTPRecordingType;
@@ -61,7 +70,7 @@ import net.grinder.util.Pair;
 import net.grinder.util.UrlUtil;
 import net.grinder.util.http.URIParser;
 
-import org.apache.xmlbeans.XmlObject;
+import org.apache.commons.io.FileUtils;
 import org.picocontainer.Disposable;
 import org.slf4j.Logger;
 
@@ -80,21 +89,22 @@ import HTTPClient.URI;
 public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 
 	private final HTTPRecordingParameters m_parameters;
-	private HttpRecordingDocument m_recordingDocument = HttpRecordingDocument.Factory.newInstance();
+	private volatile HttpRecordingDocument m_recordingDocument = HttpRecordingDocument.Factory.newInstance();
 	private final Logger m_logger;
 	private final HTTPRecordingResultProcessor m_resultProcessor;
 	private final RegularExpressions m_regularExpressions;
 	private final URIParser m_uriParser;
 
-	private IntGenerator m_bodyFileIDGenerator = new IntGenerator();
-	private BaseURLMap m_baseURLMap = new BaseURLMap();
-	private RequestList m_requestList = new RequestList();
-	private TokenMap m_tokenMap = new TokenMap();
+	private volatile BodyStore m_bodyStore = new BodyStore(new File(FileUtils.getTempDirectory(),
+					"ngrinder-recorder-bodies"));
+	private volatile BaseURLMap m_baseURLMap = new BaseURLMap();
+	private volatile RequestList m_requestList = new RequestList();
+	private volatile TokenMap m_tokenMap = new TokenMap();
 
-	private long m_lastResponseTime = 0;
+	private final AtomicLong m_lastResponseTime = new AtomicLong();
 	private final ConnectionFilter m_connectionFilter;
 	private final FileTypeFilter m_fileTypeFilter;
-	private boolean newPageRequested = false;
+	private final AtomicBoolean newPageRequested = new AtomicBoolean();
 	private static final String NEW_PAGE_SLOT = "new page slot";
 
 	/**
@@ -147,7 +157,6 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		httpRecording.setVersion("The Grinder " + GrinderBuild.getVersionString());
 		httpRecording.setTime(Calendar.getInstance());
 		httpRecording.setTestNumberOffset(m_parameters.getTestNumberOffset());
-		m_bodyFileIDGenerator = new IntGenerator();
 		m_requestList = new RequestList();
 		m_tokenMap = new TokenMap();
 		m_baseURLMap = new BaseURLMap();
@@ -169,18 +178,16 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		final RequestType request = m_requestList.add();
 		request.setTime(Calendar.getInstance());
 
-		synchronized (this) {
-			if (m_lastResponseTime > 0) {
-				// We only want to record a sleep time for the first request after
-				// a response.
-				final long time = System.currentTimeMillis() - m_lastResponseTime;
+		// We only want to record a sleep time for the first request after a
+		// response.
+		final long lastResponseTime = m_lastResponseTime.getAndSet(0);
 
-				if (time > 10) {
-					request.setSleepTime(time);
-				}
-			}
+		if (lastResponseTime > 0) {
+			final long time = System.currentTimeMillis() - lastResponseTime;
 
-			m_lastResponseTime = 0;
+			if (time > 10) {
+				request.setSleepTime(time);
+			}
 		}
 
 		request.addNewHeaders();
@@ -271,9 +278,7 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 	 */
 	@Override
 	public void markLastResponseTime() {
-		synchronized (this) {
-			m_lastResponseTime = System.currentTimeMillis();
-		}
+		m_lastResponseTime.set(System.currentTimeMillis());
 	}
 
 	/**
@@ -301,11 +306,32 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Create a new file name in the directory of the {@link #getBodyStore() body store}. The large
+	 * bodies of this recording are written to the store itself.
+	 * 
+	 * @return file name
 	 */
 	@Override
 	public File createBodyDataFileName() {
-		return new File("http-data-" + m_bodyFileIDGenerator.next() + ".dat");
+		return m_bodyStore.newFileName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BodyStore getBodyStore() {
+		return m_bodyStore;
+	}
+
+	/**
+	 * Set the store of the bodies which are too large to keep in the recording.
+	 * 
+	 * @param bodyStore
+	 *            body store
+	 */
+	public void setBodyStore(BodyStore bodyStore) {
+		m_bodyStore = bodyStore;
 	}
 
 	/**
@@ -321,31 +347,11 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		final HTTPRecordingType httpRecording = result.getHttpRecording();
 		m_requestList.record(httpRecording);
 
-		final XmlObject[] requestXmlObjects = httpRecording.selectPath("declare namespace ns="
-						+ "'http://grinder.sourceforge.net/tcpproxy/http/1.0';" + "$this//ns:request");
-
-		final List<RequestType> requests = new ArrayList<RequestType>(requestXmlObjects.length);
-
-		for (XmlObject o : requestXmlObjects) {
-			RequestType o2 = (RequestType) o;
-
-			EndPoint endPoint = m_baseURLMap.getEndPoint(o2.getUri().getExtends());
-			if (m_connectionFilter.isFiltered(endPoint)) {
-				continue;
-			}
-
-			ParsedURIPartTypeImpl path = cast(o2.getUri().getPath());
-			if (m_fileTypeFilter.isFiltered(path.getStringValue())) {
-				continue;
-			}
+		// The pages hold only the requests which passed the filters.
+		final List<RequestType> requests = new ArrayList<RequestType>();
 
-			if (o2.getBody() != null) {
-				if (m_fileTypeFilter.isFilteredContentType(o2.getBody().getContentType())) {
-					continue;
-				}
-			}
-
-			requests.add(o2);
+		for (PageType page : httpRecording.getPageArray()) {
+			requests.addAll(Arrays.asList(page.getRequestArray()));
 		}
 
 		extractCommonHeaders(requests, httpRecording);
@@ -426,77 +432,66 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 
 	private void extractCommonHeaders(List<RequestType> requests, HTTPRecordingType httpRecording) {
 
-		// Build identity map of Request to (Common, Uncommon) and map containing
-		// the number of times each set of common headers is referenced.
-		final Map<RequestType, Pair<CommonHeadersType, HeadersType>> parsedRequests = newIdentityHashMap();
-
-		final Map<String, Integer> commonHeadersCountByValue = new HashMap<String, Integer>();
-
-		final Map<String, CommonHeadersType> uniqueCommonHeaders = new HashMap<String, CommonHeadersType>();
+		// Intern the common headers of each request, so that each distinct set is
+		// hashed once and counted as it is found.
+		final Map<HeaderSet, HeaderSet> uniqueCommonHeaders = new HashMap<HeaderSet, HeaderSet>();
+		final List<HeaderSet> requestCommonHeaders = new ArrayList<HeaderSet>(requests.size());
 
 		for (RequestType request : requests) {
-			final CommonHeadersType commonHeaders = CommonHeadersType.Factory.newInstance();
-
-			final HeadersType uncommonHeaders = HeadersType.Factory.newInstance();
+			final HeaderType[] headers = request.getHeaders().getHeaderArray();
+			final List<String> namesAndValues = new ArrayList<String>(headers.length * 2);
 
-			final XmlObject[] children = request.getHeaders().selectPath("./*");
-
-			for (int i = 0; i < children.length; ++i) {
-				if (children[i] instanceof HeaderType) {
-					final HeaderType header = (HeaderType) children[i];
-
-					if (m_parameters.isCommonHeader(header.getName())) {
-						commonHeaders.addNewHeader().set(header);
-					} else {
-						uncommonHeaders.addNewHeader().set(header);
-					}
-				} else {
-					uncommonHeaders.addNewAuthorization().set(children[i]);
+			for (HeaderType header : headers) {
+				if (m_parameters.isCommonHeader(header.getName())) {
+					namesAndValues.add(header.getName());
+					namesAndValues.add(header.getValue());
 				}
 			}
 
-			// Key that ignores ID.
-			final String key = Arrays.asList(commonHeaders.getHeaderArray()).toString();
-
-			final CommonHeadersType existing = uniqueCommonHeaders.get(key);
-
-			final CommonHeadersType theCommonHeaders;
+			final HeaderSet commonHeaders = new HeaderSet(namesAndValues.toArray(new String[namesAndValues.size()]));
+			final HeaderSet existing = uniqueCommonHeaders.get(commonHeaders);
 
 			if (existing != null) {
-				theCommonHeaders = existing;
+				existing.reference();
+				requestCommonHeaders.add(existing);
 			} else {
-				uniqueCommonHeaders.put(key, commonHeaders);
-				theCommonHeaders = commonHeaders;
+				commonHeaders.reference();
+				uniqueCommonHeaders.put(commonHeaders, commonHeaders);
+				requestCommonHeaders.add(commonHeaders);
 			}
-
-			parsedRequests.put(request, Pair.of(theCommonHeaders, uncommonHeaders));
-
-			final Integer count = commonHeadersCountByValue.get(key);
-			final int oldCount = count != null ? count.intValue() : 0;
-			commonHeadersCountByValue.put(key, oldCount + 1);
 		}
 
 		// Now extract common headers if more than one request refers to them.
 		final IntGenerator idGenerator = new IntGenerator();
 
-		for (RequestType request : requests) {
-			final Pair<CommonHeadersType, HeadersType> pair = parsedRequests.get(request);
-
-			final CommonHeadersType commonHeaders = pair.getFirst();
-			final HeadersType uncommonHeaders = pair.getSecond();
+		for (int i = 0; i < requests.size(); ++i) {
+			final HeaderSet commonHeaders = requestCommonHeaders.get(i);
 
-			final String key = Arrays.asList(commonHeaders.getHeaderArray()).toString();
+			if (commonHeaders.size() > 0 && commonHeaders.getReferences() > 1) {
+				if (commonHeaders.getId() == null) {
+					commonHeaders.setId("headers" + idGenerator.next());
 
-			if (commonHeaders.sizeOfHeaderArray() > 0 && commonHeadersCountByValue.get(key).intValue() > 1) {
-				if (commonHeaders.getHeadersId() == null) {
-					commonHeaders.setHeadersId("headers" + idGenerator.next());
+					final CommonHeadersType commonHeadersXML = httpRecording.addNewCommonHeaders();
+					commonHeadersXML.setHeadersId(commonHeaders.getId());
 
-					httpRecording.addNewCommonHeaders().set(commonHeaders);
+					for (int j = 0; j < commonHeaders.size(); ++j) {
+						final HeaderType header = commonHeadersXML.addNewHeader();
+						header.setName(commonHeaders.getName(j));
+						header.setValue(commonHeaders.getValue(j));
+					}
 				}
 
-				uncommonHeaders.setExtends(commonHeaders.getHeadersId());
+				// What is left are the uncommon headers, in their order.
+				final HeadersType headers = requests.get(i).getHeaders();
+				final HeaderType[] headersArray = headers.getHeaderArray();
 
-				request.setHeaders(uncommonHeaders);
+				for (int j = headersArray.length - 1; j >= 0; --j) {
+					if (m_parameters.isCommonHeader(headersArray[j].getName())) {
+						headers.removeHeader(j);
+					}
+				}
+
+				headers.setExtends(commonHeaders.getId());
 			}
 		}
 	}
@@ -515,7 +510,7 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 			return emptySet();
 		}
 
-		final HeaderType[] oneHeaders = headersList.remove(headersList.size() - 1).getHeaderArray();
+		final HeaderType[] oneHeaders = headersList.get(headersList.size() - 1).getHeaderArray();
 
 		final Set<Pair<String, String>> sharedHeaders = new HashSet<Pair<String, String>>(oneHeaders.length);
 
@@ -523,19 +518,18 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 			sharedHeaders.add(Pair.of(header.getName(), header.getValue()));
 		}
 
-		for (HeadersType headers : headersList) {
-			final HeaderType[] h = headers.getHeaderArray();
+		// Each list narrows the candidates, and once there are none the rest is
+		// not looked at.
+		for (int i = 0; i < headersList.size() - 1 && !sharedHeaders.isEmpty(); ++i) {
+			final HeaderType[] h = headersList.get(i).getHeaderArray();
 
-			final Set<Pair<String, String>> sharedHeadersCopy = new HashSet<Pair<String, String>>(sharedHeaders);
+			final Set<Pair<String, String>> headers = new HashSet<Pair<String, String>>(h.length * 2);
 
 			for (int j = 0; j < h.length; ++j) {
-				final String name = h[j].getName();
-				final String value = h[j].getValue();
-
-				sharedHeadersCopy.remove(Pair.of(name, value));
+				headers.add(Pair.of(h[j].getName(), h[j].getValue()));
 			}
 
-			sharedHeaders.removeAll(sharedHeadersCopy);
+			sharedHeaders.retainAll(headers);
 		}
 
 		return sharedHeaders;
@@ -573,33 +567,101 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		headers.setExtends(defaultHeadersID);
 	}
 
+	/**
+	 * The common headers of a request, names and values in their order, with the hash computed
+	 * once. Equal sets are interned, and count the requests which refer to them.
+	 */
+	private static final class HeaderSet {
+		private final String[] m_namesAndValues;
+		private final int m_hashCode;
+		private int m_references;
+		private String m_id;
+
+		public HeaderSet(String[] namesAndValues) {
+			m_namesAndValues = namesAndValues;
+			m_hashCode = Arrays.hashCode(namesAndValues);
+		}
+
+		public int size() {
+			return m_namesAndValues.length / 2;
+		}
+
+		public String getName(int index) {
+			return m_namesAndValues[index * 2];
+		}
+
+		public String getValue(int index) {
+			return m_namesAndValues[index * 2 + 1];
+		}
+
+		public void reference() {
+			++m_references;
+		}
+
+		public int getReferences() {
+			return m_references;
+		}
+
+		public String getId() {
+			return m_id;
+		}
+
+		public void setId(String id) {
+			m_id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+
+			if (!(o instanceof HeaderSet)) {
+				return false;
+			}
+
+			final HeaderSet other = (HeaderSet) o;
+			return m_hashCode == other.m_hashCode && Arrays.equals(m_namesAndValues, other.m_namesAndValues);
+		}
+	}
+
+	/**
+	 * The base URLs are looked up for every request but created once per host, so the lookup does
+	 * not lock. Only a new base URL is created under the lock.
+	 */
 	private final class BaseURLMap {
-		private final Map<String, BaseURIType> m_map = newHashMap();
-		private final Map<String, EndPoint> m_urliidToEndPoint = newHashMap();
-		private final Map<String, String> m_urliidToKey = newHashMap();
+		private final ConcurrentMap<String, BaseURIType> m_map = new ConcurrentHashMap<String, BaseURIType>();
+		private final ConcurrentMap<String, EndPoint> m_urliidToEndPoint = new ConcurrentHashMap<String, EndPoint>();
 
 		public BaseURIType getBaseURL(BaseURIType.Scheme.Enum scheme, EndPoint endPoint) {
 			final String key = scheme.toString() + "://" + endPoint;
-			synchronized (m_map) {
-				final BaseURIType existing = m_map.get(key);
+			final BaseURIType existing = m_map.get(key);
 
-				if (existing != null) {
-					return existing;
-				}
-				final BaseURIType result;
+			if (existing != null) {
+				return existing;
+			}
+
+			synchronized (m_recordingDocument) {
+				final BaseURIType created = m_map.get(key);
 
-				synchronized (m_recordingDocument) {
-					result = m_recordingDocument.getHttpRecording().addNewBaseUri();
+				if (created != null) {
+					return created;
 				}
 
+				final BaseURIType result = m_recordingDocument.getHttpRecording().addNewBaseUri();
+
 				result.setUriId(UrlUtil.toNormalize(scheme, endPoint.getHost()));
 				result.setScheme(scheme);
 				result.setHost(endPoint.getHost());
 				result.setPort(endPoint.getPort());
 
-				m_map.put(key, result);
-				m_urliidToKey.put(result.getUriId(), key);
 				m_urliidToEndPoint.put(result.getUriId(), endPoint);
+				m_map.put(key, result);
 				return result;
 			}
 		}
@@ -607,85 +669,425 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		public EndPoint getEndPoint(String uriid) {
 			return m_urliidToEndPoint.get(uriid);
 		}
+
+		public Set<String> getUriIds() {
+			return m_urliidToEndPoint.keySet();
+		}
 	}
 
+	/**
+	 * Append only log of the requests. The proxy threads add to it without locking, and the
+	 * recording iterates over whatever was added when it started.
+	 * 
+	 * <p>
+	 * The requests whose exchange is complete are kept {@link PackedRequest packed}, and rebuilt
+	 * only for the recording.
+	 * </p>
+	 */
 	private final class RequestList {
-		private final List<RequestType> m_requests = new ArrayList<RequestType>();
+		private final Queue<RecordedRequest> m_requests = new ConcurrentLinkedQueue<RecordedRequest>();
+		private final Map<RequestType, RecordedRequest> m_liveRequests =
+						new ConcurrentHashMap<RequestType, RecordedRequest>();
+		private final PackedRequest.Pool m_pool = new PackedRequest.Pool();
+
+		private final AtomicLong m_deletions = new AtomicLong();
+
+		// The finished pages of the last recording, by the entry which starts them, and what they
+		// were built with.
+		private Map<RecordedRequest, RecordedPage> m_pages = newIdentityHashMap();
+		private long m_pagesDeletions;
+		private Set<String> m_pagesFilterState = emptySet();
 
 		public RequestType add() {
 			final RequestType request = RequestType.Factory.newInstance();
-			if (newPageRequested) {
+			if (newPageRequested.compareAndSet(true, false)) {
 				RequestType slot = RequestType.Factory.newInstance();
 				slot.setDescription(NEW_PAGE_SLOT);
-				synchronized (m_requests) {
-					m_requests.add(slot);
-				}
-				newPageRequested = false;
-			}
-			synchronized (m_requests) {
-				m_requests.add(request);
+				m_requests.add(new RecordedRequest(slot));
 			}
+			final RecordedRequest recordedRequest = new RecordedRequest(request);
+			m_liveRequests.put(request, recordedRequest);
+			m_requests.add(recordedRequest);
 
 			return request;
 		}
 
+		public void end(RequestType request) {
+			final RecordedRequest recordedRequest = m_liveRequests.remove(request);
+
+			if (recordedRequest != null) {
+				recordedRequest.pack(m_pool);
+			}
+		}
+
 		public void delete(RequestType requestToBeDeleted) {
-			synchronized (m_requests) {
-				m_requests.remove(requestToBeDeleted);
+			final RecordedRequest recordedRequest = m_liveRequests.remove(requestToBeDeleted);
+
+			if (recordedRequest != null) {
+				recordedRequest.delete();
+				m_deletions.incrementAndGet();
+				return;
+			}
+
+			// Already packed. Deleting is rare, so it is found the slow way.
+			for (RecordedRequest each : m_requests) {
+				if (each.isFor(requestToBeDeleted)) {
+					each.delete();
+					m_deletions.incrementAndGet();
+					return;
+				}
 			}
 		}
 
-		public void record(HTTPRecordingType httpRecording) {
-			synchronized (m_requests) {
-				m_logger.debug("Recording {} requests", m_requests.size());
+		/**
+		 * Add the pages to the recording.
+		 * 
+		 * <p>
+		 * A page is finished once a later page was started and its requests are all packed, so
+		 * nothing can be added to it any more. A finished page is built once and copied into the
+		 * following recordings, without filtering or unpacking its requests again, until a request
+		 * is deleted or the filters decide differently.
+		 * </p>
+		 * 
+		 * @param httpRecording
+		 *            recording
+		 */
+		public synchronized void record(HTTPRecordingType httpRecording) {
+			m_logger.debug("Recording {} requests", m_requests.size());
+
+			// Read before the requests, so that a change during the recording is seen by the next.
+			final long deletions = m_deletions.get();
+			final Set<String> filterState = getFilterState();
+
+			if (deletions != m_pagesDeletions || !filterState.equals(m_pagesFilterState)) {
+				m_pages = newIdentityHashMap();
+			}
 
-				PageType currentPage = null;
+			final Map<RecordedRequest, RecordedPage> pages = newIdentityHashMap();
+			RecordedRequest pageStart = null;
+			PageType lastPage = null;
+			List<RecordedRequest> pageRequests = null;
+			boolean packed = true;
+			int builtPages = 0;
 
-				for (RequestType request : m_requests) {
-					if (request.getDescription().equals(NEW_PAGE_SLOT) || currentPage == null) {
-						currentPage = httpRecording.addNewPage();
-						continue;
-					}
+			for (RecordedRequest recordedRequest : m_requests) {
+				// Checked first, a request which is packed meanwhile is taken as not packed.
+				final boolean isPacked = recordedRequest.isPacked();
+				final FilterKeys filterKeys = recordedRequest.getFilterKeys();
 
-					EndPoint endPoint = m_baseURLMap.getEndPoint(request.getUri().getExtends());
-					if (m_connectionFilter.isFiltered(endPoint)) {
-						continue;
-					}
+				if (filterKeys == null) {
+					// Deleted.
+					continue;
+				}
 
-					ParsedURIPartTypeImpl path = cast(request.getUri().getPath());
-					if (m_fileTypeFilter.isFiltered(path.getStringValue())) {
-						continue;
+				if (filterKeys.isNewPageSlot() || pageStart == null) {
+					if (pageStart != null
+									&& recordPage(httpRecording, pageStart, lastPage, pageRequests, packed, pages)) {
+						++builtPages;
 					}
 
-					if (request.getBody() != null) {
-						if (m_fileTypeFilter.isFilteredContentType(request.getBody().getContentType())) {
-							continue;
-						}
-					}
+					pageStart = recordedRequest;
+					final RecordedPage recordedPage = m_pages.get(pageStart);
+					lastPage = recordedPage != null ? recordedPage.get() : null;
+					pageRequests = new ArrayList<RecordedRequest>();
+					packed = true;
+					continue;
+				}
+
+				if (lastPage != null) {
+					continue;
+				}
+
+				packed &= isPacked;
+
+				if (!isFiltered(filterKeys)) {
+					pageRequests.add(recordedRequest);
+				}
+			}
+
+			// The last page can still change.
+			if (pageStart != null && recordPage(httpRecording, pageStart, lastPage, pageRequests, false, pages)) {
+				++builtPages;
+			}
+
+			m_logger.debug("Built {} pages, {} finished pages are kept", builtPages, pages.size());
+			m_pages = pages;
+			m_pagesDeletions = deletions;
+			m_pagesFilterState = filterState;
+		}
 
-					final ResponseType response = request.getResponse();
+		/**
+		 * Get what the filters decide for the hosts of the recording, and for the extensions and the
+		 * content types of the file types. The file type filter decides by these, so the same
+		 * decisions for them are the same decisions for every request.
+		 */
+		private Set<String> getFilterState() {
+			final Set<String> filtered = new HashSet<String>();
+
+			for (String uriId : m_baseURLMap.getUriIds()) {
+				if (m_connectionFilter.isFiltered(m_baseURLMap.getEndPoint(uriId))) {
+					filtered.add("host " + uriId);
+				}
+			}
 
-					if (response == null) {
-						m_logger.debug("Skipping due to no response: {}", request);
-						continue;
+			for (FileType each : FileType.values()) {
+				for (String extension : each.getExtensions()) {
+					if (m_fileTypeFilter.isFiltered("file." + extension)) {
+						filtered.add("extension " + extension);
 					}
+				}
 
-					synchronized (m_recordingDocument) {
-						// Crude but effective pagination heuristics.
-						switch (response.getStatusCode()) {
-						case HttpURLConnection.HTTP_MOVED_PERM:
-						case HttpURLConnection.HTTP_MOVED_TEMP:
-						case 307:
-							request.setAnnotation("Expecting " + response.getStatusCode() + " '"
-											+ response.getReasonPhrase() + "'");
-							break;
-						default:
-						}
-
-						currentPage.addNewRequest().set(request);
+				for (String contentType : each.getContentTypes()) {
+					if (m_fileTypeFilter.isFilteredContentType(contentType)) {
+						filtered.add("content type " + contentType);
 					}
 				}
 			}
+
+			return filtered;
+		}
+
+		private boolean isFiltered(FilterKeys filterKeys) {
+			if (m_connectionFilter.isFiltered(m_baseURLMap.getEndPoint(filterKeys.getUriId()))) {
+				return true;
+			}
+
+			if (m_fileTypeFilter.isFiltered(filterKeys.getPath())) {
+				return true;
+			}
+
+			if (filterKeys.hasBody()) {
+				if (m_fileTypeFilter.isFilteredContentType(filterKeys.getContentType())) {
+					return true;
+				}
+			}
+
+			if (!filterKeys.hasResponse()) {
+				m_logger.debug("Skipping due to no response: {}", filterKeys.getPath());
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Add a page to the recording.
+		 * 
+		 * @param lastPage
+		 *            the page as it was built for the last recording, or {@code null} to build it
+		 * @param requests
+		 *            requests of the page which passed the filters
+		 * @param finished
+		 *            true if a later page was started and all the requests of the page are packed
+		 * @return true if the page was built
+		 */
+		private boolean recordPage(HTTPRecordingType httpRecording, RecordedRequest pageStart, PageType lastPage,
+						List<RecordedRequest> requests, boolean finished, Map<RecordedRequest, RecordedPage> pages) {
+
+			// The recording is a copy, only this thread writes to it.
+			if (lastPage != null) {
+				httpRecording.addNewPage().set(lastPage);
+				pages.put(pageStart, m_pages.get(pageStart));
+				return false;
+			}
+
+			final PageType page = PageType.Factory.newInstance();
+
+			if (buildPage(page, requests) && finished) {
+				pages.put(pageStart, new RecordedPage(page));
+			}
+
+			httpRecording.addNewPage().set(page);
+			return true;
+		}
+
+		/**
+		 * Build a page from its requests.
+		 * 
+		 * @param page
+		 *            page to add the requests to
+		 * @param requests
+		 *            requests which passed the filters
+		 * @return true if all the requests are packed, so that the page can not change any more
+		 */
+		private boolean buildPage(PageType page, List<RecordedRequest> requests) {
+			boolean complete = true;
+
+			for (RecordedRequest recordedRequest : requests) {
+				complete &= recordedRequest.isPacked();
+
+				final RequestType request = recordedRequest.get();
+
+				if (request == null) {
+					// Deleted since it was filtered.
+					complete = false;
+					continue;
+				}
+
+				final RequestType pageRequest = page.addNewRequest();
+				pageRequest.set(request);
+
+				final ResponseType response = pageRequest.getResponse();
+
+				// Crude but effective pagination heuristics.
+				switch (response.getStatusCode()) {
+				case HttpURLConnection.HTTP_MOVED_PERM:
+				case HttpURLConnection.HTTP_MOVED_TEMP:
+				case 307:
+					pageRequest.setAnnotation("Expecting " + response.getStatusCode() + " '"
+									+ response.getReasonPhrase() + "'");
+					break;
+				default:
+				}
+			}
+
+			return complete;
+		}
+	}
+
+	/**
+	 * A finished page as it was last built. The page is a copy of its packed requests, so it is held
+	 * softly and built again if the memory runs short.
+	 */
+	private static final class RecordedPage {
+		private final SoftReference<PageType> m_page;
+
+		public RecordedPage(PageType page) {
+			m_page = new SoftReference<PageType>(page);
+		}
+
+		/**
+		 * Get the page.
+		 * 
+		 * @return page, which must not be changed, or {@code null} if it was released
+		 */
+		public PageType get() {
+			return m_page.get();
+		}
+	}
+
+	/**
+	 * What the filters of the recording look at. It is kept with a packed request, so that the
+	 * request is not rebuilt to be filtered.
+	 */
+	private static final class FilterKeys {
+		private final boolean m_newPageSlot;
+		private final String m_uriId;
+		private final String m_path;
+		private final boolean m_body;
+		private final String m_contentType;
+		private final boolean m_response;
+
+		public FilterKeys(RequestType request) {
+			m_newPageSlot = NEW_PAGE_SLOT.equals(request.getDescription());
+
+			if (m_newPageSlot) {
+				m_uriId = null;
+				m_path = null;
+			} else {
+				m_uriId = request.getUri().getExtends();
+				final ParsedURIPartTypeImpl path = cast(request.getUri().getPath());
+				m_path = path.getStringValue();
+			}
+
+			m_body = request.getBody() != null;
+			m_contentType = m_body ? request.getBody().getContentType() : null;
+			m_response = request.getResponse() != null;
+		}
+
+		public boolean isNewPageSlot() {
+			return m_newPageSlot;
+		}
+
+		public String getUriId() {
+			return m_uriId;
+		}
+
+		public String getPath() {
+			return m_path;
+		}
+
+		public boolean hasBody() {
+			return m_body;
+		}
+
+		public String getContentType() {
+			return m_contentType;
+		}
+
+		public boolean hasResponse() {
+			return m_response;
+		}
+	}
+
+	/**
+	 * A request of the log, kept as it is while it is recorded, and packed once it is complete.
+	 */
+	private static final class RecordedRequest {
+		// Finds the packed request to delete, without keeping the request itself.
+		private final WeakReference<RequestType> m_source;
+		private volatile RequestType m_request;
+		private volatile PackedRequest m_packedRequest;
+		private volatile FilterKeys m_filterKeys;
+
+		public RecordedRequest(RequestType request) {
+			m_source = new WeakReference<RequestType>(request);
+			m_request = request;
+		}
+
+		public void pack(PackedRequest.Pool pool) {
+			final RequestType request = m_request;
+
+			if (request != null) {
+				// Published before the request is released, see get().
+				m_filterKeys = new FilterKeys(request);
+				m_packedRequest = PackedRequest.pack(request, pool);
+				m_request = null;
+			}
+		}
+
+		public void delete() {
+			m_request = null;
+			m_packedRequest = null;
+		}
+
+		public boolean isFor(RequestType request) {
+			return m_source.get() == request;
+		}
+
+		public boolean isPacked() {
+			return m_request == null && m_packedRequest != null;
+		}
+
+		/**
+		 * Get the request.
+		 * 
+		 * @return request, a new one if it was packed, or {@code null} if it was deleted
+		 */
+		public RequestType get() {
+			final RequestType request = m_request;
+
+			if (request != null) {
+				return request;
+			}
+
+			final PackedRequest packedRequest = m_packedRequest;
+			return packedRequest != null ? packedRequest.unpack() : null;
+		}
+
+		/**
+		 * Get what the filters look at.
+		 * 
+		 * @return filter keys, or {@code null} if the request was deleted
+		 */
+		public FilterKeys getFilterKeys() {
+			final RequestType request = m_request;
+
+			if (request != null) {
+				return new FilterKeys(request);
+			}
+
+			return m_packedRequest != null ? m_filterKeys : null;
 		}
 	}
 
@@ -694,95 +1096,102 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 	 * value for a particular token name, allowing the "newValue" attribute of token references to
 	 * be set appropriately. Token names are deemed to have global (recording) scope; a simple model
 	 * that might not be right for every use case.
+	 * 
+	 * <p>
+	 * A token name is looked up without locking; only a new token is created under the lock.
+	 * </p>
 	 */
 	private final class TokenMap {
-		private final Map<String, TokenLastValuePair> m_map = new HashMap<String, TokenLastValuePair>();
+		private final ConcurrentMap<String, TokenLastValuePair> m_map =
+						new ConcurrentHashMap<String, TokenLastValuePair>();
 		private final Map<String, Integer> m_uniqueTokenIDs = new HashMap<String, Integer>();
 
 		public void add(String name, String value, TokenReferenceType tokenReference) {
 
-			final TokenLastValuePair tokenValuePair;
+			TokenLastValuePair tokenValuePair = m_map.get(name);
 
-			synchronized (m_map) {
-				final TokenLastValuePair existing = m_map.get(name);
+			if (tokenValuePair == null) {
+				tokenValuePair = newToken(name);
+			}
 
-				if (existing == null) {
-					final TokenType newToken;
+			tokenReference.setTokenId(tokenValuePair.getToken().getTokenId());
 
-					synchronized (m_recordingDocument) {
-						newToken = m_recordingDocument.getHttpRecording().addNewToken();
-					}
+			// The connections record the same token concurrently. Whichever reference
+			// changes the value must carry it.
+			synchronized (tokenValuePair) {
+				if (!value.equals(tokenValuePair.getLastValue())) {
+					tokenReference.setNewValue(value);
+					tokenValuePair.setLastValue(value);
+				}
+			}
 
-					// Build a tokenID that is also a reasonable identifier.
-					final StringBuilder tokenID = new StringBuilder();
-					tokenID.append("token_");
+			tokenValuePair.addSource(tokenReference.getSource());
+		}
 
-					for (int i = 0; i < name.length(); ++i) {
-						final char c = name.charAt(i);
+		private TokenLastValuePair newToken(String name) {
+			synchronized (m_recordingDocument) {
+				final TokenLastValuePair existing = m_map.get(name);
 
-						// Python is quite restrictive on what it allows in identifiers.
-						if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_') {
-							tokenID.append(c);
-						}
-					}
+				if (existing != null) {
+					return existing;
+				}
+
+				final TokenType newToken = m_recordingDocument.getHttpRecording().addNewToken();
+
+				// Build a tokenID that is also a reasonable identifier.
+				final StringBuilder tokenID = new StringBuilder();
+				tokenID.append("token_");
 
-					final String partToken = tokenID.toString();
-					final Integer existingValue = m_uniqueTokenIDs.get(partToken);
+				for (int i = 0; i < name.length(); ++i) {
+					final char c = name.charAt(i);
 
-					if (existingValue != null) {
-						tokenID.append(existingValue);
-						m_uniqueTokenIDs.put(partToken, existingValue.intValue() + 1);
-					} else {
-						m_uniqueTokenIDs.put(partToken, 2);
+					// Python is quite restrictive on what it allows in identifiers.
+					if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_') {
+						tokenID.append(c);
 					}
+				}
 
-					newToken.setTokenId(tokenID.toString());
-					newToken.setName(name);
+				final String partToken = tokenID.toString();
+				final Integer existingValue = m_uniqueTokenIDs.get(partToken);
 
-					tokenValuePair = new TokenLastValuePair(newToken);
-					m_map.put(name, tokenValuePair);
+				if (existingValue != null) {
+					tokenID.append(existingValue);
+					m_uniqueTokenIDs.put(partToken, existingValue.intValue() + 1);
 				} else {
-					tokenValuePair = existing;
+					m_uniqueTokenIDs.put(partToken, 2);
 				}
-			}
 
-			tokenReference.setTokenId(tokenValuePair.getToken().getTokenId());
+				newToken.setTokenId(tokenID.toString());
+				newToken.setName(name);
 
-			if (!value.equals(tokenValuePair.getLastValue())) {
-				tokenReference.setNewValue(value);
-				tokenValuePair.setLastValue(value);
+				final TokenLastValuePair result = new TokenLastValuePair(newToken);
+				m_map.put(name, result);
+				return result;
 			}
-
-			tokenValuePair.addSource(tokenReference.getSource());
 		}
 
 		public String getLastValue(String name) {
 
-			final TokenLastValuePair existing;
-
-			synchronized (m_map) {
-				existing = m_map.get(name);
-			}
+			final TokenLastValuePair existing = m_map.get(name);
 
 			return existing != null ? existing.getLastValue() : null;
 		}
 
 		public boolean exists(String name, String source) {
 
-			final TokenLastValuePair existing;
-
-			synchronized (m_map) {
-				existing = m_map.get(name);
-			}
+			final TokenLastValuePair existing = m_map.get(name);
 
 			return existing != null && existing.hasAReferenceWithSource(source);
 		}
 	}
 
 	private static final class TokenLastValuePair {
+		// The references in the requests have no source, and the concurrent set takes no null.
+		private static final String NO_SOURCE = "";
+
 		private final TokenType m_token;
-		private final Set<String> m_sources = new HashSet<String>();
-		private String m_lastValue;
+		private final Set<String> m_sources = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		private volatile String m_lastValue;
 
 		public TokenLastValuePair(TokenType token) {
 			m_token = token;
@@ -801,11 +1210,11 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		}
 
 		public void addSource(String source) {
-			m_sources.add(source);
+			m_sources.add(source != null ? source : NO_SOURCE);
 		}
 
 		public boolean hasAReferenceWithSource(String source) {
-			return m_sources.contains(source);
+			return m_sources.contains(source != null ? source : NO_SOURCE);
 		}
 	}
 
@@ -814,13 +1223,18 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 		m_requestList.delete(requestToBeDeleted);
 	}
 
+	@Override
+	public void requestEnded(RequestType request) {
+		m_requestList.end(request);
+	}
+
 	/**
 	 * Set new page request.
 	 * 
 	 * @since 1.0
 	 */
 	public void setNewPageRequested() {
-		newPageRequested = true;
+		newPageRequested.set(true);
 	}
 
 	@Override
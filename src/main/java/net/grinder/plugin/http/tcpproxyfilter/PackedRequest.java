@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import net.grinder.plugin.http.xml.HttpRecordingDocument;
+import net.grinder.plugin.http.xml.RequestType;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlCursor.TokenType;
+
+/**
+ * Compact form of a recorded request whose exchange is complete.
+ *
+ * <p>
+ * An XMLBeans {@link RequestType} is a store of its own, several kilobytes for a request with a
+ * dozen headers. Once nothing changes the request any more, it is reduced to the tokens of its
+ * XML infoset: one byte per token for its kind, and a packed array of the element and attribute
+ * names, attribute values and texts. The names and the name and value pairs of the headers come
+ * from a {@link Pool} shared by the recording, so the ones which repeat from a request to the next
+ * are held once. The other attribute values, such as the URIs and the tokens, seldom repeat and
+ * are held by the request itself, so the pool does not grow with every request. The request is
+ * rebuilt only when the recording is generated.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class PackedRequest {
+	private static final byte START = 0;
+	private static final byte ATTRIBUTE = 1;
+	private static final byte TEXT = 2;
+	private static final byte COMMENT = 3;
+	private static final byte END = 4;
+	private static final byte HEADER = 5;
+
+	private static final QName HEADER_NAME = new QName(HttpRecordingDocument.type.getDocumentElementName()
+					.getNamespaceURI(), "header");
+	private static final QName NAME_NAME = new QName("name");
+	private static final QName VALUE_NAME = new QName("value");
+
+	private final byte[] m_tokens;
+	private final Object[] m_values;
+
+	private PackedRequest(byte[] tokens, Object[] values) {
+		m_tokens = tokens;
+		m_values = values;
+	}
+
+	/**
+	 * Pack a request.
+	 *
+	 * @param request
+	 *            request. It must not be changed while it is packed.
+	 * @param pool
+	 *            pool of the names and the headers
+	 * @return packed request
+	 */
+	static PackedRequest pack(RequestType request, Pool pool) {
+		final Builder builder = new Builder();
+		final XmlCursor cursor = request.newCursor();
+
+		try {
+			// Whether the name and value attributes of the current element are packed as a header.
+			boolean header = false;
+
+			for (TokenType token = cursor.toNextToken(); !token.isEnddoc(); token = cursor.toNextToken()) {
+				if (token.isStart()) {
+					final QName name = cursor.getName();
+					builder.add(START, pool.intern(name));
+					header = false;
+
+					if (HEADER_NAME.equals(name)) {
+						final String headerName = cursor.getAttributeText(NAME_NAME);
+						final String headerValue = cursor.getAttributeText(VALUE_NAME);
+
+						if (headerName != null && headerValue != null) {
+							builder.add(HEADER, pool.intern(new Header(headerName, headerValue)));
+							header = true;
+						}
+					}
+				} else if (token.isAttr()) {
+					final QName name = cursor.getName();
+
+					if (!header || !NAME_NAME.equals(name) && !VALUE_NAME.equals(name)) {
+						builder.add(ATTRIBUTE, pool.intern(name));
+						builder.add(ATTRIBUTE, cursor.getTextValue());
+					}
+				} else if (token.isText()) {
+					builder.add(TEXT, cursor.getChars());
+				} else if (token.isComment()) {
+					builder.add(COMMENT, cursor.getTextValue());
+				} else if (token.isEnd()) {
+					builder.add(END, null);
+				}
+
+				// The namespace declarations are generated again when the request
+				// is saved, and the requests have no processing instructions.
+			}
+		} finally {
+			cursor.dispose();
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Rebuild the request.
+	 *
+	 * @return new request, equal to the one which was packed
+	 */
+	RequestType unpack() {
+		final RequestType result = RequestType.Factory.newInstance();
+		final XmlCursor cursor = result.newCursor();
+
+		try {
+			// Everything is inserted before the end of the document.
+			cursor.toNextToken();
+
+			for (int i = 0; i < m_tokens.length; ++i) {
+				switch (m_tokens[i]) {
+				case START:
+					cursor.beginElement((QName) m_values[i]);
+					break;
+
+				case ATTRIBUTE:
+					cursor.insertAttributeWithValue((QName) m_values[i], (String) m_values[i + 1]);
+					++i;
+					break;
+
+				case HEADER:
+					final Header header = (Header) m_values[i];
+					cursor.insertAttributeWithValue(NAME_NAME, header.m_name);
+					cursor.insertAttributeWithValue(VALUE_NAME, header.m_value);
+					break;
+
+				case TEXT:
+					cursor.insertChars((String) m_values[i]);
+					break;
+
+				case COMMENT:
+					cursor.insertComment((String) m_values[i]);
+					break;
+
+				case END:
+					cursor.toNextToken();
+					break;
+
+				default:
+					throw new AssertionError(m_tokens[i]);
+				}
+			}
+		} finally {
+			cursor.dispose();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Pool of the names and the headers of the requests of a recording.
+	 */
+	static final class Pool {
+		private final ConcurrentMap<Object, Object> m_values = new ConcurrentHashMap<Object, Object>();
+
+		@SuppressWarnings("unchecked")
+		<T> T intern(T value) {
+			final Object existing = m_values.putIfAbsent(value, value);
+			return existing != null ? (T) existing : value;
+		}
+	}
+
+	/**
+	 * Name and value of a header.
+	 */
+	private static final class Header {
+		private final String m_name;
+		private final String m_value;
+
+		public Header(String name, String value) {
+			m_name = name;
+			m_value = value;
+		}
+
+		@Override
+		public int hashCode() {
+			return m_name.hashCode() * 31 + m_value.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+
+			if (!(o instanceof Header)) {
+				return false;
+			}
+
+			final Header other = (Header) o;
+			return m_name.equals(other.m_name) && m_value.equals(other.m_value);
+		}
+	}
+
+	private static final class Builder {
+		private byte[] m_tokens = new byte[64];
+		private Object[] m_values = new Object[64];
+		private int m_length;
+
+		public void add(byte token, Object value) {
+			if (m_length == m_tokens.length) {
+				m_tokens = Arrays.copyOf(m_tokens, m_length * 2);
+				m_values = Arrays.copyOf(m_values, m_length * 2);
+			}
+
+			m_tokens[m_length] = token;
+			m_values[m_length] = value;
+			++m_length;
+		}
+
+		public PackedRequest build() {
+			return new PackedRequest(Arrays.copyOf(m_tokens, m_length), Arrays.copyOf(m_values, m_length));
+		}
+	}
+}
@@ -16,13 +16,28 @@ package net.grinder.plugin.http.tcpproxyfilter;
 import static net.grinder.util.CollectionUtils.newHashMap;
 import static net.grinder.util.Preconditions.checkNotNull;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
 import net.grinder.plugin.http.xml.BaseURIType;
@@ -40,10 +55,14 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import freemarker.cache.StringTemplateLoader;
+import freemarker.core.Environment;
 import freemarker.template.Configuration;
 import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
 
 /**
  * HTTP Recoding Processor with Freemarker template.
@@ -53,7 +72,12 @@ import freemarker.template.Template;
  */
 public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultProcessor {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ProcessHTTPRecordingWithFreeMarker.class);
-	private StringTemplateLoader loader = new StringTemplateLoader();
+	private static final String TEMPLATE_ENCODING = "UTF-8";
+
+	private final Configuration m_configuration;
+	private final Map<String, CachedTemplate> m_templates = newHashMap();
+	private volatile File m_templateDirectory;
+	private volatile int m_renderThreads = 1;
 	private Writer m_writer;
 	private Set<GenerationOption> options;
 
@@ -61,33 +85,67 @@ public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultPr
 	 * Constructor.
 	 */
 	public ProcessHTTPRecordingWithFreeMarker() {
+		DefaultObjectWrapper objectWrapper = new DefaultObjectWrapper();
+		objectWrapper.setExposureLevel(DefaultObjectWrapper.EXPOSE_ALL);
+		m_configuration = new Configuration();
+		m_configuration.setObjectWrapper(objectWrapper);
+		m_configuration.setDefaultEncoding(TEMPLATE_ENCODING);
 	}
 
 	/**
-	 * Prepare a freemarker template for the given language.
+	 * Get a template.
+	 * 
+	 * <p>
+	 * A template in the template directory takes precedence over the one of the recorder. It is
+	 * parsed again only when its file is modified or removed.
+	 * </p>
 	 * 
-	 * @param lang
-	 *            language to be used in the template
-	 * @return prepared template
+	 * @param templateName
+	 *            template name, such as {@link Language#getTemplateName()}
+	 * @return parsed template
+	 * @throws IOException
+	 *             if the template can not be read or parsed
 	 */
-	private Template prepareTemplate(Language lang) {
-		InputStream resourceAsStream = ProcessHTTPRecordingWithFreeMarker.class.getResourceAsStream("/template/"
-						+ lang.getTemplateName() + ".ftl");
+	private synchronized Template getTemplate(String templateName) throws IOException {
+		final String name = templateName + ".ftl";
+		final File directory = m_templateDirectory;
+		final File file = directory == null ? null : new File(directory, name);
+		final CachedTemplate cached = m_templates.get(name);
+
+		if (file != null && file.isFile()) {
+			final long lastModified = file.lastModified();
+
+			if (cached != null && file.equals(cached.m_file) && cached.m_lastModified == lastModified) {
+				return cached.m_template;
+			}
+
+			LOGGER.info("Use the template {}", file.getAbsolutePath());
+			final Template template = parseTemplate(name, new FileInputStream(file));
+			m_templates.put(name, new CachedTemplate(template, file, lastModified));
+			return template;
+		}
+
+		if (cached != null && cached.m_file == null) {
+			return cached.m_template;
+		}
+
+		final InputStream resourceAsStream = ProcessHTTPRecordingWithFreeMarker.class
+						.getResourceAsStream("/template/" + name);
+		if (resourceAsStream == null) {
+			throw new FileNotFoundException("Template " + name + " is not found");
+		}
+		final Template template = parseTemplate(name, resourceAsStream);
+		m_templates.put(name, new CachedTemplate(template, null, 0));
+		return template;
+	}
+
+	private Template parseTemplate(String name, InputStream inputStream) throws IOException {
+		final Reader reader = new InputStreamReader(inputStream, TEMPLATE_ENCODING);
 		try {
-			loader.putTemplate(lang.getTemplateName(), IOUtils.toString(resourceAsStream));
-			Configuration freemarkerConfig = new Configuration();
-			freemarkerConfig.setTemplateLoader(loader);
-			DefaultObjectWrapper objectWrapper = new DefaultObjectWrapper();
-			objectWrapper.setExposureLevel(DefaultObjectWrapper.EXPOSE_ALL);
-			freemarkerConfig.setObjectWrapper(objectWrapper);
-			return freemarkerConfig.getTemplate(lang.getTemplateName());
-
-		} catch (IOException e) {
-			LOGGER.error("basic template load error", e);
+			return new Template(name, reader, m_configuration, TEMPLATE_ENCODING);
 		} finally {
-			IOUtils.closeQuietly(resourceAsStream);
+			IOUtils.closeQuietly(reader);
 		}
-		return null;
 	}
 
 	/**
@@ -111,7 +169,7 @@ public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultPr
 					break;
 				}
 			}
-			Template template = prepareTemplate(lang);
+			Template template = getTemplate(lang.getTemplateName());
 			Map<String, Object> map = newHashMap();
 			HTTPRecordingType httpRecording = result.getHttpRecording();
 			PageType[] pageArray = filterEmptyPage(httpRecording.getPageArray());
@@ -128,6 +186,8 @@ public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultPr
 			map.put("pages", pageArray);
 			map.put("meta", httpRecording.getMetadata());
 			map.put("token", buildTokenMap);
+			map.put("renderPages", new PageRenderer(getTemplate(lang.getPageTemplateName()), map, pageArray,
+							m_renderThreads));
 			template.process(map, m_writer);
 		} catch (Exception e) {
 			LOGGER.error("Error while fetching template for quick start", e);
@@ -201,6 +261,28 @@ public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultPr
 		this.m_writer = writer;
 	}
 
+	/**
+	 * Set the directory of the user templates. A {@code <language>_template.ftl} file in it is used
+	 * instead of the template of the recorder.
+	 * 
+	 * @param templateDirectory
+	 *            template directory, or {@code null} to use only the templates of the recorder
+	 */
+	public void setTemplateDirectory(File templateDirectory) {
+		this.m_templateDirectory = templateDirectory;
+	}
+
+	/**
+	 * Set the number of the threads which render the page methods. With more than one, the pages of
+	 * a large recording are rendered concurrently. The script is the same either way.
+	 * 
+	 * @param renderThreads
+	 *            render thread count
+	 */
+	public void setRenderThreads(int renderThreads) {
+		this.m_renderThreads = renderThreads;
+	}
+
 	/**
 	 * Set the recoding options used in the code generation.
 	 * 
@@ -211,4 +293,123 @@ public class ProcessHTTPRecordingWithFreeMarker implements HTTPRecordingResultPr
 		this.options = options;
 	}
 
+	/**
+	 * Directive which writes the page methods, in the order of the pages. Each page is rendered
+	 * with the page template, in its own environment.
+	 * 
+	 * <p>
+	 * With more than one render thread, the pages are rendered concurrently, and each one is
+	 * written as soon as it and the pages before it are complete. Nothing a page renders depends on
+	 * the other pages, so the output is the same as the serial one. Each page is copied before it
+	 * is rendered, since the accessors of a document all lock it, and only twice as many pages as
+	 * threads are rendered ahead of the output.
+	 * </p>
+	 */
+	private static final class PageRenderer implements TemplateDirectiveModel {
+		private final Template m_template;
+		private final Map<String, Object> m_model;
+		private final PageType[] m_pages;
+		private final int m_threads;
+
+		public PageRenderer(Template template, Map<String, Object> model, PageType[] pages, int threads) {
+			m_template = template;
+			m_model = new HashMap<String, Object>(model);
+			m_pages = pages;
+			m_threads = threads;
+		}
+
+		@Override
+		public void execute(Environment env, @SuppressWarnings("rawtypes") Map params, TemplateModel[] loopVars,
+						TemplateDirectiveBody body) throws TemplateException, IOException {
+			final Writer out = env.getOut();
+
+			if (m_threads <= 1 || m_pages.length <= 1) {
+				for (int i = 0; i < m_pages.length; ++i) {
+					out.write(render(m_pages[i], i));
+				}
+
+				return;
+			}
+
+			final int threads = Math.min(m_threads, m_pages.length);
+			final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+			try {
+				// Bounded, so that the fragments waiting to be written do not pile up.
+				final int maxInFlight = threads * 2;
+				final Queue<Future<String>> fragments = new ArrayDeque<Future<String>>(maxInFlight);
+
+				for (int i = 0; i < m_pages.length; ++i) {
+					if (fragments.size() == maxInFlight) {
+						out.write(get(fragments.remove(), env));
+					}
+
+					// A page is copied to a document of its own, which is locked only by its worker.
+					final PageType page = (PageType) m_pages[i].copy();
+					final int index = i;
+					fragments.add(executor.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return render(page, index);
+						}
+					}));
+				}
+
+				while (!fragments.isEmpty()) {
+					out.write(get(fragments.remove(), env));
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		private String render(PageType page, int index) throws TemplateException, IOException {
+			final Map<String, Object> model = new HashMap<String, Object>(m_model);
+			model.put("each_page", page);
+			model.put("each_page_index", index);
+			model.put("each_page_has_next", index + 1 < m_pages.length);
+
+			final StringWriter writer = new StringWriter();
+			m_template.process(model, writer);
+			return writer.toString();
+		}
+
+		private static String get(Future<String> fragment, Environment env) throws TemplateException, IOException {
+			try {
+				return fragment.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while rendering the pages");
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+
+				if (cause instanceof TemplateException) {
+					throw (TemplateException) cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+
+				throw new TemplateException((Exception) cause, env);
+			}
+		}
+	}
+
+	/**
+	 * Parsed template, with the file it was read from.
+	 */
+	private static final class CachedTemplate {
+		private final Template m_template;
+		private final File m_file;
+		private final long m_lastModified;
+
+		public CachedTemplate(Template template, File file, long lastModified) {
+			m_template = template;
+			m_file = file;
+			m_lastModified = lastModified;
+		}
+	}
 }
@@ -0,0 +1,425 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import net.grinder.util.AttributeStringParser;
+
+/**
+ * Finds the token candidates of a response body in a single pass over its bytes.
+ *
+ * <p>
+ * The markers {@code href}, {@code action}, {@code <input} and the quoted names of the
+ * configured JSON keys are found with an Aho-Corasick automaton, so every byte costs one table
+ * lookup whatever the number of the markers. After a marker, a small state machine reads the
+ * attribute value, the input tag or the JSON string value, and hands it to a {@link Listener}.
+ * Anything unexpected sends the scanner back to the automaton. The markers are matched case
+ * insensitively, and the bytes are decoded as ISO8859_1.
+ * </p>
+ *
+ * <p>
+ * The extractor is immutable and shared by all the connections; each body gets its own
+ * {@link #newScanner(Listener) scanner}.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class TokenExtractor {
+
+	/**
+	 * Receives the token candidates of a body.
+	 */
+	interface Listener {
+
+		/**
+		 * Called for the value of a {@code href} or {@code action} attribute.
+		 *
+		 * @param uri
+		 *            attribute value
+		 */
+		void uri(String uri);
+
+		/**
+		 * Called for a hidden input, or a configured JSON key with a string value.
+		 *
+		 * @param name
+		 *            input or key name
+		 * @param value
+		 *            value
+		 */
+		void nameValue(String name, String value);
+	}
+
+	/** Default length of the longest value which is extracted. */
+	static final int DEFAULT_MAX_VALUE_LENGTH = 0x100000;
+
+	private static final int ALPHABET = 256;
+
+	private static final int MARKER_HREF = 0;
+	private static final int MARKER_ACTION = 1;
+	private static final int MARKER_INPUT = 2;
+	private static final int FIRST_KEY_MARKER = 3;
+
+	private static final int SEARCH = 0;
+	private static final int ATTRIBUTE_EQUALS = 1;
+	private static final int ATTRIBUTE_QUOTE = 2;
+	private static final int ATTRIBUTE_VALUE = 3;
+	private static final int INPUT_SPACE = 4;
+	private static final int INPUT_TAG = 5;
+	private static final int KEY_COLON = 6;
+	private static final int KEY_QUOTE = 7;
+	private static final int KEY_VALUE = 8;
+	private static final int KEY_ESCAPE = 9;
+
+	private final AttributeStringParser m_attributeStringParser;
+	private final String[] m_keys;
+	private final int m_maxValueLength;
+
+	// The automaton. Each row is a state, and the failure transitions are
+	// resolved, so a byte never takes more than one step.
+	private final int[][] m_transitions;
+	private final int[] m_markers;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param attributeStringParser
+	 *            parser of the input tags
+	 * @param keys
+	 *            names of the JSON keys whose string values are tokens
+	 * @param maxValueLength
+	 *            length of the longest value or input tag which is extracted. It bounds the memory
+	 *            a scanner uses.
+	 */
+	TokenExtractor(AttributeStringParser attributeStringParser, String[] keys, int maxValueLength) {
+		m_attributeStringParser = attributeStringParser;
+		m_keys = keys.clone();
+		m_maxValueLength = maxValueLength;
+
+		final List<byte[]> markers = newArrayList();
+		markers.add(toLowerCaseBytes("href"));
+		markers.add(toLowerCaseBytes("action"));
+		markers.add(toLowerCaseBytes("<input"));
+
+		for (String each : m_keys) {
+			markers.add(toLowerCaseBytes("\"" + each + "\""));
+		}
+
+		final List<int[]> transitions = newArrayList();
+		final List<Integer> outputs = newArrayList();
+		transitions.add(newRow());
+		outputs.add(-1);
+
+		// The trie. Zero is the root, so it also stands for "no child".
+		for (int marker = 0; marker < markers.size(); ++marker) {
+			int state = 0;
+
+			for (byte each : markers.get(marker)) {
+				final int b = each & 0xff;
+
+				if (transitions.get(state)[b] == 0) {
+					transitions.get(state)[b] = transitions.size();
+					transitions.add(newRow());
+					outputs.add(-1);
+				}
+
+				state = transitions.get(state)[b];
+			}
+
+			if (outputs.get(state) < 0) {
+				outputs.set(state, marker);
+			}
+		}
+
+		// Breadth first, each state takes the missing transitions and the marker of
+		// its failure state.
+		final int[] failures = new int[transitions.size()];
+		final Queue<Integer> queue = new LinkedList<Integer>();
+
+		for (int b = 0; b < ALPHABET; ++b) {
+			if (transitions.get(0)[b] != 0) {
+				queue.add(transitions.get(0)[b]);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			final int state = queue.remove();
+
+			if (outputs.get(state) < 0) {
+				outputs.set(state, outputs.get(failures[state]));
+			}
+
+			for (int b = 0; b < ALPHABET; ++b) {
+				final int next = transitions.get(state)[b];
+
+				if (next != 0) {
+					failures[next] = transitions.get(failures[state])[b];
+					queue.add(next);
+				} else {
+					transitions.get(state)[b] = transitions.get(failures[state])[b];
+				}
+			}
+		}
+
+		m_transitions = transitions.toArray(new int[transitions.size()][]);
+		m_markers = new int[outputs.size()];
+
+		for (int i = 0; i < m_markers.length; ++i) {
+			m_markers[i] = outputs.get(i);
+		}
+
+		// Upper case bytes take the transitions of the lower case ones.
+		for (int[] each : m_transitions) {
+			for (int b = 'A'; b <= 'Z'; ++b) {
+				each[b] = each[Character.toLowerCase(b)];
+			}
+		}
+	}
+
+	private static int[] newRow() {
+		return new int[ALPHABET];
+	}
+
+	private static byte[] toLowerCaseBytes(String marker) {
+		try {
+			return marker.toLowerCase().getBytes("ISO8859_1");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Get the names of the JSON keys whose string values are tokens.
+	 *
+	 * @return key names
+	 */
+	String[] getKeys() {
+		return m_keys.clone();
+	}
+
+	/**
+	 * Create a scanner for a body.
+	 *
+	 * @param listener
+	 *            listener which receives the token candidates
+	 * @return scanner which takes the decoded bytes of the body
+	 */
+	ByteSink newScanner(Listener listener) {
+		return new Scanner(listener);
+	}
+
+	private static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * The state of the extraction from one body.
+	 */
+	private final class Scanner implements ByteSink {
+		private final Listener m_listener;
+
+		private int m_mode = SEARCH;
+		private int m_state;
+		private int m_marker;
+		private byte[] m_value = new byte[64];
+		private int m_valueLength;
+
+		public Scanner(Listener listener) {
+			m_listener = listener;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			for (int i = offset; i < offset + length; ++i) {
+				next(bytes[i] & 0xff);
+			}
+		}
+
+		private void next(int b) {
+			switch (m_mode) {
+			case SEARCH:
+				m_state = m_transitions[m_state][b];
+
+				if (m_markers[m_state] >= 0) {
+					start(m_markers[m_state]);
+				}
+
+				break;
+
+			case ATTRIBUTE_EQUALS:
+				if (b == '=') {
+					m_mode = ATTRIBUTE_QUOTE;
+				} else if (!isWhitespace(b)) {
+					search(b);
+				}
+
+				break;
+
+			case ATTRIBUTE_QUOTE:
+				if (b == '"' || b == '\'') {
+					m_mode = ATTRIBUTE_VALUE;
+				} else if (!isWhitespace(b)) {
+					search(b);
+				}
+
+				break;
+
+			case ATTRIBUTE_VALUE:
+				if (b == '"' || b == '\'') {
+					m_mode = SEARCH;
+					m_listener.uri(value());
+				} else {
+					append(b);
+				}
+
+				break;
+
+			case INPUT_SPACE:
+				if (isWhitespace(b)) {
+					m_mode = INPUT_TAG;
+					append(b);
+				} else {
+					search(b);
+				}
+
+				break;
+
+			case INPUT_TAG:
+				if (b == '>') {
+					m_mode = SEARCH;
+					input("<input" + value() + ">");
+				} else {
+					append(b);
+				}
+
+				break;
+
+			case KEY_COLON:
+				if (b == ':') {
+					m_mode = KEY_QUOTE;
+				} else if (!isWhitespace(b)) {
+					search(b);
+				}
+
+				break;
+
+			case KEY_QUOTE:
+				if (b == '"') {
+					m_mode = KEY_VALUE;
+				} else if (!isWhitespace(b)) {
+					search(b);
+				}
+
+				break;
+
+			case KEY_VALUE:
+				if (b == '\\') {
+					m_mode = KEY_ESCAPE;
+				} else if (b == '"') {
+					m_mode = SEARCH;
+					m_listener.nameValue(m_keys[m_marker - FIRST_KEY_MARKER], value());
+				} else {
+					append(b);
+				}
+
+				break;
+
+			case KEY_ESCAPE:
+				// Only the escapes which stand for themselves are decoded.
+				if (b != '"' && b != '\\' && b != '/') {
+					append('\\');
+				}
+
+				m_mode = KEY_VALUE;
+				append(b);
+				break;
+
+			default:
+				throw new AssertionError(m_mode);
+			}
+		}
+
+		private void start(int marker) {
+			m_marker = marker;
+			m_valueLength = 0;
+			m_state = 0;
+
+			if (marker == MARKER_HREF || marker == MARKER_ACTION) {
+				m_mode = ATTRIBUTE_EQUALS;
+			} else if (marker == MARKER_INPUT) {
+				m_mode = INPUT_SPACE;
+			} else {
+				m_mode = KEY_COLON;
+			}
+		}
+
+		/**
+		 * Go back to the automaton, which starts with the given byte.
+		 */
+		private void search(int b) {
+			m_mode = SEARCH;
+			m_state = 0;
+			next(b);
+		}
+
+		private void append(int b) {
+			if (m_valueLength == m_maxValueLength) {
+				// Too long to be a token.
+				search(b);
+				return;
+			}
+
+			if (m_valueLength == m_value.length) {
+				m_value = Arrays.copyOf(m_value, Math.min(m_value.length * 2, m_maxValueLength));
+			}
+
+			m_value[m_valueLength++] = (byte) b;
+		}
+
+		private String value() {
+			try {
+				return new String(m_value, 0, m_valueLength, "ISO8859_1");
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		private void input(String tag) {
+			final AttributeStringParser.AttributeMap map = m_attributeStringParser.parse(tag);
+
+			final String name = map.get("name");
+			final String value = map.get("value");
+
+			if ("hidden".equalsIgnoreCase(trim(map.get("type"))) && name != null && value != null) {
+				m_listener.nameValue(name, value);
+			}
+		}
+
+		@Override
+		public void end() {
+			m_value = null;
+		}
+	}
+
+	private static String trim(String s) {
+		return s == null ? null : s.trim();
+	}
+}
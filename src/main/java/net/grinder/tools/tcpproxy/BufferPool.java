@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of the I/O buffers used by the proxy engine and the connection handlers.
+ *
+ * <p>
+ * Every buffer has the same size, which is large enough to hold the largest reasonable set of
+ * HTTP headers. A buffer which is acquired while the pool is empty is newly allocated, and a
+ * buffer which is released while the pool is full is left to the garbage collector, so the pool
+ * never blocks.
+ * </p>
+ *
+ * <p>
+ * {@link #acquire()} always returns a heap buffer, because most users hand the backing array to
+ * streams and filters. {@link #acquireForChannel()} returns a direct buffer if the pool is
+ * configured for them; it should only be used for reads from a
+ * {@link java.nio.channels.SocketChannel}.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class BufferPool {
+
+	/** Size of the pooled buffers. */
+	public static final int BUFFER_SIZE = 40960;
+
+	/** Default maximum number of the buffers kept by each pool. */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final boolean m_direct;
+	private final BlockingQueue<ByteBuffer> m_heapBuffers;
+	private final BlockingQueue<ByteBuffer> m_directBuffers;
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_outstanding = new AtomicLong();
+
+	/**
+	 * Constructor for a pool of heap buffers with the default capacity.
+	 */
+	public BufferPool() {
+		this(DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            maximum number of idle buffers kept by the pool
+	 * @param direct
+	 *            true if {@link #acquireForChannel()} should return direct buffers
+	 */
+	public BufferPool(int capacity, boolean direct) {
+		m_direct = direct;
+		m_heapBuffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+		m_directBuffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Acquire a heap buffer. The buffer is cleared and has a backing array.
+	 *
+	 * @return buffer
+	 */
+	public ByteBuffer acquire() {
+		return acquire(m_heapBuffers, false);
+	}
+
+	/**
+	 * Acquire a buffer for reads from a socket channel. The buffer is cleared, and is direct if the
+	 * pool is configured for direct buffers.
+	 *
+	 * @return buffer
+	 */
+	public ByteBuffer acquireForChannel() {
+		return m_direct ? acquire(m_directBuffers, true) : acquire();
+	}
+
+	private ByteBuffer acquire(BlockingQueue<ByteBuffer> buffers, boolean direct) {
+		m_outstanding.incrementAndGet();
+
+		final ByteBuffer buffer = buffers.poll();
+
+		if (buffer != null) {
+			m_hits.incrementAndGet();
+			return buffer;
+		}
+
+		m_misses.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Give a buffer back to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buffer
+	 *            buffer acquired from this pool. Ignored if null.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+
+		m_outstanding.decrementAndGet();
+
+		buffer.clear();
+		(buffer.isDirect() ? m_directBuffers : m_heapBuffers).offer(buffer);
+	}
+
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Get the number of buffers which were acquired and not released yet.
+	 *
+	 * @return the number of buffers in use
+	 */
+	public long getOutstanding() {
+		return m_outstanding.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Buffer pool: hits=%d, misses=%d, outstanding=%d", getHits(), getMisses(),
+						getOutstanding());
+	}
+}
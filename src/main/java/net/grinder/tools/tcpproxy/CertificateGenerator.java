@@ -0,0 +1,319 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal X.509 v3 certificate writer, enough to issue a recorder CA and the per-host certificates
+ * it signs. The JDK has no public API for this, so the DER structures are encoded by hand.
+ *
+ * @since 1.0
+ */
+final class CertificateGenerator {
+	private static final int KEY_SIZE = 2048;
+
+	private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+	private static final String OID_SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+	private static final String OID_COMMON_NAME = "2.5.4.3";
+	private static final String OID_ORGANIZATION = "2.5.4.10";
+	private static final String OID_KEY_USAGE = "2.5.29.15";
+	private static final String OID_SUBJECT_ALT_NAME = "2.5.29.17";
+	private static final String OID_BASIC_CONSTRAINTS = "2.5.29.19";
+	private static final String OID_EXTENDED_KEY_USAGE = "2.5.29.37";
+	private static final String OID_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
+
+	private static final String ORGANIZATION = "nGrinder Recorder";
+
+	private static final long CA_VALIDITY_DAYS = 3650;
+	private static final long HOST_VALIDITY_DAYS = 365;
+
+	private static final Pattern IP_ADDRESS = Pattern.compile("[0-9.]+|.*:.*");
+
+	private final SecureRandom m_random = new SecureRandom();
+
+	/**
+	 * Generate a new RSA key pair.
+	 *
+	 * @return key pair
+	 * @throws GeneralSecurityException
+	 *             if RSA is not supported
+	 */
+	public KeyPair generateKeyPair() throws GeneralSecurityException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(KEY_SIZE, m_random);
+		return generator.generateKeyPair();
+	}
+
+	/**
+	 * Issue a self signed CA certificate.
+	 *
+	 * @param commonName
+	 *            common name of the CA
+	 * @param keyPair
+	 *            key pair of the CA
+	 * @return certificate
+	 * @throws GeneralSecurityException
+	 *             if the certificate can not be signed
+	 */
+	public X509Certificate generateCACertificate(String commonName, KeyPair keyPair)
+					throws GeneralSecurityException {
+		final byte[] name = name(commonName);
+
+		final DERWriter extensions = new DERWriter();
+		extension(extensions, OID_BASIC_CONSTRAINTS, true, new DERWriter().sequence(new DERWriter().bool(true)));
+		// keyCertSign and cRLSign.
+		extension(extensions, OID_KEY_USAGE, true, new DERWriter().bitString(new byte[] { 0x06 }, 1));
+
+		return sign(name, name, keyPair.getPublic(), CA_VALIDITY_DAYS, extensions, keyPair.getPrivate());
+	}
+
+	/**
+	 * Issue a server certificate for the given host.
+	 *
+	 * @param host
+	 *            host name or IP address
+	 * @param publicKey
+	 *            public key of the server
+	 * @param caCertificate
+	 *            issuer certificate
+	 * @param caKey
+	 *            issuer private key
+	 * @return certificate
+	 * @throws GeneralSecurityException
+	 *             if the certificate can not be signed
+	 */
+	public X509Certificate generateHostCertificate(String host, PublicKey publicKey,
+					X509Certificate caCertificate, PrivateKey caKey) throws GeneralSecurityException {
+		final DERWriter extensions = new DERWriter();
+		extension(extensions, OID_BASIC_CONSTRAINTS, true, new DERWriter().sequence(new DERWriter()));
+		// digitalSignature and keyEncipherment.
+		extension(extensions, OID_KEY_USAGE, true, new DERWriter().bitString(new byte[] { (byte) 0xa0 }, 5));
+		extension(extensions, OID_EXTENDED_KEY_USAGE, false,
+						new DERWriter().sequence(new DERWriter().oid(OID_SERVER_AUTH)));
+		extension(extensions, OID_SUBJECT_ALT_NAME, false, new DERWriter().sequence(subjectAltName(host)));
+
+		return sign(caCertificate.getSubjectX500Principal().getEncoded(), name(host), publicKey, HOST_VALIDITY_DAYS,
+						extensions, caKey);
+	}
+
+	private X509Certificate sign(byte[] issuer, byte[] subject, PublicKey publicKey, long validityDays,
+					DERWriter extensions, PrivateKey signingKey) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+
+		final DERWriter algorithm = new DERWriter().sequence(new DERWriter().oid(OID_SHA256_WITH_RSA).nul());
+
+		final DERWriter tbs = new DERWriter();
+		tbs.tagged(0xa0, new DERWriter().integer(BigInteger.valueOf(2)));
+		tbs.integer(new BigInteger(64, m_random).abs().add(BigInteger.ONE));
+		tbs.raw(algorithm.toByteArray());
+		tbs.raw(issuer);
+		tbs.sequence(new DERWriter().time(new Date(now - TimeUnit.DAYS.toMillis(1))).time(
+						new Date(now + TimeUnit.DAYS.toMillis(validityDays))));
+		tbs.raw(subject);
+		tbs.raw(publicKey.getEncoded());
+		tbs.tagged(0xa3, new DERWriter().sequence(extensions));
+
+		final byte[] tbsCertificate = new DERWriter().sequence(tbs).toByteArray();
+
+		final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+		signature.initSign(signingKey);
+		signature.update(tbsCertificate);
+
+		final DERWriter certificate = new DERWriter();
+		certificate.raw(tbsCertificate);
+		certificate.raw(algorithm.toByteArray());
+		certificate.bitString(signature.sign(), 0);
+
+		return parse(new DERWriter().sequence(certificate).toByteArray());
+	}
+
+	/**
+	 * Parse a DER encoded certificate.
+	 *
+	 * @param encoded
+	 *            DER bytes
+	 * @return certificate
+	 * @throws GeneralSecurityException
+	 *             if the bytes are not a certificate
+	 */
+	public static X509Certificate parse(byte[] encoded) throws GeneralSecurityException {
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+						new ByteArrayInputStream(encoded));
+	}
+
+	private static byte[] name(String commonName) {
+		final DERWriter rdns = new DERWriter();
+		rdns.set(new DERWriter().sequence(new DERWriter().oid(OID_ORGANIZATION).utf8(ORGANIZATION)));
+		rdns.set(new DERWriter().sequence(new DERWriter().oid(OID_COMMON_NAME).utf8(commonName)));
+		return new DERWriter().sequence(rdns).toByteArray();
+	}
+
+	private static DERWriter subjectAltName(String host) throws GeneralSecurityException {
+		if (IP_ADDRESS.matcher(host).matches()) {
+			try {
+				// A literal never causes a lookup.
+				return new DERWriter().primitive(0x87, InetAddress.getByName(host).getAddress());
+			} catch (UnknownHostException e) {
+				throw new GeneralSecurityException("Invalid IP address " + host, e);
+			}
+		}
+
+		return new DERWriter().primitive(0x82, ascii(host));
+	}
+
+	private static void extension(DERWriter extensions, String oid, boolean critical, DERWriter value) {
+		final DERWriter extension = new DERWriter().oid(oid);
+
+		if (critical) {
+			extension.bool(true);
+		}
+
+		extension.primitive(0x04, value.toByteArray());
+		extensions.sequence(extension);
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Appends DER encoded values.
+	 */
+	private static final class DERWriter {
+		private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+
+		public DERWriter primitive(int tag, byte[] content) {
+			m_bytes.write(tag);
+			length(content.length);
+			m_bytes.write(content, 0, content.length);
+			return this;
+		}
+
+		public DERWriter sequence(DERWriter content) {
+			return primitive(0x30, content.toByteArray());
+		}
+
+		public DERWriter set(DERWriter content) {
+			return primitive(0x31, content.toByteArray());
+		}
+
+		public DERWriter tagged(int tag, DERWriter content) {
+			return primitive(tag, content.toByteArray());
+		}
+
+		public DERWriter raw(byte[] encoded) {
+			m_bytes.write(encoded, 0, encoded.length);
+			return this;
+		}
+
+		public DERWriter bool(boolean value) {
+			return primitive(0x01, new byte[] { value ? (byte) 0xff : 0 });
+		}
+
+		public DERWriter integer(BigInteger value) {
+			return primitive(0x02, value.toByteArray());
+		}
+
+		public DERWriter nul() {
+			return primitive(0x05, new byte[0]);
+		}
+
+		public DERWriter bitString(byte[] content, int unusedBits) {
+			final byte[] bits = new byte[content.length + 1];
+			bits[0] = (byte) unusedBits;
+			System.arraycopy(content, 0, bits, 1, content.length);
+			return primitive(0x03, bits);
+		}
+
+		public DERWriter utf8(String value) {
+			try {
+				return primitive(0x0c, value.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		public DERWriter time(Date date) {
+			final SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return primitive(0x17, ascii(format.format(date)));
+		}
+
+		public DERWriter oid(String oid) {
+			final String[] arcs = oid.split("\\.");
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			content.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+
+			for (int i = 2; i < arcs.length; ++i) {
+				final long arc = Long.parseLong(arcs[i]);
+
+				final int groups = (64 - Long.numberOfLeadingZeros(arc | 1) + 6) / 7;
+
+				for (int group = groups - 1; group > 0; --group) {
+					content.write((int) (0x80 | (arc >>> (7 * group)) & 0x7f));
+				}
+
+				content.write((int) (arc & 0x7f));
+			}
+
+			return primitive(0x06, content.toByteArray());
+		}
+
+		private void length(int length) {
+			if (length < 0x80) {
+				m_bytes.write(length);
+			} else if (length < 0x100) {
+				m_bytes.write(0x81);
+				m_bytes.write(length);
+			} else if (length < 0x10000) {
+				m_bytes.write(0x82);
+				m_bytes.write(length >> 8);
+				m_bytes.write(length);
+			} else {
+				m_bytes.write(0x83);
+				m_bytes.write(length >> 16);
+				m_bytes.write(length >> 8);
+				m_bytes.write(length);
+			}
+		}
+
+		public byte[] toByteArray() {
+			return m_bytes.toByteArray();
+		}
+	}
+}
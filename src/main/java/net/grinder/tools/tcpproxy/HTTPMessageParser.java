@@ -0,0 +1,618 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Incremental HTTP/1.1 message parser.
+ *
+ * <p>
+ * Each byte is examined once, whatever the fragmentation of the stream. The parser follows the
+ * message framing (Content-Length, chunked transfer coding, or the end of the connection), so it
+ * knows where every message ends, and whether the connection can carry another message. An
+ * optional {@link Listener} receives the start line, the headers and the decoded body; without
+ * one, nothing but the framing headers is ever decoded.
+ * </p>
+ *
+ * <p>
+ * A response parser is created for a request parser, from which it learns which responses have
+ * no body because they answer HEAD requests. Apart from that hand over, a parser must only be
+ * used by one thread at a time.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class HTTPMessageParser {
+
+	/**
+	 * Receives the parts of the parsed messages.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called with the request or the status line of a message.
+		 *
+		 * @param line
+		 *            start line, without the line terminator
+		 */
+		void startLine(String line);
+
+		/**
+		 * Called for each header of a message.
+		 *
+		 * @param name
+		 *            header name
+		 * @param value
+		 *            header value, with the surrounding white space removed
+		 */
+		void header(String name, String value);
+
+		/**
+		 * Called after the last header of a message.
+		 */
+		void headersComplete();
+
+		/**
+		 * Called with the body bytes of a message, with any chunked transfer coding removed.
+		 *
+		 * @param bytes
+		 *            buffer
+		 * @param offset
+		 *            offset of the body bytes in the buffer
+		 * @param length
+		 *            number of the body bytes
+		 */
+		void body(byte[] bytes, int offset, int length);
+
+		/**
+		 * Called when a message is complete.
+		 */
+		void messageComplete();
+	}
+
+	private static final int MAX_LINE_LENGTH = 65536;
+
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] CHUNKED = ascii("chunked");
+	private static final byte[] CLOSE = ascii("close");
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+	private static final byte[] HEAD = ascii("HEAD ");
+	private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+
+	private enum State {
+		START_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE
+	}
+
+	private final Listener m_listener;
+	private final boolean m_response;
+
+	/** For a request parser, one entry per request whose response has not started, true for HEAD. */
+	private final Queue<Boolean> m_pendingRequests;
+
+	private State m_state = State.START_LINE;
+	private byte[] m_line = new byte[256];
+	private int m_lineLength;
+	private boolean m_lineOverflow;
+
+	private long m_remaining;
+	private long m_contentLength;
+	private boolean m_chunked;
+	private boolean m_http10;
+	private boolean m_close;
+	private boolean m_keepAlive;
+	private int m_statusCode;
+
+	private boolean m_persistent = true;
+	private long m_messageCount;
+
+	/**
+	 * Constructor for a request parser.
+	 *
+	 * @param listener
+	 *            listener, or {@code null} if only the framing is of interest
+	 */
+	public HTTPMessageParser(Listener listener) {
+		m_listener = listener;
+		m_response = false;
+		m_pendingRequests = new ConcurrentLinkedQueue<Boolean>();
+	}
+
+	/**
+	 * Constructor for a response parser.
+	 *
+	 * @param requestParser
+	 *            parser of the requests the responses answer
+	 * @param listener
+	 *            listener, or {@code null} if only the framing is of interest
+	 */
+	public HTTPMessageParser(HTTPMessageParser requestParser, Listener listener) {
+		m_listener = listener;
+		m_response = true;
+		m_pendingRequests = requestParser.m_pendingRequests;
+	}
+
+	/**
+	 * Parse the next bytes of the stream.
+	 *
+	 * @param bytes
+	 *            buffer
+	 * @param offset
+	 *            offset of the first byte to parse
+	 * @param length
+	 *            number of the bytes to parse
+	 */
+	public void parse(byte[] bytes, int offset, int length) {
+		final int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			switch (m_state) {
+				case BODY:
+				case CHUNK_DATA: {
+					final int n = (int) Math.min(m_remaining, end - i);
+					body(bytes, i, n);
+					i += n;
+					m_remaining -= n;
+
+					if (m_remaining == 0) {
+						if (m_state == State.BODY) {
+							messageComplete();
+						} else {
+							m_state = State.CHUNK_END;
+						}
+					}
+					break;
+				}
+
+				case UNTIL_CLOSE:
+					body(bytes, i, end - i);
+					i = end;
+					break;
+
+				default:
+					i = line(bytes, i, end);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Tell the parser that the stream has ended. This completes a message which is delimited by
+	 * the end of the connection.
+	 */
+	public void close() {
+		if (m_state == State.UNTIL_CLOSE) {
+			messageComplete();
+		}
+
+		m_persistent = false;
+	}
+
+	/**
+	 * Whether the parser is between two messages.
+	 *
+	 * @return true if no part of a message has been parsed since the last complete message
+	 */
+	public boolean isAtMessageBoundary() {
+		return m_state == State.START_LINE && m_lineLength == 0 && !m_lineOverflow;
+	}
+
+	/**
+	 * Whether the connection can carry another message after the current one. It is false once a
+	 * message asked for the connection to be closed, or could not be framed.
+	 *
+	 * @return true if the connection is persistent
+	 */
+	public boolean isPersistent() {
+		return m_persistent;
+	}
+
+	/**
+	 * Get the number of the complete messages, including interim responses.
+	 *
+	 * @return message count
+	 */
+	public long getMessageCount() {
+		return m_messageCount;
+	}
+
+	/**
+	 * Get the number of the requests whose response has not started yet. This is only meaningful
+	 * for a request parser, and may be called from any thread.
+	 *
+	 * @return number of the outstanding requests
+	 */
+	public int getOutstandingRequests() {
+		return m_pendingRequests.size();
+	}
+
+	/**
+	 * Get the status code of the current or the last response.
+	 *
+	 * @return status code, or 0 for a request parser
+	 */
+	public int getStatusCode() {
+		return m_statusCode;
+	}
+
+	private int line(byte[] bytes, int offset, int end) {
+		int lineEnd = offset;
+
+		while (lineEnd < end && bytes[lineEnd] != '\n') {
+			++lineEnd;
+		}
+
+		append(bytes, offset, lineEnd - offset);
+
+		if (lineEnd == end) {
+			return end;
+		}
+
+		int length = m_lineLength;
+
+		if (length > 0 && m_line[length - 1] == '\r') {
+			--length;
+		}
+
+		m_lineLength = 0;
+
+		if (m_lineOverflow) {
+			m_lineOverflow = false;
+			unframeable();
+		} else {
+			line(length);
+		}
+
+		return lineEnd + 1;
+	}
+
+	private void append(byte[] bytes, int offset, int length) {
+		if (m_lineOverflow) {
+			return;
+		}
+
+		final int required = m_lineLength + length;
+
+		if (required > MAX_LINE_LENGTH) {
+			m_lineOverflow = true;
+			return;
+		}
+
+		if (required > m_line.length) {
+			final byte[] line = new byte[Math.min(MAX_LINE_LENGTH, Math.max(required, m_line.length * 2))];
+			System.arraycopy(m_line, 0, line, 0, m_lineLength);
+			m_line = line;
+		}
+
+		System.arraycopy(bytes, offset, m_line, m_lineLength, length);
+		m_lineLength = required;
+	}
+
+	private void line(int length) {
+		switch (m_state) {
+			case START_LINE:
+				// Tolerate empty lines before a message.
+				if (length > 0) {
+					startLine(length);
+				}
+				break;
+
+			case HEADERS:
+				if (length == 0) {
+					headersComplete();
+				} else {
+					header(length);
+				}
+				break;
+
+			case CHUNK_SIZE:
+				chunkSize(length);
+				break;
+
+			case CHUNK_END:
+				if (length == 0) {
+					m_state = State.CHUNK_SIZE;
+				} else {
+					unframeable();
+				}
+				break;
+
+			case TRAILERS:
+				if (length == 0) {
+					messageComplete();
+				}
+				break;
+
+			default:
+				throw new AssertionError(m_state);
+		}
+	}
+
+	private void startLine(int length) {
+		m_contentLength = -1;
+		m_chunked = false;
+		m_close = false;
+		m_keepAlive = false;
+
+		if (m_response) {
+			// HTTP/1.1 200 OK
+			if (length < 12 || !startsWith(m_line, 0, length, HTTP_1_0, 5) || !isDigit(m_line[9])
+							|| !isDigit(m_line[10]) || !isDigit(m_line[11])) {
+				unframeable();
+				return;
+			}
+
+			m_http10 = m_line[7] == '0';
+			m_statusCode = (m_line[9] - '0') * 100 + (m_line[10] - '0') * 10 + (m_line[11] - '0');
+		} else {
+			m_http10 = endsWith(m_line, length, HTTP_1_0);
+			m_pendingRequests.offer(startsWith(m_line, 0, length, HEAD, HEAD.length));
+		}
+
+		if (m_listener != null) {
+			m_listener.startLine(string(0, length));
+		}
+
+		m_state = State.HEADERS;
+	}
+
+	private void header(int length) {
+		int colon = 0;
+
+		while (colon < length && m_line[colon] != ':') {
+			++colon;
+		}
+
+		if (colon == length) {
+			// Not a header. Folded lines are obsolete, and ignored along with other junk.
+			return;
+		}
+
+		int valueStart = colon + 1;
+		int valueEnd = length;
+
+		while (valueStart < valueEnd && isWhiteSpace(m_line[valueStart])) {
+			++valueStart;
+		}
+
+		while (valueEnd > valueStart && isWhiteSpace(m_line[valueEnd - 1])) {
+			--valueEnd;
+		}
+
+		if (equalsIgnoreCase(m_line, 0, colon, CONTENT_LENGTH)) {
+			m_contentLength = parseContentLength(valueStart, valueEnd);
+		} else if (equalsIgnoreCase(m_line, 0, colon, TRANSFER_ENCODING)) {
+			// The chunked coding is always the last one applied.
+			m_chunked = endsWithIgnoreCase(m_line, valueStart, valueEnd, CHUNKED);
+		} else if (equalsIgnoreCase(m_line, 0, colon, CONNECTION)) {
+			m_close |= containsIgnoreCase(m_line, valueStart, valueEnd, CLOSE);
+			m_keepAlive |= containsIgnoreCase(m_line, valueStart, valueEnd, KEEP_ALIVE);
+		}
+
+		if (m_listener != null) {
+			m_listener.header(string(0, colon).trim(), string(valueStart, valueEnd - valueStart));
+		}
+	}
+
+	private long parseContentLength(int start, int end) {
+		if (start == end || end - start > 18) {
+			return -2;
+		}
+
+		long result = 0;
+
+		for (int i = start; i < end; ++i) {
+			if (!isDigit(m_line[i])) {
+				return -2;
+			}
+
+			result = result * 10 + m_line[i] - '0';
+		}
+
+		return result;
+	}
+
+	private void headersComplete() {
+		if (m_listener != null) {
+			m_listener.headersComplete();
+		}
+
+		if (m_http10 ? !m_keepAlive : m_close) {
+			m_persistent = false;
+		}
+
+		if (m_contentLength == -2 && !m_chunked) {
+			unframeable();
+			return;
+		}
+
+		if (m_response) {
+			if (m_statusCode >= 100 && m_statusCode < 200 && m_statusCode != 101) {
+				// Interim response; the final one follows.
+				messageComplete();
+				return;
+			}
+
+			final Boolean head = m_pendingRequests.poll();
+
+			if (m_statusCode == 101) {
+				// The connection now speaks another protocol.
+				m_persistent = false;
+				m_state = State.UNTIL_CLOSE;
+			} else if (Boolean.TRUE.equals(head) || m_statusCode == 204 || m_statusCode == 304) {
+				messageComplete();
+			} else if (m_chunked) {
+				m_state = State.CHUNK_SIZE;
+			} else if (m_contentLength >= 0) {
+				bodyOfLength(m_contentLength);
+			} else {
+				m_persistent = false;
+				m_state = State.UNTIL_CLOSE;
+			}
+		} else {
+			if (m_chunked) {
+				m_state = State.CHUNK_SIZE;
+			} else if (m_contentLength > 0) {
+				bodyOfLength(m_contentLength);
+			} else {
+				messageComplete();
+			}
+		}
+	}
+
+	private void bodyOfLength(long length) {
+		if (length == 0) {
+			messageComplete();
+		} else {
+			m_remaining = length;
+			m_state = State.BODY;
+		}
+	}
+
+	private void chunkSize(int length) {
+		long size = 0;
+		int i = 0;
+
+		while (i < length && isWhiteSpace(m_line[i])) {
+			++i;
+		}
+
+		final int start = i;
+
+		for (; i < length && i - start < 15; ++i) {
+			final int digit = Character.digit(m_line[i], 16);
+
+			if (digit < 0) {
+				break;
+			}
+
+			size = size * 16 + digit;
+		}
+
+		// Anything after the size must be white space or a chunk extension.
+		if (i == start || i < length && m_line[i] != ';' && !isWhiteSpace(m_line[i])) {
+			unframeable();
+		} else if (size == 0) {
+			m_state = State.TRAILERS;
+		} else {
+			m_remaining = size;
+			m_state = State.CHUNK_DATA;
+		}
+	}
+
+	private void body(byte[] bytes, int offset, int length) {
+		if (m_listener != null && length > 0) {
+			m_listener.body(bytes, offset, length);
+		}
+	}
+
+	private void messageComplete() {
+		++m_messageCount;
+		m_state = State.START_LINE;
+
+		if (m_listener != null) {
+			m_listener.messageComplete();
+		}
+	}
+
+	/**
+	 * The rest of the stream can not be framed. Treat it as the body of the current message, and
+	 * never reuse the connection.
+	 */
+	private void unframeable() {
+		m_persistent = false;
+		m_state = State.UNTIL_CLOSE;
+	}
+
+	private String string(int offset, int length) {
+		try {
+			return new String(m_line, offset, length, "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static boolean startsWith(byte[] bytes, int offset, int length, byte[] prefix, int prefixLength) {
+		if (length < prefixLength) {
+			return false;
+		}
+
+		for (int i = 0; i < prefixLength; ++i) {
+			if (bytes[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean endsWith(byte[] bytes, int length, byte[] suffix) {
+		return length >= suffix.length && startsWith(bytes, length - suffix.length, suffix.length, suffix, suffix.length);
+	}
+
+	private static boolean equalsIgnoreCase(byte[] bytes, int start, int end, byte[] lowerCase) {
+		while (end > start && isWhiteSpace(bytes[end - 1])) {
+			--end;
+		}
+
+		return end - start == lowerCase.length && regionMatches(bytes, start, lowerCase);
+	}
+
+	private static boolean endsWithIgnoreCase(byte[] bytes, int start, int end, byte[] lowerCase) {
+		return end - start >= lowerCase.length && regionMatches(bytes, end - lowerCase.length, lowerCase);
+	}
+
+	private static boolean containsIgnoreCase(byte[] bytes, int start, int end, byte[] lowerCase) {
+		for (int i = start; i <= end - lowerCase.length; ++i) {
+			if (regionMatches(bytes, i, lowerCase)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean regionMatches(byte[] bytes, int offset, byte[] lowerCase) {
+		for (int i = 0; i < lowerCase.length; ++i) {
+			final int b = bytes[offset + i];
+
+			if ((b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != lowerCase[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isWhiteSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,923 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.tools.tcpproxy.TCPProxyFilter.FilterException;
+import net.grinder.util.html.HTMLElement;
+import net.grinder.util.thread.ExecutorFactory;
+
+import org.slf4j.Logger;
+
+/**
+ * Selector based event loop which multiplexes browser connections and the connections to the
+ * remote servers of the {@link HTTPProxyTCPProxyEngineEx}.
+ *
+ * <p>
+ * Each accepted connection is read without blocking until its first request is complete. Plain
+ * HTTP proxy requests are then served on this loop: every chunk read from the browser is routed
+ * to the remote server named in its request line, and both directions are passed through the
+ * request and response {@link TCPProxyFilter}s of the engine exactly as
+ * {@code HTTPProxyStreamDemultiplexer} does. CONNECT requests are handed back to the engine,
+ * which processes them with the blocking HTTPS path.
+ * </p>
+ *
+ * <p>
+ * The host names of the remote servers are resolved on other threads, so that a slow lookup
+ * does not stall the other connections of the loop.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class HTTPProxySelectorLoop implements Runnable {
+
+	// Stop reading from a peer while this many bytes wait to be written to the other side.
+	private static final int HIGH_WATER_MARK = 256 * 1024;
+
+	private static final long SELECT_TIMEOUT = 500;
+
+	private static final long CONNECTION_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+					.toNanos(HTTPProxyTCPProxyEngineEx.CONNECTION_TIMEOUT);
+
+	private final HTTPProxyTCPProxyEngineEx m_engine;
+	private final Logger m_logger;
+	private final Selector m_selector;
+	private final Queue<Socket> m_newConnections = new ConcurrentLinkedQueue<Socket>();
+	private final Queue<RemoteConnection> m_resolvedConnections = new ConcurrentLinkedQueue<RemoteConnection>();
+	private final ExecutorService m_resolver = ExecutorFactory.createCachedThreadPool("tcp_proxy_http_resolver");
+	private final List<ClientConnection> m_unclassifiedConnections = new LinkedList<ClientConnection>();
+	private final List<ClientConnection> m_handOvers = new ArrayList<ClientConnection>();
+	private final ByteBuffer m_readByteBuffer;
+	private final ByteBuffer m_arrayBuffer;
+	private final byte[] m_readBuffer;
+	private volatile boolean m_stopped;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param engine
+	 *            engine which owns this loop
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	HTTPProxySelectorLoop(HTTPProxyTCPProxyEngineEx engine) throws IOException {
+		m_engine = engine;
+		m_logger = engine.getLogger();
+		m_selector = Selector.open();
+
+		// Channels read into the pooled buffer, which may be direct. Filters need the bytes in an
+		// array.
+		m_readByteBuffer = engine.getBufferPool().acquireForChannel();
+		m_arrayBuffer = m_readByteBuffer.hasArray() ? m_readByteBuffer : engine.getBufferPool().acquire();
+		m_readBuffer = m_arrayBuffer.array();
+	}
+
+	/**
+	 * Register an accepted socket with this loop. The socket must have been accepted from a
+	 * {@link java.nio.channels.ServerSocketChannel}.
+	 *
+	 * @param localSocket
+	 *            accepted socket
+	 */
+	void register(Socket localSocket) {
+		m_newConnections.add(localSocket);
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Stop the loop. All the connections owned by this loop are closed.
+	 */
+	void stop() {
+		m_stopped = true;
+		m_selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!m_stopped) {
+				m_selector.select(SELECT_TIMEOUT);
+
+				registerNewConnections();
+				connectResolvedConnections();
+
+				final Iterator<SelectionKey> iterator = m_selector.selectedKeys().iterator();
+
+				while (iterator.hasNext()) {
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+
+					final AbstractChannelContext context = (AbstractChannelContext) key.attachment();
+
+					try {
+						context.handle(key);
+					} catch (CancelledKeyException e) {
+						context.close();
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						context.failed(e);
+					} catch (UncheckedInterruptedException e) {
+						throw e;
+					} catch (RuntimeException e) {
+						abort(context, e);
+					} catch (Error e) {
+						abort(context, e);
+					}
+				}
+
+				handOverConnectRequests();
+				expireUnclassifiedConnections();
+			}
+		} catch (IOException e) {
+			UncheckedInterruptedException.ioException(e);
+			m_engine.logIOException(e);
+		} finally {
+			for (SelectionKey key : new ArrayList<SelectionKey>(m_selector.keys())) {
+				((AbstractChannelContext) key.attachment()).close();
+			}
+
+			try {
+				m_selector.close();
+			} catch (IOException e) {
+				// Ignore.
+				UncheckedInterruptedException.ioException(e);
+			}
+
+			m_resolver.shutdownNow();
+			m_engine.getBufferPool().release(m_readByteBuffer);
+
+			if (m_arrayBuffer != m_readByteBuffer) {
+				m_engine.getBufferPool().release(m_arrayBuffer);
+			}
+		}
+	}
+
+	/**
+	 * Close a connection whose event could not be handled, so that the other connections of this
+	 * loop are still served.
+	 */
+	private void abort(AbstractChannelContext context, Throwable t) {
+		m_logger.error("Problem while handling a connection, it is closed", t);
+
+		try {
+			context.close();
+		} catch (RuntimeException e) {
+			m_logger.error("Problem while closing a connection", e);
+		}
+	}
+
+	private void registerNewConnections() {
+		Socket localSocket;
+
+		while ((localSocket = m_newConnections.poll()) != null) {
+			try {
+				final SocketChannel channel = localSocket.getChannel();
+				channel.configureBlocking(false);
+				final ClientConnection connection = new ClientConnection(channel,
+								EndPoint.clientEndPoint(localSocket));
+				connection.register(SelectionKey.OP_READ);
+				m_unclassifiedConnections.add(connection);
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				m_engine.logIOException(e);
+				closeQuietly(localSocket);
+			}
+		}
+	}
+
+	private void connectResolvedConnections() {
+		RemoteConnection connection;
+
+		while ((connection = m_resolvedConnections.poll()) != null) {
+			try {
+				connection.resolved();
+			} catch (UncheckedInterruptedException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				abort(connection, e);
+			} catch (Error e) {
+				abort(connection, e);
+			}
+		}
+	}
+
+	private void handOverConnectRequests() throws IOException {
+		if (m_handOvers.isEmpty()) {
+			return;
+		}
+
+		// Flush the cancelled keys so the channels can be put back in blocking mode.
+		m_selector.selectNow();
+
+		for (ClientConnection each : m_handOvers) {
+			final Socket localSocket = each.getChannel().socket();
+
+			try {
+				localSocket.getChannel().configureBlocking(true);
+				m_engine.processConnectRequest(localSocket, each.getFirstRequest(), each.getAcceptTime());
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				m_engine.logIOException(e);
+				closeQuietly(localSocket);
+			}
+		}
+
+		m_handOvers.clear();
+	}
+
+	private void expireUnclassifiedConnections() {
+		final long now = System.nanoTime();
+		final Iterator<ClientConnection> iterator = m_unclassifiedConnections.iterator();
+
+		while (iterator.hasNext()) {
+			final ClientConnection connection = iterator.next();
+
+			if (connection.isClassified() || connection.isClosed()) {
+				iterator.remove();
+			} else if (now - connection.getAcceptTime() >= CONNECTION_TIMEOUT_NANOS) {
+				iterator.remove();
+				connection.timedOut();
+			}
+		}
+	}
+
+	private static String toASCIIString(byte[] bytes, int offset, int length) {
+		try {
+			return new String(bytes, offset, length, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignore.
+			UncheckedInterruptedException.ioException(e);
+		}
+	}
+
+	/**
+	 * Common state of a channel registered with the selector. Holds the queue of the bytes waiting
+	 * to be written to the channel.
+	 */
+	private abstract class AbstractChannelContext {
+		private final SocketChannel m_channel;
+		private final LinkedList<ByteBuffer> m_outputQueue = new LinkedList<ByteBuffer>();
+		private SelectionKey m_key;
+		private int m_queuedBytes;
+		private boolean m_readPaused;
+		private boolean m_closeWhenFlushed;
+		private boolean m_closed;
+
+		AbstractChannelContext(SocketChannel channel) {
+			m_channel = channel;
+		}
+
+		protected final SocketChannel getChannel() {
+			return m_channel;
+		}
+
+		protected final void register(int interestOps) throws IOException {
+			m_key = m_channel.register(m_selector, interestOps, this);
+		}
+
+		protected final SelectionKey getKey() {
+			return m_key;
+		}
+
+		public final boolean isClosed() {
+			return m_closed;
+		}
+
+		public void handle(SelectionKey key) throws IOException {
+			if (key.isValid() && key.isConnectable()) {
+				connected();
+			}
+
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+
+			if (key.isValid() && key.isReadable()) {
+				final int bytesRead = read();
+
+				if (bytesRead == -1) {
+					endOfStream();
+				} else if (bytesRead > 0) {
+					received(m_readBuffer, bytesRead);
+				}
+			}
+		}
+
+		private int read() throws IOException {
+			m_readByteBuffer.clear();
+
+			final int bytesRead = m_channel.read(m_readByteBuffer);
+
+			if (bytesRead > 0 && m_arrayBuffer != m_readByteBuffer) {
+				m_readByteBuffer.flip();
+				m_readByteBuffer.get(m_readBuffer, 0, bytesRead);
+			}
+
+			return bytesRead;
+		}
+
+		/**
+		 * Queue bytes to be written to this channel.
+		 *
+		 * @param bytes
+		 *            bytes to be written. The buffer is owned by the queue from now on.
+		 * @throws IOException
+		 *             if the bytes can not be written
+		 */
+		public final void write(ByteBuffer bytes) throws IOException {
+			if (m_closed || m_closeWhenFlushed) {
+				return;
+			}
+
+			m_outputQueue.add(bytes);
+			m_queuedBytes += bytes.remaining();
+
+			if (isWritable()) {
+				flush();
+			} else {
+				updateInterestOps();
+			}
+		}
+
+		/**
+		 * Close this channel once all the queued bytes have been written.
+		 */
+		public final void closeWhenFlushed() {
+			m_closeWhenFlushed = true;
+
+			if (m_outputQueue.isEmpty() || !isWritable()) {
+				close();
+			}
+		}
+
+		protected final void flush() throws IOException {
+			while (!m_outputQueue.isEmpty()) {
+				final ByteBuffer head = m_outputQueue.getFirst();
+				final int written = m_channel.write(head);
+				m_queuedBytes -= written;
+
+				if (head.hasRemaining()) {
+					break;
+				}
+
+				m_outputQueue.removeFirst();
+			}
+
+			if (m_outputQueue.isEmpty() && m_closeWhenFlushed) {
+				close();
+				return;
+			}
+
+			updateInterestOps();
+			drained(m_queuedBytes < HIGH_WATER_MARK);
+		}
+
+		protected final boolean isOverloaded() {
+			return m_queuedBytes >= HIGH_WATER_MARK;
+		}
+
+		protected final void setReadPaused(boolean readPaused) {
+			if (m_readPaused != readPaused) {
+				m_readPaused = readPaused;
+				updateInterestOps();
+			}
+		}
+
+		protected final void updateInterestOps() {
+			if (m_closed || m_key == null || !m_key.isValid()) {
+				return;
+			}
+
+			int interestOps = 0;
+
+			if (!isWritable()) {
+				interestOps |= SelectionKey.OP_CONNECT;
+			} else {
+				if (!m_readPaused) {
+					interestOps |= SelectionKey.OP_READ;
+				}
+
+				if (!m_outputQueue.isEmpty()) {
+					interestOps |= SelectionKey.OP_WRITE;
+				}
+			}
+
+			m_key.interestOps(interestOps);
+		}
+
+		public void close() {
+			if (m_closed) {
+				return;
+			}
+
+			m_closed = true;
+			m_outputQueue.clear();
+			m_queuedBytes = 0;
+
+			if (m_key != null) {
+				m_key.cancel();
+			}
+
+			try {
+				m_channel.close();
+			} catch (IOException e) {
+				// Ignore.
+				UncheckedInterruptedException.ioException(e);
+			}
+
+			closed();
+		}
+
+		/**
+		 * Return whether the channel is connected and can accept writes.
+		 *
+		 * @return true if writable
+		 */
+		protected boolean isWritable() {
+			return true;
+		}
+
+		protected void connected() throws IOException {
+			throw new AssertionError("Unexpected connect event");
+		}
+
+		/**
+		 * Called when the output queue shrinks.
+		 *
+		 * @param belowHighWaterMark
+		 *            true if the queue is below the high water mark.
+		 */
+		protected abstract void drained(boolean belowHighWaterMark);
+
+		protected abstract void received(byte[] buffer, int bytesRead) throws IOException;
+
+		protected abstract void endOfStream() throws IOException;
+
+		protected abstract void failed(IOException e);
+
+		protected abstract void closed();
+	}
+
+	/**
+	 * A connection from the browser.
+	 */
+	private final class ClientConnection extends AbstractChannelContext {
+		private final EndPoint m_clientEndPoint;
+		private final long m_acceptTime = System.nanoTime();
+		private final Map<EndPoint, RemoteConnection> m_remoteConnections = newHashMap();
+		private final HTTPRequestLineScanner m_scanner = new HTTPRequestLineScanner();
+		private ByteArrayOutputStream m_firstRequest = new ByteArrayOutputStream();
+		private ByteArrayOutputStream m_fragmentedRequest;
+		private byte[] m_handOverRequest;
+		private RemoteConnection m_lastRemoteConnection;
+
+		ClientConnection(SocketChannel channel, EndPoint clientEndPoint) {
+			super(channel);
+			m_clientEndPoint = clientEndPoint;
+		}
+
+		public long getAcceptTime() {
+			return m_acceptTime;
+		}
+
+		public byte[] getFirstRequest() {
+			return m_handOverRequest;
+		}
+
+		public boolean isClassified() {
+			return m_firstRequest == null;
+		}
+
+		@Override
+		protected void received(byte[] buffer, int bytesRead) throws IOException {
+			if (isClassified()) {
+				dispatch(buffer, bytesRead);
+				return;
+			}
+
+			final HTTPRequestLineScanner.Type type = m_scanner.scan(buffer, 0, bytesRead);
+			m_firstRequest.write(buffer, 0, bytesRead);
+
+			if (m_firstRequest.size() < BufferPool.BUFFER_SIZE && !m_scanner.isHeaderComplete()
+							&& type != HTTPRequestLineScanner.Type.NONE) {
+				// Wait for the rest of the header.
+				return;
+			}
+
+			final byte[] request = m_firstRequest.toByteArray();
+
+			if (type == HTTPRequestLineScanner.Type.HTTP && m_scanner.isHeaderComplete()) {
+				m_firstRequest = null;
+				m_engine.recordConnectionSetup(m_acceptTime, getChannel().socket());
+				route(type, request, request.length);
+			} else if (type == HTTPRequestLineScanner.Type.CONNECT && m_scanner.isHeaderComplete()) {
+				m_firstRequest = null;
+				handOver(request);
+			} else if (request.length < BufferPool.BUFFER_SIZE) {
+				// A request which is not a proxy request.
+				sendErrorResponse(m_engine.createMessage(toASCIIString(request, 0, request.length)),
+								"400 Bad Request");
+			} else {
+				final HTMLElement message = new HTMLElement();
+				message.addElement("p").addText(
+								"Buffer overflow - failed to match HTTP message after " + BufferPool.BUFFER_SIZE + " bytes");
+				sendErrorResponse(message, "400 Bad Request");
+			}
+		}
+
+		/**
+		 * Pass the socket back to the engine to handle a CONNECT request with blocking I/O. This
+		 * happens after the selected keys have been processed.
+		 */
+		private void handOver(byte[] request) {
+			getKey().cancel();
+			m_handOverRequest = request;
+			m_handOvers.add(this);
+		}
+
+		/**
+		 * Route a chunk of the request stream. We make the same assumption as
+		 * HTTPProxyStreamDemultiplexer: a request starts at the beginning of a chunk. A request
+		 * line which is fragmented inside its host or port is held back until it is complete.
+		 */
+		private void dispatch(byte[] buffer, int bytesRead) throws IOException {
+			if (m_fragmentedRequest == null) {
+				m_scanner.reset();
+			}
+
+			final HTTPRequestLineScanner.Type type = m_scanner.scan(buffer, 0, bytesRead);
+
+			if (m_fragmentedRequest == null) {
+				if (type == HTTPRequestLineScanner.Type.UNKNOWN && m_scanner.isInsideAuthority()) {
+					m_fragmentedRequest = new ByteArrayOutputStream();
+					m_fragmentedRequest.write(buffer, 0, bytesRead);
+				} else {
+					route(type, buffer, bytesRead);
+				}
+				return;
+			}
+
+			m_fragmentedRequest.write(buffer, 0, bytesRead);
+
+			if (type == HTTPRequestLineScanner.Type.UNKNOWN && m_fragmentedRequest.size() < BufferPool.BUFFER_SIZE) {
+				return;
+			}
+
+			final byte[] request = m_fragmentedRequest.toByteArray();
+			m_fragmentedRequest = null;
+			route(type, request, request.length);
+		}
+
+		private void route(HTTPRequestLineScanner.Type type, byte[] buffer, int bytesRead) throws IOException {
+			if (type == HTTPRequestLineScanner.Type.HTTP) {
+				if (m_lastRemoteConnection == null || m_lastRemoteConnection.isClosed()
+								|| !m_scanner.isSameEndPoint(m_lastRemoteConnection.getRemoteEndPoint())) {
+					final EndPoint remoteEndPoint = m_scanner.getEndPoint();
+					m_lastRemoteConnection = m_remoteConnections.get(remoteEndPoint);
+
+					if (m_lastRemoteConnection == null || m_lastRemoteConnection.isClosed()) {
+						m_lastRemoteConnection = new RemoteConnection(this, remoteEndPoint);
+						m_remoteConnections.put(remoteEndPoint, m_lastRemoteConnection);
+						m_lastRemoteConnection.connect();
+					}
+				}
+			} else if (m_lastRemoteConnection == null) {
+				throw new AssertionError("No last stream");
+			}
+
+			m_lastRemoteConnection.sendRequest(buffer, bytesRead);
+		}
+
+		/**
+		 * Respond to a connection which did not send a request we understand within the
+		 * connection timeout.
+		 */
+		public void timedOut() {
+			final byte[] request = m_firstRequest.toByteArray();
+			m_firstRequest = null;
+
+			try {
+				sendErrorResponse(m_engine.createMessage(toASCIIString(request, 0, request.length)),
+								"400 Bad Request");
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				close();
+			}
+		}
+
+		public void sendErrorResponse(HTMLElement message, String status) throws IOException {
+			m_firstRequest = null;
+			write(ByteBuffer.wrap(m_engine.createHTTPErrorResponse(message, status)));
+			closeWhenFlushed();
+		}
+
+		public void sendResponse(ByteBuffer bytes) throws IOException {
+			write(bytes);
+
+			if (isOverloaded()) {
+				for (RemoteConnection remoteConnection : m_remoteConnections.values()) {
+					remoteConnection.setReadPaused(true);
+				}
+			}
+		}
+
+		@Override
+		protected void drained(boolean belowHighWaterMark) {
+			if (belowHighWaterMark) {
+				for (RemoteConnection remoteConnection : m_remoteConnections.values()) {
+					remoteConnection.setReadPaused(false);
+				}
+			}
+		}
+
+		@Override
+		protected void endOfStream() throws IOException {
+			if (m_fragmentedRequest != null) {
+				// The browser closed the connection before the request line was complete, there
+				// is no remote server to send it to.
+				final byte[] request = m_fragmentedRequest.toByteArray();
+				m_fragmentedRequest = null;
+				sendErrorResponse(m_engine.createMessage(toASCIIString(request, 0, request.length)),
+								"400 Bad Request");
+				return;
+			}
+
+			close();
+		}
+
+		@Override
+		protected void failed(IOException e) {
+			m_engine.logIOException(e);
+			close();
+		}
+
+		@Override
+		protected void closed() {
+			// When exiting, close all our outgoing connections.
+			for (RemoteConnection remoteConnection : new ArrayList<RemoteConnection>(m_remoteConnections.values())) {
+				remoteConnection.close();
+			}
+
+			m_remoteConnections.clear();
+		}
+
+		public void remoteFailed(IOException e) {
+			final String description = m_engine.logIOException(e);
+
+			final HTMLElement message = new HTMLElement();
+			message.addElement("p").addText(description);
+
+			try {
+				// Should probably return other types of status code.
+				sendErrorResponse(message, "502 Bad Gateway");
+			} catch (IOException e2) {
+				UncheckedInterruptedException.ioException(e2);
+				close();
+			}
+		}
+
+		public EndPoint getClientEndPoint() {
+			return m_clientEndPoint;
+		}
+	}
+
+	/**
+	 * A connection to a remote server (or to the chained HTTP proxy) on behalf of a
+	 * {@link ClientConnection}.
+	 */
+	private final class RemoteConnection extends AbstractChannelContext {
+		private final ClientConnection m_clientConnection;
+		private final EndPoint m_remoteEndPoint;
+		private final ConnectionDetails m_connectionDetails;
+		private final TCPProxyFilter m_requestFilter;
+		// The requests received while the remote host is resolved, they are filtered once the
+		// connection is opened.
+		private List<byte[]> m_pendingRequests = new ArrayList<byte[]>();
+		private int m_pendingBytes;
+		private volatile InetSocketAddress m_address;
+		private boolean m_connected;
+		private boolean m_opened;
+
+		RemoteConnection(ClientConnection clientConnection, EndPoint remoteEndPoint) throws IOException {
+			super(SocketChannel.open());
+			m_clientConnection = clientConnection;
+			m_remoteEndPoint = remoteEndPoint;
+			m_connectionDetails = new ConnectionDetails(clientConnection.getClientEndPoint(), remoteEndPoint, false);
+			m_requestFilter = m_engine.createRequestFilter(remoteEndPoint);
+		}
+
+		public EndPoint getRemoteEndPoint() {
+			return m_remoteEndPoint;
+		}
+
+		/**
+		 * Resolve the remote host on a resolver thread, then connect on this loop.
+		 */
+		public void connect() {
+			final EndPoint chainedHTTPProxy = m_engine.getChainedHTTPProxy();
+			final EndPoint target = chainedHTTPProxy != null ? chainedHTTPProxy : m_remoteEndPoint;
+
+			m_resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					m_address = new InetSocketAddress(target.getHost(), target.getPort());
+					m_resolvedConnections.add(RemoteConnection.this);
+					m_selector.wakeup();
+				}
+			});
+		}
+
+		/**
+		 * Connect to the resolved address, and send the requests received meanwhile.
+		 */
+		public void resolved() {
+			final InetSocketAddress address = m_address;
+
+			if (isClosed()) {
+				// The browser connection was closed meanwhile.
+				return;
+			}
+
+			try {
+				if (address.isUnresolved()) {
+					throw new UnknownHostException(address.getHostName());
+				}
+
+				getChannel().configureBlocking(false);
+				m_connected = getChannel().connect(address);
+				register(m_connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+
+				m_opened = true;
+				notifyOpened(m_requestFilter, m_connectionDetails);
+				notifyOpened(m_engine.getResponseFilter(), m_connectionDetails.getOtherEnd());
+
+				final List<byte[]> pendingRequests = m_pendingRequests;
+				m_pendingRequests = null;
+
+				for (byte[] each : pendingRequests) {
+					sendRequest(each, each.length);
+				}
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				failed(e);
+			}
+		}
+
+		@Override
+		protected boolean isWritable() {
+			return m_connected;
+		}
+
+		@Override
+		protected void connected() throws IOException {
+			try {
+				getChannel().finishConnect();
+			} catch (ConnectException e) {
+				throw new VerboseConnectException(e, "remote host " + m_remoteEndPoint);
+			}
+
+			m_connected = true;
+			flush();
+		}
+
+		public void sendRequest(byte[] buffer, int bytesRead) throws IOException {
+			if (m_pendingRequests != null) {
+				final byte[] copy = new byte[bytesRead];
+				System.arraycopy(buffer, 0, copy, 0, bytesRead);
+				m_pendingRequests.add(copy);
+				m_pendingBytes += bytesRead;
+
+				if (m_pendingBytes >= HIGH_WATER_MARK) {
+					m_clientConnection.setReadPaused(true);
+				}
+
+				return;
+			}
+
+			write(filter(m_requestFilter, m_connectionDetails, buffer, bytesRead));
+
+			if (isOverloaded()) {
+				m_clientConnection.setReadPaused(true);
+			}
+		}
+
+		@Override
+		protected void received(byte[] buffer, int bytesRead) throws IOException {
+			m_clientConnection.sendResponse(filter(m_engine.getResponseFilter(), m_connectionDetails.getOtherEnd(),
+							buffer, bytesRead));
+		}
+
+		@Override
+		protected void drained(boolean belowHighWaterMark) {
+			if (belowHighWaterMark) {
+				m_clientConnection.setReadPaused(false);
+			}
+		}
+
+		@Override
+		protected void endOfStream() {
+			close();
+			// The remote server closed the connection, the browser will open a new one.
+			m_clientConnection.closeWhenFlushed();
+		}
+
+		@Override
+		protected void failed(IOException e) {
+			close();
+			m_clientConnection.remoteFailed(e);
+		}
+
+		@Override
+		protected void closed() {
+			// A connection which failed to connect was never announced to the filters.
+			if (!m_opened) {
+				return;
+			}
+
+			notifyClosed(m_requestFilter, m_connectionDetails);
+			notifyClosed(m_engine.getResponseFilter(), m_connectionDetails.getOtherEnd());
+		}
+	}
+
+	private void notifyOpened(TCPProxyFilter filter, ConnectionDetails connectionDetails) {
+		try {
+			filter.connectionOpened(connectionDetails);
+		} catch (FilterException e) {
+			m_logger.error("Problem in filter", e);
+		}
+	}
+
+	private void notifyClosed(TCPProxyFilter filter, ConnectionDetails connectionDetails) {
+		try {
+			filter.connectionClosed(connectionDetails);
+		} catch (FilterException e) {
+			m_logger.error("Problem in filter", e);
+		}
+	}
+
+	/**
+	 * Pass a chunk through the given filter. The result is a copy, as the read buffer is shared
+	 * by all the channels of this loop.
+	 */
+	private ByteBuffer filter(TCPProxyFilter filter, ConnectionDetails connectionDetails, byte[] buffer,
+					int bytesRead) {
+		byte[] newBytes = null;
+
+		try {
+			newBytes = filter.handle(connectionDetails, buffer, bytesRead);
+		} catch (FilterException e) {
+			m_logger.error("Problem in filter", e);
+		}
+
+		if (newBytes != null) {
+			return ByteBuffer.wrap(newBytes);
+		}
+
+		final byte[] copy = new byte[bytesRead];
+		System.arraycopy(buffer, 0, copy, 0, bytesRead);
+		return ByteBuffer.wrap(copy);
+	}
+}
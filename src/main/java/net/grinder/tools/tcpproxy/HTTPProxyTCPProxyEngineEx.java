@@ -32,19 +32,29 @@ import static net.grinder.util.NoOp.noOp;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -77,6 +87,11 @@ import org.slf4j.Logger;
  * This is the modified version of {@link HTTPProxyTCPProxyEngine}. Because the some browser may
  * send the empty connection and it causes thread hang.
  * 
+ * <p>
+ * When constructed with event loop threads, plain HTTP connections are served by
+ * {@link HTTPProxySelectorLoop}s instead of a thread per connection and direction.
+ * </p>
+ * 
  * @author Paddy Spencer
  * @author Philip Aston
  * @author Bertrand Ave
@@ -85,14 +100,21 @@ import org.slf4j.Logger;
 public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 	private ExecutorService socketExecutor = ExecutorFactory.createThreadPool("tcp_proxy_http_socket_processor", 20);
-	private static final long CONNECTION_TIMEOUT = Long.getLong("tcpproxy.connecttimeout", 5000).longValue();
+	static final long CONNECTION_TIMEOUT = Long.getLong("tcpproxy.connecttimeout", 5000).longValue();
 
-	private final Pattern m_httpConnectPattern;
-	private final Pattern m_httpsConnectPattern;
+	private final TCPProxySSLSocketFactory m_sslSocketFactory;
 	private final DelegateSSLEngine m_delegateSSLEngine;
 	private final Thread m_delegateSSLEngineThread;
 	private final EndPoint m_chainedHTTPProxy;
+	private final EndPoint m_chainedHTTPSProxy;
+	private volatile InterceptionSSLSocketFactory m_interceptionSSLSocketFactory;
+	private volatile UpstreamConnectionPool m_upstreamConnectionPool;
+	private StreamThreads m_streamThreads = new StreamThreads(this, false);
 	private final EndPoint m_proxyAddress;
+	private final HTTPProxySelectorLoop[] m_selectorLoops;
+	private final BufferPool m_bufferPool;
+	private final LatencyStatistics m_connectionSetupStatistics = new LatencyStatistics("Connection setup");
+	private final HostLatencyStatistics m_tunnelSetupStatistics = new HostLatencyStatistics("Tunnel setup");
 	private static final PrintWriter WRITER = new PrintWriter(System.out);
 
 	/**
@@ -120,20 +142,90 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	public HTTPProxyTCPProxyEngineEx(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
 					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
 					EndPoint chainedHTTPSProxy) throws IOException {
+		this(sslSocketFactory, requestFilter, responseFilter, logger, localEndPoint, chainedHTTPProxy,
+						chainedHTTPSProxy, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sslSocketFactory
+	 *            Factory for SSL sockets.
+	 * @param requestFilter
+	 *            Request filter.
+	 * @param responseFilter
+	 *            Response filter.
+	 * 
+	 * @param logger
+	 *            Logger.
+	 * @param localEndPoint
+	 *            Local host and port.
+	 * @param chainedHTTPProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param chainedHTTPSProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param eventLoopCount
+	 *            the number of selector event loop threads which serve plain HTTP connections. If
+	 *            0, each connection is served by its own threads.
+	 * 
+	 * @exception IOException
+	 *                If an I/O error occurs
+	 */
+	public HTTPProxyTCPProxyEngineEx(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
+					EndPoint chainedHTTPSProxy, int eventLoopCount) throws IOException {
+		this(sslSocketFactory, requestFilter, responseFilter, logger, localEndPoint, chainedHTTPProxy,
+						chainedHTTPSProxy, eventLoopCount, new BufferPool());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sslSocketFactory
+	 *            Factory for SSL sockets.
+	 * @param requestFilter
+	 *            Request filter.
+	 * @param responseFilter
+	 *            Response filter.
+	 * 
+	 * @param logger
+	 *            Logger.
+	 * @param localEndPoint
+	 *            Local host and port.
+	 * @param chainedHTTPProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param chainedHTTPSProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param eventLoopCount
+	 *            the number of selector event loop threads which serve plain HTTP connections. If
+	 *            0, each connection is served by its own threads.
+	 * @param bufferPool
+	 *            pool of the I/O buffers, which may be shared with the connection handlers.
+	 * 
+	 * @exception IOException
+	 *                If an I/O error occurs
+	 */
+	public HTTPProxyTCPProxyEngineEx(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
+					EndPoint chainedHTTPSProxy, int eventLoopCount, BufferPool bufferPool) throws IOException {
 		// We set this engine up for handling plain connections. We
 		// delegate HTTPS to a proxy engine.
-		super(new TCPProxySocketFactoryImplementation(), requestFilter, responseFilter, WRITER, logger, localEndPoint,
-						false, 0);
+		super(eventLoopCount > 0 ? new TCPProxyChannelSocketFactory() : new TCPProxySocketFactoryImplementation(),
+						requestFilter, responseFilter, WRITER, logger, localEndPoint, false, 0);
 
 		m_proxyAddress = localEndPoint;
 		m_chainedHTTPProxy = chainedHTTPProxy;
+		m_chainedHTTPSProxy = chainedHTTPSProxy;
+		m_sslSocketFactory = sslSocketFactory;
+		m_bufferPool = bufferPool;
+		m_selectorLoops = new HTTPProxySelectorLoop[eventLoopCount];
 
-		m_httpConnectPattern = Pattern.compile("^([A-Z]+)[ \\t]+http://([^/:]+):?(\\d*)/.*\r\n\r\n", Pattern.DOTALL);
-
-		m_httpsConnectPattern = Pattern.compile("^CONNECT[ \\t]+([^:]+):(\\d+).*\r\n\r\n", Pattern.DOTALL);
+		for (int i = 0; i < eventLoopCount; i++) {
+			m_selectorLoops[i] = new HTTPProxySelectorLoop(this);
+		}
 
 		m_delegateSSLEngine = new DelegateSSLEngine(sslSocketFactory, getRequestFilter(), getResponseFilter(), WRITER,
-						logger, false, chainedHTTPSProxy);
+						logger, false, chainedHTTPSProxy, m_tunnelSetupStatistics);
 
 		m_delegateSSLEngineThread = new Thread(m_delegateSSLEngine, "Delegate HTTPS engine");
 	}
@@ -146,9 +238,15 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 		m_delegateSSLEngineThread.start();
 
+		for (int i = 0; i < m_selectorLoops.length; i++) {
+			new Thread(m_selectorLoops[i], "HTTP proxy event loop " + i).start();
+		}
+
 		// I've seen pathological messages with huge tracking cookies that are
 		// bigger than 4K. Let's super-size this.
 
+		int nextLoop = 0;
+
 		while (!isStopped()) {
 			final Socket localSocket;
 
@@ -156,14 +254,88 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 				localSocket = accept();
 			} catch (IOException e) {
 				UncheckedInterruptedException.ioException(e);
+
+				if (isStopped()) {
+					break;
+				}
+
 				logIOException(e);
 				continue;
 			}
 
-			socketExecutor.execute(new SocketProcessingRunnable(localSocket));
+			if (m_selectorLoops.length > 0) {
+				m_selectorLoops[nextLoop].register(localSocket);
+				nextLoop = (nextLoop + 1) % m_selectorLoops.length;
+			} else {
+				socketExecutor.execute(new SocketProcessingRunnable(localSocket));
+			}
 		}
 	}
 
+	/**
+	 * Process a CONNECT request received by a {@link HTTPProxySelectorLoop}. The socket should be
+	 * in blocking mode.
+	 * 
+	 * @param localSocket
+	 *            local socket
+	 * @param request
+	 *            bytes already read from the socket
+	 * @param acceptTime
+	 *            time when the socket was accepted, from {@link System#nanoTime()}.
+	 */
+	void processConnectRequest(Socket localSocket, byte[] request, long acceptTime) {
+		socketExecutor.execute(new SocketProcessingRunnable(localSocket, request, acceptTime));
+	}
+
+	BufferPool getBufferPool() {
+		return m_bufferPool;
+	}
+
+	EndPoint getChainedHTTPProxy() {
+		return m_chainedHTTPProxy;
+	}
+
+	/**
+	 * Create the filter for the requests to the given remote end point.
+	 * 
+	 * @param remoteEndPoint
+	 *            remote end point
+	 * @return request filter
+	 */
+	TCPProxyFilter createRequestFilter(EndPoint remoteEndPoint) {
+		if (m_chainedHTTPProxy != null) {
+			return new HTTPMethodAbsoluteURIFilterDecorator(new HTTPMethodRelativeURIFilterDecorator(
+							getRequestFilter()), remoteEndPoint);
+		} else {
+			return new HTTPMethodRelativeURIFilterDecorator(getRequestFilter());
+		}
+	}
+
+	/**
+	 * Create the message for the connection on which we failed to determine the proxy destination.
+	 * 
+	 * @param bufferAsString
+	 *            received message
+	 * @return message
+	 */
+	HTMLElement createMessage(final String bufferAsString) {
+		// Time out without matching a handler.
+		final HTMLElement message = new HTMLElement();
+		message.addElement("p").addText("Failed to determine proxy destination.");
+		if (bufferAsString.length() > 0) {
+			final HTMLElement paragraph1 = message.addElement("p");
+			paragraph1.addText("Do not type TCPProxy address into your browser. ");
+			paragraph1.addText("The browser proxy settings should be set " + "to the TCPProxy address (");
+			paragraph1.addElement("code").addText(m_proxyAddress.toString());
+			paragraph1.addText("), and you should type the address of the " + "target server into the browser.");
+			message.addElement("p").addText("Text of received message follows:");
+			message.addElement("p").addElement("pre").addElement("blockquote").addText(bufferAsString);
+		} else {
+			message.addElement("p").addText("Client opened connection but sent no bytes.");
+		}
+		return message;
+	}
+
 	/**
 	 * Socket connection Runnable.
 	 * 
@@ -172,7 +344,8 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	 */
 	public class SocketProcessingRunnable implements Runnable {
 		private final Socket localSocket;
-		private final byte[] buffer = new byte[40960];
+		private final byte[] prefix;
+		private final long acceptTime;
 
 		/**
 		 * Constructor.
@@ -181,106 +354,156 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		 *            local socket listening.
 		 */
 		public SocketProcessingRunnable(Socket localSocket) {
+			this(localSocket, new byte[0], System.nanoTime());
+		}
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param localSocket
+		 *            local socket listening.
+		 * @param prefix
+		 *            bytes which were already read from the local socket.
+		 * @param acceptTime
+		 *            time when the local socket was accepted, from {@link System#nanoTime()}.
+		 */
+		public SocketProcessingRunnable(Socket localSocket, byte[] prefix, long acceptTime) {
 			this.localSocket = localSocket;
+			this.prefix = prefix;
+			this.acceptTime = acceptTime;
 		}
 
 		@Override
 		public void run() {
+			final ByteBuffer pooledBuffer = m_bufferPool.acquire();
+			boolean handedOver = false;
+
 			try {
-				final BufferedInputStream in = new BufferedInputStream(localSocket.getInputStream(), buffer.length);
-				in.mark(buffer.length);
-				int time = 0;
-				// Read data into buffer until we time out or one of the handlers
-				// matches.
-				while (true) {
-					while (time < CONNECTION_TIMEOUT && in.available() == 0) {
-						sleep(10);
-						time += 10;
-					}
-					final boolean timeout = in.available() == 0;
-					// Rewind our buffered stream: easier than maintaining a cursor.
-					in.reset();
-					final int bytesRead;
-					if (in.available() > 0) {
-						bytesRead = in.read(buffer);
-					} else {
-						bytesRead = 0;
-					}
-					final String bufferAsString = new String(buffer, 0, bytesRead, "US-ASCII");
-					if (timeout) {
-						final HTMLElement message = createMessage(bufferAsString);
-						sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
-						localSocket.close();
+				final byte[] buffer = pooledBuffer.array();
+				final InputStream in = prefix.length > 0 ? new SequenceInputStream(new ByteArrayInputStream(prefix),
+								localSocket.getInputStream()) : localSocket.getInputStream();
+
+				// Block until the first request header is complete rather than polling for
+				// available bytes. The socket timeout bounds the total wait.
+				final HTTPRequestLineScanner scanner = new HTTPRequestLineScanner();
+				int bytesRead = 0;
+				boolean timeout = false;
+
+				while (bytesRead < buffer.length && !scanner.isHeaderComplete()
+								&& scanner.getType() != HTTPRequestLineScanner.Type.NONE) {
+					final long remaining = CONNECTION_TIMEOUT
+									- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptTime);
+
+					if (remaining <= 0) {
+						timeout = true;
 						break;
 					}
 
-					final Matcher httpConnectMatcher = m_httpConnectPattern.matcher(bufferAsString);
-					final Matcher httpsConnectMatcher = m_httpsConnectPattern.matcher(bufferAsString);
-					if (httpConnectMatcher.find()) {
-						// HTTP proxy request.
-						// RESET stream to beginning of request.
-						in.reset();
+					localSocket.setSoTimeout((int) remaining);
 
-						new StreamThread(new HTTPProxyStreamDemultiplexer(in, localSocket,
-										EndPoint.clientEndPoint(localSocket)), "HTTPProxyStreamDemultiplexer for "
-										+ localSocket, in).start();
+					final int n;
 
+					try {
+						n = in.read(buffer, bytesRead, buffer.length - bytesRead);
+					} catch (SocketTimeoutException e) {
+						timeout = true;
 						break;
-					} else if (httpsConnectMatcher.find()) {
-						// HTTPS proxy request.
-
-						// When handling HTTPS proxies, we use our plain socket to accept
-						// connections on. We suck the bit we understand off the front and
-						// forward the rest through our proxy engine. The proxy engine
-						// listens for connection attempts (which come from us), then sets
-						// up a thread pair which pushes data back and forth until either
-						// the server closes the connection, or we do (in response to our
-						// client closing the connection). The engine handles multiple
-						// connections by spawning multiple thread pairs.
-
-						// group(2) must be a port number by specification.
-						final EndPoint remoteEndPoint = new EndPoint(httpsConnectMatcher.group(1),
-										Integer.parseInt(httpsConnectMatcher.group(2)));
-
-						final OutputStream out = localSocket.getOutputStream();
-
-						m_delegateSSLEngine.prepareNewConnection(in, out, EndPoint.clientEndPoint(localSocket),
-										remoteEndPoint);
-
-						// Create a new proxy connection to the proxy engine.
-						// DelegateSSLEngine.run() will accept() the other end of the
-						// connection.
-						final Socket sslProxySocket = getSocketFactory().createClientSocket(
-										m_delegateSSLEngine.getListenEndPoint());
-
-						// Set up a couple of threads to punt everything we receive
-						// over localSocket to sslProxySocket, and vice versa.
-						// user to proxy
-						new StreamThread(new StreamCopier(4096, true).getInterruptibleRunnable(in,
-										sslProxySocket.getOutputStream()),
-										"Copy to proxy engine for " + remoteEndPoint, in).start();
-						new StreamThread(new StreamCopier(4096, true).getInterruptibleRunnable(
-										sslProxySocket.getInputStream(), out), "Copy from proxy engine for "
-										+ remoteEndPoint, sslProxySocket.getInputStream()).start();
+					}
 
-						break;
+					if (n == -1) {
+						// The browser gave up before sending a request.
+						localSocket.close();
+						return;
 					}
 
-					if (bytesRead == buffer.length) {
-						while (in.available() > 0) {
-							// Drain.
-							in.read(buffer);
-						}
+					scanner.scan(buffer, bytesRead, n);
+					bytesRead += n;
+				}
 
-						final HTMLElement message = new HTMLElement();
-						message.addElement("p").addText(
-										"Buffer overflow - failed to match HTTP message after " + buffer.length
-														+ " bytes");
+				localSocket.setSoTimeout(0);
 
-						sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+				if (timeout) {
+					final HTMLElement message = createMessage(new String(buffer, 0, bytesRead, "US-ASCII"));
+					sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+					localSocket.close();
+					return;
+				}
 
-						break;
+				if (scanner.getType() == HTTPRequestLineScanner.Type.HTTP && scanner.isHeaderComplete()) {
+					// HTTP proxy request.
+					recordConnectionSetup(acceptTime, localSocket);
+
+					// The demultiplexer starts with the bytes we have read, and owns the buffer
+					// from now on.
+					m_streamThreads.start(new HTTPProxyStreamDemultiplexer(in, localSocket,
+									EndPoint.clientEndPoint(localSocket), pooledBuffer, bytesRead),
+									"HTTPProxyStreamDemultiplexer for " + localSocket, in);
+					handedOver = true;
+				} else if (scanner.getType() == HTTPRequestLineScanner.Type.CONNECT && scanner.isHeaderComplete()) {
+					// HTTPS proxy request.
+					recordConnectionSetup(acceptTime, localSocket);
+
+					final InterceptionSSLSocketFactory interceptionSSLSocketFactory = m_interceptionSSLSocketFactory;
+
+					// A browser waits for our response before it starts the handshake, so anything
+					// read past the CONNECT header is left to the delegate engine.
+					if (interceptionSSLSocketFactory != null && m_chainedHTTPSProxy == null
+									&& bytesRead == scanner.getScannedLength()) {
+						interceptTunnel(localSocket, scanner.getEndPoint(), interceptionSSLSocketFactory);
+						return;
+					}
+
+					// When handling HTTPS proxies, we use our plain socket to accept
+					// connections on. We suck the bit we understand off the front and
+					// forward the rest through our proxy engine. The proxy engine
+					// listens for connection attempts (which come from us), then sets
+					// up a thread pair which pushes data back and forth until either
+					// the server closes the connection, or we do (in response to our
+					// client closing the connection). The engine handles multiple
+					// connections by spawning multiple thread pairs.
+					final EndPoint remoteEndPoint = scanner.getEndPoint();
+
+					final OutputStream out = localSocket.getOutputStream();
+
+					// Keep a copy of the CONNECT header in front of the stream, so a chained
+					// HTTPS proxy can rewind to it.
+					final BufferedInputStream connectIn = new BufferedInputStream(new SequenceInputStream(
+									new ByteArrayInputStream(Arrays.copyOf(buffer, bytesRead)), in));
+					connectIn.mark(bytesRead);
+					skipFully(connectIn, bytesRead);
+
+					// Create a new proxy connection to the proxy engine.
+					// DelegateSSLEngine.run() will accept() the other end of the
+					// connection.
+					final Socket sslProxySocket = m_delegateSSLEngine.prepareNewConnection(connectIn, out,
+									EndPoint.clientEndPoint(localSocket), remoteEndPoint, acceptTime);
+
+					// Set up a couple of threads to punt everything we receive
+					// over localSocket to sslProxySocket, and vice versa.
+					// user to proxy
+					m_streamThreads.start(new StreamCopier(4096, true).getInterruptibleRunnable(connectIn,
+									sslProxySocket.getOutputStream()), "Copy to proxy engine for " + remoteEndPoint,
+									connectIn);
+					m_streamThreads.start(new StreamCopier(4096, true).getInterruptibleRunnable(
+									sslProxySocket.getInputStream(), out), "Copy from proxy engine for "
+									+ remoteEndPoint, sslProxySocket.getInputStream());
+				} else if (bytesRead == buffer.length) {
+					while (in.available() > 0) {
+						// Drain.
+						in.read(buffer);
 					}
+
+					final HTMLElement message = new HTMLElement();
+					message.addElement("p").addText(
+									"Buffer overflow - failed to match HTTP message after " + buffer.length + " bytes");
+
+					sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+					localSocket.close();
+				} else {
+					// A request which is not a proxy request.
+					final HTMLElement message = createMessage(new String(buffer, 0, bytesRead, "US-ASCII"));
+					sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+					localSocket.close();
 				}
 			} catch (IOException e) {
 				UncheckedInterruptedException.ioException(e);
@@ -291,35 +514,175 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 				} catch (IOException closeException) {
 					throw new AssertionError(closeException);
 				}
+			} finally {
+				if (!handedOver) {
+					m_bufferPool.release(pooledBuffer);
+				}
 			}
 		}
+	}
 
-		private HTMLElement createMessage(final String bufferAsString) {
-			// Time out without matching a handler.
-			final HTMLElement message = new HTMLElement();
-			message.addElement("p").addText("Failed to determine proxy destination.");
-			if (bufferAsString.length() > 0) {
-				final HTMLElement paragraph1 = message.addElement("p");
-				paragraph1.addText("Do not type TCPProxy address into your browser. ");
-				paragraph1.addText("The browser proxy settings should be set " + "to the TCPProxy address (");
-				paragraph1.addElement("code").addText(m_proxyAddress.toString());
-				paragraph1.addText("), and you should type the address of the " + "target server into the browser.");
-				message.addElement("p").addText("Text of received message follows:");
-				message.addElement("p").addElement("pre").addElement("blockquote").addText(bufferAsString);
-			} else {
-				message.addElement("p").addText("Client opened connection but sent no bytes.");
+	/**
+	 * Terminate the TLS connection of the browser on the client socket itself, and pump the
+	 * decrypted streams through the filters. Two threads serve the tunnel, and no bytes cross the
+	 * loopback interface.
+	 */
+	private void interceptTunnel(Socket localSocket, EndPoint remoteEndPoint,
+					InterceptionSSLSocketFactory interceptionSSLSocketFactory) throws IOException {
+		final long startTime = System.nanoTime();
+		final EndPoint clientEndPoint = EndPoint.clientEndPoint(localSocket);
+
+		getLogger().debug("Intercepting tunnel for {} -> {}", clientEndPoint, remoteEndPoint);
+
+		final Socket remoteSocket = m_sslSocketFactory.createClientSocket(remoteEndPoint);
+
+		try {
+			sendConnectResponse(localSocket.getOutputStream());
+
+			m_streamThreads.launchThreadPair(interceptionSSLSocketFactory.createInterceptionSocket(localSocket,
+							remoteEndPoint), remoteSocket, clientEndPoint, remoteEndPoint, true);
+		} catch (IOException e) {
+			closeQuietly(remoteSocket);
+			throw e;
+		}
+
+		final long latency = m_tunnelSetupStatistics.recordSince(remoteEndPoint.getHost(), startTime);
+		getLogger().debug("Intercepted tunnel for {} after {} us", clientEndPoint,
+						TimeUnit.NANOSECONDS.toMicros(latency));
+	}
+
+	private static void sendConnectResponse(OutputStream out) throws IOException {
+		final StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.0 200 OK\r\n");
+		response.append("Proxy-agent: The Grinder/");
+		response.append(GrinderBuild.getVersionString());
+		response.append("\r\n");
+		response.append("\r\n");
+
+		out.write(response.toString().getBytes());
+		out.flush();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignore.
+			UncheckedInterruptedException.ioException(e);
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		long remaining = n;
+
+		while (remaining > 0) {
+			final long skipped = in.skip(remaining);
+
+			if (skipped <= 0) {
+				throw new EOFException();
 			}
-			return message;
+
+			remaining -= skipped;
 		}
 	}
 
+	/**
+	 * Record the time taken to accept and classify the first request of a browser connection.
+	 * 
+	 * @param acceptTime
+	 *            time when the connection was accepted, from {@link System#nanoTime()}.
+	 * @param localSocket
+	 *            the browser connection
+	 */
+	void recordConnectionSetup(long acceptTime, Socket localSocket) {
+		final long latency = m_connectionSetupStatistics.recordSince(acceptTime);
+		getLogger().debug("Classified {} after {} us", localSocket, TimeUnit.NANOSECONDS.toMicros(latency));
+	}
+
+	/**
+	 * Get the statistics of the time taken to accept and classify browser connections.
+	 * 
+	 * @return connection setup statistics
+	 */
+	public LatencyStatistics getConnectionSetupStatistics() {
+		return m_connectionSetupStatistics;
+	}
+
+	/**
+	 * Get the statistics of the time taken to establish HTTPS tunnels, from the CONNECT request
+	 * to the response sent to the browser.
+	 * 
+	 * @return statistics keyed by remote host name
+	 */
+	public Map<String, LatencyStatistics> getTunnelSetupStatistics() {
+		return m_tunnelSetupStatistics.getAll();
+	}
+
+	/**
+	 * Terminate the TLS connections of the browsers in process with the given factory, instead of
+	 * looping them back through the delegate HTTPS engine. This is ignored when a chained HTTPS
+	 * proxy is used.
+	 * 
+	 * @param interceptionSSLSocketFactory
+	 *            factory, or {@code null} to use the delegate HTTPS engine.
+	 */
+	public void setInterceptionSSLSocketFactory(InterceptionSSLSocketFactory interceptionSSLSocketFactory) {
+		m_interceptionSSLSocketFactory = interceptionSSLSocketFactory;
+	}
+
+	/**
+	 * Keep the upstream connections of plain HTTP requests in the given pool when the browser
+	 * closes its connection, so that the next browser connections can reuse them.
+	 * 
+	 * @param upstreamConnectionPool
+	 *            pool, or {@code null} to close the upstream connections with the browser connection.
+	 */
+	public void setUpstreamConnectionPool(UpstreamConnectionPool upstreamConnectionPool) {
+		m_upstreamConnectionPool = upstreamConnectionPool;
+	}
+
+	/**
+	 * Serve the browser connections and their streams with virtual threads instead of a bounded
+	 * pool of OS threads, if this JDK has them. This must be called before the engine is run.
+	 * 
+	 * @param virtualThreads
+	 *            true to use virtual threads
+	 * @return true if virtual threads are used
+	 */
+	public boolean setVirtualThreads(boolean virtualThreads) {
+		final boolean virtual = virtualThreads && StreamThreads.isVirtualThreadSupported();
+
+		if (virtual != m_streamThreads.isVirtual()) {
+			final ExecutorService oldSocketExecutor = socketExecutor;
+			socketExecutor = virtual ? StreamThreads.newVirtualThreadPerTaskExecutor("tcp_proxy_http_socket_processor")
+							: ExecutorFactory.createThreadPool("tcp_proxy_http_socket_processor", 20);
+			oldSocketExecutor.shutdown();
+			m_streamThreads = new StreamThreads(this, virtual);
+			m_delegateSSLEngine.setVirtualThreads(virtual);
+		}
+
+		return virtual;
+	}
+
 	/**
 	 * Override to also stop our delegate SSL engine.
 	 */
 	@Override
 	public void stop() {
 		super.stop();
+		m_streamThreads.stop();
+		getLogger().info("{}", m_connectionSetupStatistics);
+		getLogger().info("{}", m_bufferPool);
+		if (m_interceptionSSLSocketFactory != null) {
+			getLogger().info("{}", m_interceptionSSLSocketFactory);
+		}
+		for (LatencyStatistics each : m_tunnelSetupStatistics.getAll().values()) {
+			getLogger().info("{}", each);
+		}
 		m_delegateSSLEngine.stop();
+		for (HTTPProxySelectorLoop each : m_selectorLoops) {
+			each.stop();
+		}
 		try {
 			socketExecutor.shutdownNow();
 		} catch (Exception e) {
@@ -334,13 +697,30 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 	private void sendHTTPErrorResponse(HTMLElement message, String status, OutputStream outputStream)
 					throws IOException {
+		outputStream.write(createHTTPErrorResponse(message, status));
+	}
+
+	/**
+	 * Log the given message and create the error response containing it.
+	 * 
+	 * @param message
+	 *            message
+	 * @param status
+	 *            HTTP status
+	 * @return response bytes
+	 */
+	byte[] createHTTPErrorResponse(HTMLElement message, String status) {
 		getLogger().error(message.toText());
 
 		final HTTPResponse response = new HTTPResponse();
 		response.setStatus(status);
 		response.setMessage(status, message);
 
-		outputStream.write(response.toString().getBytes("US-ASCII"));
+		try {
+			return response.toString().getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
 	}
 
 	private static void sleep(int milliseconds) {
@@ -351,6 +731,143 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		}
 	}
 
+	/**
+	 * Upstream connection serving one browser connection, which outlives it when it is idle.
+	 * 
+	 * <p>
+	 * The requests are filtered and written by the demultiplexer thread. A response thread reads
+	 * the upstream connection, and filters the responses back to the browser. Both directions are
+	 * parsed, so when the browser goes away the response thread knows whether the connection sits
+	 * between two exchanges. If it does, it is given to the pool instead of being closed.
+	 * </p>
+	 */
+	private final class UpstreamConnection implements InterruptibleRunnable {
+		private static final int DETACH_POLL_INTERVAL = 250;
+
+		private final Socket m_socket;
+		private final UpstreamConnectionPool m_pool;
+		private final OutputStreamFilterTee m_requestStream;
+		private final OutputStreamFilterTee m_responseStream;
+		private final HTTPMessageParser m_requestParser = new HTTPMessageParser(null);
+		private final HTTPMessageParser m_responseParser = new HTTPMessageParser(m_requestParser, null);
+		private volatile boolean m_clientClosed;
+
+		UpstreamConnection(ConnectionDetails connectionDetails, Socket socket, OutputStream clientOutputStream,
+						UpstreamConnectionPool pool) throws IOException {
+			m_socket = socket;
+			m_pool = pool;
+
+			// Closing the request stream must not close a connection which can be reused.
+			m_requestStream = new OutputStreamFilterTee(connectionDetails, new UncloseableOutputStream(
+							socket.getOutputStream()), createRequestFilter(connectionDetails.getRemoteEndPoint()),
+							getRequestColour());
+			m_requestStream.connectionOpened();
+
+			m_responseStream = new OutputStreamFilterTee(connectionDetails.getOtherEnd(), clientOutputStream,
+							getResponseFilter(), getResponseColour());
+			m_responseStream.connectionOpened();
+
+			m_streamThreads.start(this, "Response thread for " + connectionDetails, socket.getInputStream());
+		}
+
+		/**
+		 * Filter and send request bytes.
+		 */
+		public void handle(byte[] buffer, int length) throws IOException {
+			m_requestParser.parse(buffer, 0, length);
+			m_requestStream.handle(buffer, length);
+		}
+
+		/**
+		 * Called by the demultiplexer thread after its last {@link #handle}.
+		 */
+		public void clientClosed() {
+			m_requestStream.connectionClosed();
+			m_clientClosed = true;
+
+			if (m_pool == null) {
+				// Nothing to keep, so wake up the response thread.
+				closeQuietly(m_socket);
+			}
+		}
+
+		private boolean isIdle() {
+			return m_requestParser.isAtMessageBoundary() && m_responseParser.isAtMessageBoundary()
+							&& m_requestParser.getOutstandingRequests() == 0 && m_requestParser.isPersistent()
+							&& m_responseParser.isPersistent();
+		}
+
+		@Override
+		public void interruptibleRun() {
+			final ByteBuffer pooledBuffer = m_bufferPool.acquire();
+			final byte[] buffer = pooledBuffer.array();
+			boolean idle = false;
+
+			try {
+				final InputStream in = m_socket.getInputStream();
+				m_socket.setSoTimeout(m_pool != null ? DETACH_POLL_INTERVAL : 0);
+
+				while (true) {
+					if (m_clientClosed) {
+						// The request parser is up to date after the volatile read.
+						idle = m_pool != null && isIdle();
+						break;
+					}
+
+					final int n;
+
+					try {
+						n = in.read(buffer);
+					} catch (SocketTimeoutException e) {
+						continue;
+					}
+
+					if (n == -1) {
+						m_responseParser.close();
+						break;
+					}
+
+					m_responseParser.parse(buffer, 0, n);
+					m_responseStream.handle(buffer, n);
+				}
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+
+				if (!m_clientClosed && !isStopped()) {
+					logIOException(e);
+				}
+			} finally {
+				// Closes the browser connection, as a closed upstream connection always did.
+				m_responseStream.connectionClosed();
+
+				if (!idle || !m_pool.release(m_responseStream.getConnectionDetails().getLocalEndPoint(), m_socket)) {
+					closeQuietly(m_socket);
+				}
+
+				m_bufferPool.release(pooledBuffer);
+			}
+		}
+	}
+
+	/**
+	 * Stream whose {@link #close()} only flushes.
+	 */
+	private static final class UncloseableOutputStream extends FilterOutputStream {
+		UncloseableOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
 	/**
 	 * Runnable that actively reads from an Input stream, greps every outgoing packet, and directs
 	 * appropriately. This is necessary to support HTTP/1.1 between the browser and TCPProxy.
@@ -360,82 +877,59 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		private final InputStream m_in;
 		private final Socket m_localSocket;
 		private final EndPoint m_clientEndPoint;
-		private final Map<String, OutputStreamFilterTee> m_remoteStreamMap = newHashMap();
-		private OutputStreamFilterTee m_lastRemoteStream;
-
-		HTTPProxyStreamDemultiplexer(InputStream in, Socket localSocket, EndPoint clientEndPoint) {
+		private final Map<EndPoint, UpstreamConnection> m_remoteStreamMap = newHashMap();
+		private final HTTPRequestLineScanner m_scanner = new HTTPRequestLineScanner();
+		private final ByteBuffer m_buffer;
+		private final int m_initialLength;
+		private UpstreamConnection m_lastRemoteStream;
+		private EndPoint m_lastRemoteEndPoint;
+
+		HTTPProxyStreamDemultiplexer(InputStream in, Socket localSocket, EndPoint clientEndPoint, ByteBuffer buffer,
+						int initialLength) {
 			m_in = in;
 			m_localSocket = localSocket;
 			m_clientEndPoint = clientEndPoint;
+			m_buffer = buffer;
+			m_initialLength = initialLength;
 		}
 
 		@Override
 		public void interruptibleRun() {
 
-			// Needs to hold the largest reasonable set of HTTP headers - see
-			// comment in HTTPProxyTCPProxyEngine.run().
-			final byte[] buffer = new byte[40960];
+			// Holds the bytes already read by SocketProcessingRunnable, and is large
+			// enough for the largest reasonable set of HTTP headers.
+			final byte[] buffer = m_buffer.array();
 
 			try {
-				while (true) {
-					// Read a buffer full. We're not as robust as we should be here. We
-					// rely on the World conspiring to place request at start of buffer,
-					// the request headers fitting in our buffer, and the request headers
-					// not being fragmented.
-					final int bytesRead = m_in.read(buffer);
+				int bytesRead = 0;
+				int n = m_initialLength;
+
+				while (n != -1) {
+					// We're not as robust as we should be here. We rely on the World
+					// conspiring to place request at start of buffer and the request
+					// headers fitting in our buffer. A request line which is fragmented
+					// inside its host or port is completed by the following reads.
+					final HTTPRequestLineScanner.Type type = m_scanner.scan(buffer, bytesRead, n);
+					bytesRead += n;
+
+					if (type == HTTPRequestLineScanner.Type.UNKNOWN && bytesRead < buffer.length
+									&& (m_scanner.isInsideAuthority() || m_lastRemoteStream == null)) {
+						n = m_in.read(buffer, bytesRead, buffer.length - bytesRead);
+
+						if (n == -1) {
+							// The browser closed the connection before the request line was
+							// complete, there is no remote server to send it to.
+							final HTMLElement message = createMessage(new String(buffer, 0, bytesRead, "US-ASCII"));
+							sendHTTPErrorResponse(message, "400 Bad Request", m_localSocket.getOutputStream());
+						}
 
-					if (bytesRead == -1) {
-						break;
+						continue;
 					}
 
-					final String bytesReadAsString = new String(buffer, 0, bytesRead, "US-ASCII");
-
-					final Matcher matcher = m_httpConnectPattern.matcher(bytesReadAsString);
-
-					if (matcher.find()) {
-						final String remoteHost = matcher.group(2);
-						int remotePort = 80;
-						try {
-							remotePort = Integer.parseInt(matcher.group(3));
-						} catch (NumberFormatException e) {
-							noOp();
-						}
-
-						final EndPoint remoteEndPoint = new EndPoint(remoteHost, remotePort);
-						final String key = remoteEndPoint.toString();
-						m_lastRemoteStream = m_remoteStreamMap.get(key);
-						if (m_lastRemoteStream == null) {
-							// New connection.
-							final Socket remoteSocket;
-							final TCPProxyFilter requestFilter;
-
-							if (m_chainedHTTPProxy != null) {
-								// When running through a chained HTTP proxy, we still
-								// create a new thread pair to handle each target
-								// server. This allows us to reuse
-								// FilteredStreamThread and OutputStreamFilterTee to
-								// log the correct connection details. It may also be
-								// beneficial for performance.
-								remoteSocket = getSocketFactory().createClientSocket(m_chainedHTTPProxy);
-								requestFilter = new HTTPMethodAbsoluteURIFilterDecorator(
-												new HTTPMethodRelativeURIFilterDecorator(getRequestFilter()),
-												remoteEndPoint);
-							} else {
-								remoteSocket = getSocketFactory().createClientSocket(remoteEndPoint);
-								requestFilter = new HTTPMethodRelativeURIFilterDecorator(getRequestFilter());
-							}
-
-							final ConnectionDetails connectionDetails = new ConnectionDetails(m_clientEndPoint,
-											remoteEndPoint, false);
-							m_lastRemoteStream = new OutputStreamFilterTee(connectionDetails,
-											remoteSocket.getOutputStream(), requestFilter, getRequestColour());
-							m_lastRemoteStream.connectionOpened();
-							m_remoteStreamMap.put(key, m_lastRemoteStream);
-							// Spawn a thread to handle everything coming back from
-							// the remote server.
-							new FilteredStreamThread(remoteSocket.getInputStream(), new OutputStreamFilterTee(
-											connectionDetails.getOtherEnd(), m_localSocket.getOutputStream(),
-											getResponseFilter(), getResponseColour()));
+					if (type == HTTPRequestLineScanner.Type.HTTP) {
+						if (!m_scanner.isSameEndPoint(m_lastRemoteEndPoint)) {
+							m_lastRemoteEndPoint = m_scanner.getEndPoint();
+							m_lastRemoteStream = getRemoteStream(m_lastRemoteEndPoint);
 						}
 					} else if (m_lastRemoteStream == null) {
 						throw new AssertionError("No last stream");
@@ -443,6 +937,12 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 					// Should do filtering etc.
 					m_lastRemoteStream.handle(buffer, bytesRead);
+
+					bytesRead = 0;
+					m_scanner.reset();
+
+					// Read a buffer full.
+					n = m_in.read(buffer, 0, buffer.length);
 				}
 			} catch (IOException e) {
 				// Perhaps we should decorate the OutputStreamFilterTee's so
@@ -462,11 +962,11 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					UncheckedInterruptedException.ioException(e2);
 				}
 			} finally {
-				// When exiting, close all our outgoing streams. This will
-				// force all the FilteredStreamThreads we've launched to
-				// handle the paired streams to shut down.
-				for (OutputStreamFilterTee s : m_remoteStreamMap.values()) {
-					s.connectionClosed();
+				// When exiting, detach all our upstream connections. Their
+				// response threads return the idle ones to the pool, and
+				// close the others.
+				for (UpstreamConnection s : m_remoteStreamMap.values()) {
+					s.clientClosed();
 				}
 
 				// We may not have any FilteredStreamThreads, so ensure the
@@ -479,7 +979,41 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					// Ignore.
 					UncheckedInterruptedException.ioException(e);
 				}
+
+				m_bufferPool.release(m_buffer);
+			}
+		}
+
+		private UpstreamConnection getRemoteStream(EndPoint remoteEndPoint) throws IOException {
+			UpstreamConnection remoteStream = m_remoteStreamMap.get(remoteEndPoint);
+
+			if (remoteStream == null) {
+				final UpstreamConnectionPool pool = m_upstreamConnectionPool;
+				Socket remoteSocket = pool != null ? pool.acquire(remoteEndPoint) : null;
+
+				if (remoteSocket == null) {
+					// New connection.
+					if (m_chainedHTTPProxy != null) {
+						// When running through a chained HTTP proxy, we still
+						// create a new thread pair to handle each target
+						// server. This allows us to reuse
+						// FilteredStreamThread and OutputStreamFilterTee to
+						// log the correct connection details. It may also be
+						// beneficial for performance.
+						remoteSocket = getSocketFactory().createClientSocket(m_chainedHTTPProxy);
+					} else {
+						remoteSocket = getSocketFactory().createClientSocket(remoteEndPoint);
+					}
+				}
+
+				final ConnectionDetails connectionDetails = new ConnectionDetails(m_clientEndPoint, remoteEndPoint,
+								false);
+				remoteStream = new UpstreamConnection(connectionDetails, remoteSocket, m_localSocket.getOutputStream(),
+								pool);
+				m_remoteStreamMap.put(remoteEndPoint, remoteStream);
 			}
+
+			return remoteStream;
 		}
 	}
 
@@ -497,11 +1031,14 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		private final EndPoint m_clientEndPoint;
 		private final EndPoint m_remoteEndPoint;
 		private final ProxySSLContext m_proxySSLContext;
+		private final long m_startTime;
 
-		public ConnectionState(EndPoint clientEndPoint, EndPoint remoteEndPoint, ProxySSLContext proxySSLContext) {
+		public ConnectionState(EndPoint clientEndPoint, EndPoint remoteEndPoint, ProxySSLContext proxySSLContext,
+						long startTime) {
 			m_clientEndPoint = clientEndPoint;
 			m_remoteEndPoint = remoteEndPoint;
 			m_proxySSLContext = proxySSLContext;
+			m_startTime = startTime;
 		}
 
 		public EndPoint getClientEndPoint() {
@@ -515,6 +1052,10 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		public ProxySSLContext getProxySSLContext() {
 			return m_proxySSLContext;
 		}
+
+		public long getStartTime() {
+			return m_startTime;
+		}
 	}
 
 	private static final class DelegateSSLEngine extends AbstractTCPProxyEngine {
@@ -523,15 +1064,22 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		private final Pattern m_httpsProxyResponsePattern;
 		private final ProxySSLContextFactory m_proxySSLContextFactory;
 
-		private final BlockingQueue<ConnectionState> m_nextConnection = new SynchronousQueue<ConnectionState>();
+		// Connections announced by prepareNewConnection(), keyed by the local port of the
+		// loopback socket which will connect to us.
+		private final ConcurrentMap<Integer, ConnectionState> m_pendingConnections = new ConcurrentHashMap<Integer, ConnectionState>();
+		private final HostLatencyStatistics m_tunnelSetupStatistics;
+		private ExecutorService m_tunnelExecutor = ExecutorFactory
+						.createCachedThreadPool("tcp_proxy_https_tunnel_setup");
+		private StreamThreads m_streamThreads = new StreamThreads(this, false);
 
 		DelegateSSLEngine(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
 						TCPProxyFilter responseFilter, PrintWriter output, Logger logger, boolean useColour,
-						EndPoint chainedHTTPSProxy) throws IOException {
+						EndPoint chainedHTTPSProxy, HostLatencyStatistics tunnelSetupStatistics) throws IOException {
 			super(sslSocketFactory, requestFilter, responseFilter, output, logger, new EndPoint(
 							InetAddress.getByName(null), 0), useColour, 0);
 
 			m_sslSocketFactory = sslSocketFactory;
+			m_tunnelSetupStatistics = tunnelSetupStatistics;
 
 			m_httpsProxyResponsePattern = Pattern.compile("^HTTP.*? (\\d+) .*", Pattern.DOTALL);
 
@@ -544,13 +1092,12 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 		/**
 		 * Set the DelegateSSLEngine up with the context required to establish a delegate
-		 * connection.
+		 * connection, and open the loopback connection to this engine.
 		 * 
 		 * <p>
-		 * We block here until we are ready to accept a new connection. This is necessary because
-		 * there is no context associated with our TCP connection attempt that can be used to
-		 * identify the appropriate connection information. If we ever wish to support more
-		 * parallelism, consider having multiple delegate engines.
+		 * The loopback socket is bound before it connects, so its local port identifies the
+		 * connection when we accept it. This lets any number of tunnels be set up at the same
+		 * time.
 		 * </p>
 		 * 
 		 * @param in
@@ -561,20 +1108,36 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		 *            client end point
 		 * @param remoteEndPoint
 		 *            remote end point
+		 * @param startTime
+		 *            time when the CONNECT request was received, from {@link System#nanoTime()}.
+		 * @return the socket connected to this engine
 		 * @throws IOException
 		 *             exception
 		 */
-		public void prepareNewConnection(BufferedInputStream in, OutputStream out, EndPoint clientEndPoint,
-						EndPoint remoteEndPoint) throws IOException {
+		public Socket prepareNewConnection(BufferedInputStream in, OutputStream out, EndPoint clientEndPoint,
+						EndPoint remoteEndPoint, long startTime) throws IOException {
 
 			getLogger().debug("prepareNewConnection for {} -> {}", clientEndPoint, remoteEndPoint);
 
 			final ProxySSLContext proxySSLContext = m_proxySSLContextFactory.prepareConnection(in, out);
 
+			final EndPoint listenEndPoint = getListenEndPoint();
+			final InetAddress listenAddress = InetAddress.getByName(listenEndPoint.getHost());
+			final Socket socket = new Socket();
+			boolean connected = false;
+
 			try {
-				m_nextConnection.put(new ConnectionState(clientEndPoint, remoteEndPoint, proxySSLContext));
-			} catch (InterruptedException e) {
-				throw new InterruptedIOException(e.getMessage());
+				socket.bind(new InetSocketAddress(listenAddress, 0));
+				m_pendingConnections.put(socket.getLocalPort(), new ConnectionState(clientEndPoint, remoteEndPoint,
+								proxySSLContext, startTime));
+				socket.connect(new InetSocketAddress(listenAddress, listenEndPoint.getPort()));
+				connected = true;
+				return socket;
+			} finally {
+				if (!connected) {
+					m_pendingConnections.remove(socket.getLocalPort());
+					socket.close();
+				}
 			}
 		}
 
@@ -582,14 +1145,6 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		public void run() {
 
 			while (true) {
-				final ConnectionState connection;
-
-				try {
-					connection = m_nextConnection.take();
-				} catch (InterruptedException e1) {
-					throw new UncheckedInterruptedException(e1);
-				}
-
 				final Socket localSocket;
 
 				try {
@@ -606,45 +1161,76 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					continue;
 				}
 
-				final EndPoint clientEndPoint = connection.getClientEndPoint();
-				final EndPoint remoteEndPoint = connection.getRemoteEndPoint();
-				final ProxySSLContext proxySSLContext = connection.getProxySSLContext();
+				final ConnectionState connection = m_pendingConnections.remove(localSocket.getPort());
 
-				getLogger().debug("Creating connection threads for {} -> {}", clientEndPoint, remoteEndPoint);
+				if (connection == null) {
+					getLogger().error("Unexpected connection from {}", EndPoint.clientEndPoint(localSocket));
+					closeQuietly(localSocket);
+					continue;
+				}
 
-				try {
-					launchThreadPair(localSocket, proxySSLContext.createProxyClientSocket(remoteEndPoint),
-									clientEndPoint, remoteEndPoint, true);
+				// Connecting to the remote server may be slow, so do it off the accept thread.
+				m_tunnelExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						establishTunnel(localSocket, connection);
+					}
+				});
+			}
+		}
 
-					// Send a response back to the browser.
-					proxySSLContext.sendResponse();
+		private void establishTunnel(Socket localSocket, ConnectionState connection) {
+			final EndPoint clientEndPoint = connection.getClientEndPoint();
+			final EndPoint remoteEndPoint = connection.getRemoteEndPoint();
+			final ProxySSLContext proxySSLContext = connection.getProxySSLContext();
 
-					getLogger().debug("Flushed response to {}", clientEndPoint);
-				} catch (IOException e) {
-					UncheckedInterruptedException.ioException(e);
+			getLogger().debug("Creating connection threads for {} -> {}", clientEndPoint, remoteEndPoint);
 
-					if (isStopped()) {
-						break;
-					}
+			try {
+				m_streamThreads.launchThreadPair(localSocket, proxySSLContext.createProxyClientSocket(remoteEndPoint),
+								clientEndPoint, remoteEndPoint, true);
 
-					logIOException(e);
+				// Send a response back to the browser.
+				proxySSLContext.sendResponse();
 
-					try {
-						localSocket.close();
-					} catch (IOException closeException) {
-						throw new AssertionError(closeException);
-					}
+				final long latency = m_tunnelSetupStatistics.recordSince(remoteEndPoint.getHost(),
+								connection.getStartTime());
+				getLogger().debug("Flushed response to {} after {} us", clientEndPoint,
+								TimeUnit.NANOSECONDS.toMicros(latency));
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+
+				if (!isStopped()) {
+					logIOException(e);
 				}
+
+				closeQuietly(localSocket);
 			}
 		}
 
 		/**
-		 * Override to interrupt our queue.
+		 * Set up the tunnels and serve them with virtual threads. This must be called before the
+		 * engine is run.
+		 * 
+		 * @param virtual
+		 *            true to use virtual threads
+		 */
+		void setVirtualThreads(boolean virtual) {
+			final ExecutorService oldTunnelExecutor = m_tunnelExecutor;
+			m_tunnelExecutor = virtual ? StreamThreads.newVirtualThreadPerTaskExecutor("tcp_proxy_https_tunnel_setup")
+							: ExecutorFactory.createCachedThreadPool("tcp_proxy_https_tunnel_setup");
+			oldTunnelExecutor.shutdown();
+			m_streamThreads = new StreamThreads(this, virtual);
+		}
+
+		/**
+		 * Override to also stop the tunnel setup threads.
 		 */
 		@Override
 		public void stop() {
 			super.stop();
-			m_nextConnection.offer(new ConnectionState(null, null, null));
+			m_tunnelExecutor.shutdownNow();
+			m_streamThreads.stop();
 		}
 
 		private final class SimpleContextFactory implements ProxySSLContextFactory {
@@ -659,15 +1245,7 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					public void sendResponse() throws IOException {
 						// Send a 200 response to send to client. Client
 						// will now start sending SSL data to localSocket.
-						final StringBuilder response = new StringBuilder();
-						response.append("HTTP/1.0 200 OK\r\n");
-						response.append("Proxy-agent: The Grinder/");
-						response.append(GrinderBuild.getVersionString());
-						response.append("\r\n");
-						response.append("\r\n");
-
-						out.write(response.toString().getBytes());
-						out.flush();
+						sendConnectResponse(out);
 					}
 
 					@Override
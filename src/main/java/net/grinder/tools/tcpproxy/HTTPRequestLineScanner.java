@@ -0,0 +1,356 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Incremental scanner for the start line and the header of a request sent to the proxy.
+ *
+ * <p>
+ * The scanner works directly on the received bytes and keeps its state between calls to
+ * {@link #scan(byte[], int, int)}, so a request line which is fragmented over several reads is
+ * recognised without copying or decoding the buffer. It recognises the same requests as the
+ * expressions it replaces:
+ * </p>
+ *
+ * <pre>
+ * ^([A-Z]+)[ \t]+http://([^/:]+):?(\d*)/.*\r\n\r\n
+ * ^CONNECT[ \t]+([^:]+):(\d+).*\r\n\r\n
+ * </pre>
+ *
+ * <p>
+ * except that the type of a request is known as soon as its start line is, and the end of the
+ * header is reported separately by {@link #isHeaderComplete()}.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class HTTPRequestLineScanner {
+
+	/**
+	 * Type of the scanned request.
+	 */
+	enum Type {
+		/** More bytes are required to decide. */
+		UNKNOWN,
+		/** A request with an absolute http URI. */
+		HTTP,
+		/** A CONNECT request. */
+		CONNECT,
+		/** The bytes do not start a proxy request. */
+		NONE
+	}
+
+	private static final int MAX_METHOD_LENGTH = 32;
+	private static final int MAX_HOST_LENGTH = 1024;
+	private static final int DEFAULT_HTTP_PORT = 80;
+	private static final byte[] HTTP_SCHEME = toASCII("http://");
+	private static final byte[] CONNECT_METHOD = toASCII("CONNECT");
+	private static final byte[] HEADER_END = toASCII("\r\n\r\n");
+
+	private static final int METHOD = 0;
+	private static final int METHOD_SPACE = 1;
+	private static final int SCHEME = 2;
+	private static final int HOST = 3;
+	private static final int PORT = 4;
+	private static final int CONNECT_HOST = 5;
+	private static final int CONNECT_PORT = 6;
+	private static final int DONE = 7;
+
+	private final byte[] m_host = new byte[MAX_HOST_LENGTH];
+	private int m_hostLength;
+	private int m_port;
+	private boolean m_hasPort;
+	private int m_state;
+	private int m_methodLength;
+	private boolean m_connectMethod;
+	private int m_schemeIndex;
+	private Type m_type;
+	private int m_headerEndIndex;
+	private int m_scanned;
+	private int m_headerLength;
+
+	/**
+	 * Constructor.
+	 */
+	HTTPRequestLineScanner() {
+		reset();
+	}
+
+	/**
+	 * Prepare the scanner for a new request.
+	 */
+	void reset() {
+		m_state = METHOD;
+		m_type = Type.UNKNOWN;
+		m_hostLength = 0;
+		m_port = 0;
+		m_hasPort = false;
+		m_methodLength = 0;
+		m_connectMethod = true;
+		m_schemeIndex = 0;
+		m_headerEndIndex = 0;
+		m_scanned = 0;
+		m_headerLength = -1;
+	}
+
+	/**
+	 * Scan the next bytes of the request. Scanning stops at the end of the header, or as soon as
+	 * the bytes are known not to start a proxy request.
+	 *
+	 * @param buffer
+	 *            buffer
+	 * @param offset
+	 *            offset of the first byte to scan
+	 * @param length
+	 *            the number of bytes to scan
+	 * @return the type of the request known so far
+	 */
+	Type scan(byte[] buffer, int offset, int length) {
+		final int end = offset + length;
+
+		for (int i = offset; i < end && m_headerLength < 0 && m_type != Type.NONE; i++) {
+			final byte b = buffer[i];
+
+			if (m_state != DONE) {
+				scanStartLine(b);
+			}
+
+			m_scanned++;
+
+			if (b == HEADER_END[m_headerEndIndex]) {
+				m_headerEndIndex++;
+
+				if (m_headerEndIndex == HEADER_END.length) {
+					m_headerLength = m_scanned;
+				}
+			} else {
+				m_headerEndIndex = b == '\r' ? 1 : 0;
+			}
+		}
+
+		return m_type;
+	}
+
+	private void scanStartLine(byte b) {
+		switch (m_state) {
+		case METHOD:
+			if (b >= 'A' && b <= 'Z' && m_methodLength < MAX_METHOD_LENGTH) {
+				m_connectMethod &= m_methodLength < CONNECT_METHOD.length && CONNECT_METHOD[m_methodLength] == b;
+				m_methodLength++;
+			} else if (isSpace(b) && m_methodLength > 0) {
+				m_connectMethod &= m_methodLength == CONNECT_METHOD.length;
+				m_state = METHOD_SPACE;
+			} else {
+				fail();
+			}
+			break;
+		case METHOD_SPACE:
+			if (isSpace(b)) {
+				break;
+			}
+
+			if (m_connectMethod && b != ':') {
+				m_state = CONNECT_HOST;
+				appendHost(b);
+				break;
+			}
+
+			m_state = SCHEME;
+			scanStartLine(b);
+			break;
+		case SCHEME:
+			if (b != HTTP_SCHEME[m_schemeIndex]) {
+				fail();
+			} else if (++m_schemeIndex == HTTP_SCHEME.length) {
+				m_state = HOST;
+			}
+			break;
+		case HOST:
+			if (b == '/') {
+				succeed(m_hostLength > 0 ? Type.HTTP : Type.NONE);
+			} else if (b == ':') {
+				if (m_hostLength > 0) {
+					m_state = PORT;
+				} else {
+					fail();
+				}
+			} else {
+				appendHost(b);
+			}
+			break;
+		case PORT:
+			if (b >= '0' && b <= '9') {
+				appendPort(b);
+			} else if (b == '/') {
+				succeed(Type.HTTP);
+			} else {
+				fail();
+			}
+			break;
+		case CONNECT_HOST:
+			if (b == ':') {
+				m_state = CONNECT_PORT;
+			} else {
+				appendHost(b);
+			}
+			break;
+		case CONNECT_PORT:
+			if (b >= '0' && b <= '9') {
+				appendPort(b);
+			} else {
+				succeed(m_hasPort ? Type.CONNECT : Type.NONE);
+			}
+			break;
+		default:
+			throw new AssertionError("Unexpected state " + m_state);
+		}
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private void appendHost(byte b) {
+		if (m_hostLength == MAX_HOST_LENGTH) {
+			fail();
+		} else {
+			m_host[m_hostLength++] = b;
+		}
+	}
+
+	private void appendPort(byte b) {
+		m_hasPort = true;
+		m_port = m_port * 10 + (b - '0');
+
+		if (m_port > 0xFFFF) {
+			fail();
+		}
+	}
+
+	private void succeed(Type type) {
+		m_type = type;
+		m_state = DONE;
+	}
+
+	private void fail() {
+		succeed(Type.NONE);
+	}
+
+	/**
+	 * Get the type of the request known so far.
+	 *
+	 * @return type
+	 */
+	Type getType() {
+		return m_type;
+	}
+
+	/**
+	 * Check whether the scanned bytes end inside the host or port of an absolute http URI. Such a
+	 * request line has been fragmented, so it is worth waiting for the rest of it.
+	 *
+	 * @return true if inside the host or port
+	 */
+	boolean isInsideAuthority() {
+		return m_state == HOST || m_state == PORT;
+	}
+
+	/**
+	 * Check whether the end of the header has been scanned.
+	 *
+	 * @return true if the blank line which terminates the header has been scanned
+	 */
+	boolean isHeaderComplete() {
+		return m_headerLength >= 0;
+	}
+
+	/**
+	 * Get the number of bytes scanned since the last {@link #reset()}.
+	 *
+	 * @return the number of bytes
+	 */
+	int getScannedLength() {
+		return m_scanned;
+	}
+
+	/**
+	 * Get the remote port. The default HTTP port is returned for a http URI without a port.
+	 *
+	 * @return port
+	 */
+	int getPort() {
+		return m_hasPort ? m_port : DEFAULT_HTTP_PORT;
+	}
+
+	/**
+	 * Get the remote host. This creates a new string; use {@link #isSameEndPoint(EndPoint)} to
+	 * check against a known end point.
+	 *
+	 * @return host
+	 */
+	String getHost() {
+		try {
+			return new String(m_host, 0, m_hostLength, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Get the remote end point of the scanned request.
+	 *
+	 * @return end point
+	 */
+	EndPoint getEndPoint() {
+		return new EndPoint(getHost(), getPort());
+	}
+
+	/**
+	 * Check whether the scanned request addresses the given end point, without creating any
+	 * string.
+	 *
+	 * @param endPoint
+	 *            end point to compare with. May be null.
+	 * @return true if the host and port are the same
+	 */
+	boolean isSameEndPoint(EndPoint endPoint) {
+		if (endPoint == null || endPoint.getPort() != getPort()) {
+			return false;
+		}
+
+		final String host = endPoint.getHost();
+
+		if (host.length() != m_hostLength) {
+			return false;
+		}
+
+		for (int i = 0; i < m_hostLength; i++) {
+			if (host.charAt(i) != (m_host[i] & 0xFF)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static byte[] toASCII(String string) {
+		try {
+			return string.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
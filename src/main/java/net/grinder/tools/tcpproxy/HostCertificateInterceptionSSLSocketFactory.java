@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.NoOp.noOp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import net.grinder.common.Closer;
+import net.grinder.common.SSLContextFactory.SSLContextFactoryException;
+import net.grinder.util.InsecureSSLContextFactory;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * {@link InterceptionSSLSocketFactory} which presents a certificate issued for the requested host
+ * by a recorder CA. Browsers which trust the CA accept the intercepted connections without
+ * warnings, and each host keeps its own TLS session cache.
+ *
+ * <p>
+ * The CA and a single server key pair are generated once and kept in {@value #CA_KEYSTORE} under
+ * the given directory; {@value #CA_CERTIFICATE} holds the CA certificate for import into browsers.
+ * Host certificates are signed on demand, kept in a LRU cache in memory and written to the
+ * {@value #HOST_DIRECTORY} directory, so another recording only pays a file read.
+ * </p>
+ *
+ * <p>
+ * Whoever holds the CA key can issue certificates which the browsers trusting the CA accept for
+ * any host. So the key store is protected by a random password generated for each installation
+ * and kept in {@value #CA_PASSWORD}, and both files are made readable and writable by their owner
+ * only. A key store which can not be opened with the password is replaced by a new CA.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class HostCertificateInterceptionSSLSocketFactory implements InterceptionSSLSocketFactory {
+
+	/** Default number of the host certificates kept in memory. */
+	public static final int DEFAULT_MEMORY_CAPACITY = 256;
+
+	/** Default number of the host certificates kept on disk. */
+	public static final int DEFAULT_DISK_CAPACITY = 1024;
+
+	/** Name of the key store file holding the CA and the server key. */
+	public static final String CA_KEYSTORE = "ca.keystore";
+
+	/** Name of the file holding the password of the CA key store. */
+	public static final String CA_PASSWORD = "ca.password";
+
+	/** Name of the DER encoded CA certificate file. */
+	public static final String CA_CERTIFICATE = "ca.cer";
+
+	/** Name of the directory holding the DER encoded host certificates. */
+	public static final String HOST_DIRECTORY = "hosts";
+
+	private static final int PASSWORD_BITS = 160;
+	private static final String CA_ALIAS = "ca";
+	private static final String SERVER_ALIAS = "server";
+	private static final String CA_NAME = "nGrinder Recorder CA";
+
+	private final CertificateGenerator m_generator = new CertificateGenerator();
+	private final File m_hostDirectory;
+	private final char[] m_password;
+	private final int m_diskCapacity;
+	private final X509Certificate m_caCertificate;
+	private final PrivateKey m_caKey;
+	private final KeyPair m_serverKeyPair;
+	private final Map<String, SSLSocketFactory> m_socketFactories;
+
+	private final AtomicLong m_memoryHits = new AtomicLong();
+	private final AtomicLong m_diskHits = new AtomicLong();
+	private final AtomicLong m_generated = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *            directory holding the CA and the host certificates. It is created if necessary.
+	 * @param memoryCapacity
+	 *            maximum number of the host certificates kept in memory
+	 * @param diskCapacity
+	 *            maximum number of the host certificates kept on disk. The least recently used
+	 *            ones are deleted first.
+	 * @throws IOException
+	 *             if the CA can not be read or written
+	 * @throws GeneralSecurityException
+	 *             if the CA can not be created
+	 */
+	public HostCertificateInterceptionSSLSocketFactory(File directory, final int memoryCapacity, int diskCapacity)
+					throws IOException, GeneralSecurityException {
+		m_hostDirectory = new File(directory, HOST_DIRECTORY);
+
+		if (!m_hostDirectory.isDirectory() && !m_hostDirectory.mkdirs()) {
+			throw new IOException("Failed to create " + m_hostDirectory);
+		}
+
+		m_diskCapacity = Math.max(1, diskCapacity);
+		m_socketFactories = new LinkedHashMap<String, SSLSocketFactory>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SSLSocketFactory> eldest) {
+				return size() > Math.max(1, memoryCapacity);
+			}
+		};
+
+		m_password = loadOrCreatePassword(new File(directory, CA_PASSWORD));
+
+		final KeyStore keyStore = loadOrCreateCA(new File(directory, CA_KEYSTORE), new File(directory,
+						CA_CERTIFICATE));
+		m_caCertificate = (X509Certificate) keyStore.getCertificate(CA_ALIAS);
+		m_caKey = (PrivateKey) keyStore.getKey(CA_ALIAS, m_password);
+		m_serverKeyPair = new KeyPair(keyStore.getCertificate(SERVER_ALIAS).getPublicKey(),
+						(PrivateKey) keyStore.getKey(SERVER_ALIAS, m_password));
+	}
+
+	private static char[] loadOrCreatePassword(File passwordFile) throws IOException {
+		if (passwordFile.exists()) {
+			restrictToOwner(passwordFile);
+			final String password = FileUtils.readFileToString(passwordFile, "US-ASCII").trim();
+
+			if (password.length() != 0) {
+				return password.toCharArray();
+			}
+		}
+
+		final String password = new BigInteger(PASSWORD_BITS, new SecureRandom()).toString(Character.MAX_RADIX);
+		createOwnerOnly(passwordFile);
+		FileUtils.writeStringToFile(passwordFile, password, "US-ASCII");
+		return password.toCharArray();
+	}
+
+	private KeyStore loadOrCreateCA(File keyStoreFile, File certificateFile) throws IOException,
+					GeneralSecurityException {
+		final KeyStore keyStore = KeyStore.getInstance("jks");
+
+		if (keyStoreFile.exists()) {
+			restrictToOwner(keyStoreFile);
+			final InputStream in = new FileInputStream(keyStoreFile);
+
+			try {
+				keyStore.load(in, m_password);
+
+				if (keyStore.isKeyEntry(CA_ALIAS) && keyStore.isKeyEntry(SERVER_ALIAS)) {
+					return keyStore;
+				}
+			} catch (IOException e) {
+				// Saved with another password, such as the fixed one of the older versions.
+				if (!(e.getCause() instanceof UnrecoverableKeyException)) {
+					throw e;
+				}
+			} finally {
+				Closer.close(in);
+			}
+		}
+
+		// Key generation is the expensive part, so it is done once for all hosts.
+		final KeyPair caKeyPair = m_generator.generateKeyPair();
+		final X509Certificate caCertificate = m_generator.generateCACertificate(CA_NAME, caKeyPair);
+		final KeyPair serverKeyPair = m_generator.generateKeyPair();
+		final X509Certificate serverCertificate = m_generator.generateHostCertificate("localhost",
+						serverKeyPair.getPublic(), caCertificate, caKeyPair.getPrivate());
+
+		keyStore.load(null, m_password);
+		keyStore.setKeyEntry(CA_ALIAS, caKeyPair.getPrivate(), m_password, new Certificate[] { caCertificate });
+		keyStore.setKeyEntry(SERVER_ALIAS, serverKeyPair.getPrivate(), m_password, new Certificate[] {
+			serverCertificate, caCertificate });
+
+		createOwnerOnly(keyStoreFile);
+		final OutputStream out = new FileOutputStream(keyStoreFile);
+
+		try {
+			keyStore.store(out, m_password);
+		} finally {
+			Closer.close(out);
+		}
+
+		FileUtils.writeByteArrayToFile(certificateFile, caCertificate.getEncoded());
+
+		// Host certificates of a previous CA are useless.
+		final File[] stale = m_hostDirectory.listFiles();
+
+		if (stale != null) {
+			for (File each : stale) {
+				delete(each);
+			}
+		}
+
+		return keyStore;
+	}
+
+	/**
+	 * Get the CA certificate which signs the host certificates.
+	 *
+	 * @return CA certificate
+	 */
+	public X509Certificate getCACertificate() {
+		return m_caCertificate;
+	}
+
+	@Override
+	public Socket createInterceptionSocket(Socket clientSocket, EndPoint remoteEndPoint) throws IOException {
+		final SSLSocket socket = (SSLSocket) getSocketFactory(remoteEndPoint.getHost()).createSocket(clientSocket,
+						remoteEndPoint.getHost(), remoteEndPoint.getPort(), true);
+		socket.setUseClientMode(false);
+		return socket;
+	}
+
+	private SSLSocketFactory getSocketFactory(String host) throws IOException {
+		final String key = host.toLowerCase();
+
+		synchronized (m_socketFactories) {
+			final SSLSocketFactory cached = m_socketFactories.get(key);
+
+			if (cached != null) {
+				m_memoryHits.incrementAndGet();
+				return cached;
+			}
+		}
+
+		// Signing takes a few milliseconds, and is not worth holding the lock for. Two threads
+		// may race for the same new host; both produce valid certificates.
+		final SSLSocketFactory socketFactory;
+
+		try {
+			socketFactory = createSocketFactory(loadOrCreateCertificate(key));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to create the certificate for " + host, e);
+		} catch (SSLContextFactoryException e) {
+			throw new IOException("Failed to create the SSL context for " + host, e);
+		}
+
+		synchronized (m_socketFactories) {
+			m_socketFactories.put(key, socketFactory);
+		}
+
+		return socketFactory;
+	}
+
+	private X509Certificate loadOrCreateCertificate(String host) throws IOException, GeneralSecurityException {
+		final File file = new File(m_hostDirectory, host.replaceAll("[^a-z0-9.\\-]", "_") + ".cer");
+
+		if (file.exists()) {
+			try {
+				final X509Certificate certificate = CertificateGenerator.parse(FileUtils.readFileToByteArray(file));
+				certificate.checkValidity();
+				certificate.verify(m_caCertificate.getPublicKey());
+				m_diskHits.incrementAndGet();
+
+				if (!file.setLastModified(System.currentTimeMillis())) {
+					noOp();
+				}
+
+				return certificate;
+			} catch (GeneralSecurityException e) {
+				// Expired, or signed by a previous CA.
+				delete(file);
+			}
+		}
+
+		final X509Certificate certificate = m_generator.generateHostCertificate(host, m_serverKeyPair.getPublic(),
+						m_caCertificate, m_caKey);
+		m_generated.incrementAndGet();
+
+		FileUtils.writeByteArrayToFile(file, certificate.getEncoded());
+		evictFromDisk();
+
+		return certificate;
+	}
+
+	private SSLSocketFactory createSocketFactory(X509Certificate certificate) throws GeneralSecurityException,
+					IOException, SSLContextFactoryException {
+		final KeyStore keyStore = KeyStore.getInstance("jks");
+		keyStore.load(null, m_password);
+		keyStore.setKeyEntry(SERVER_ALIAS, m_serverKeyPair.getPrivate(), m_password, new Certificate[] {
+			certificate, m_caCertificate });
+
+		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory
+						.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, m_password);
+		final KeyManager[] keyManagers = keyManagerFactory.getKeyManagers();
+
+		return new InsecureSSLContextFactory(keyManagers).getSSLContext().getSocketFactory();
+	}
+
+	private void evictFromDisk() {
+		final File[] files = m_hostDirectory.listFiles();
+
+		if (files == null || files.length <= m_diskCapacity) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				final long l1 = o1.lastModified();
+				final long l2 = o2.lastModified();
+				return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < files.length - m_diskCapacity; ++i) {
+			delete(files[i]);
+		}
+	}
+
+	/**
+	 * Create an empty file which only its owner can read and write, before anything secret is
+	 * written to it.
+	 */
+	private static void createOwnerOnly(File file) throws IOException {
+		FileUtils.deleteQuietly(file);
+		FileUtils.touch(file);
+		restrictToOwner(file);
+	}
+
+	private static void restrictToOwner(File file) {
+		// Clear the permissions of everybody first, then give the owner its own. Some file systems
+		// do not support this; the file keeps its permissions there.
+		if (!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false)
+						&& file.setWritable(true, true) && file.setExecutable(false, false))) {
+			noOp();
+		}
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			noOp();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (m_socketFactories) {
+			return "Host certificates: cached=" + m_socketFactories.size() + ", memory hits=" + m_memoryHits
+							+ ", disk hits=" + m_diskHits + ", generated=" + m_generated;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread safe set of {@link LatencyStatistics}, one for each remote host.
+ *
+ * @since 1.0
+ */
+public final class HostLatencyStatistics {
+	private final String m_name;
+	private final ConcurrentMap<String, LatencyStatistics> m_statistics = //
+					new ConcurrentHashMap<String, LatencyStatistics>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            name of the measured operation
+	 */
+	public HostLatencyStatistics(String name) {
+		m_name = name;
+	}
+
+	/**
+	 * Get the statistics of the given host, creating them if necessary.
+	 *
+	 * @param host
+	 *            host name
+	 * @return statistics
+	 */
+	public LatencyStatistics get(String host) {
+		final LatencyStatistics statistics = m_statistics.get(host);
+
+		if (statistics != null) {
+			return statistics;
+		}
+
+		final LatencyStatistics newStatistics = new LatencyStatistics(m_name + " for " + host);
+		final LatencyStatistics existing = m_statistics.putIfAbsent(host, newStatistics);
+		return existing != null ? existing : newStatistics;
+	}
+
+	/**
+	 * Record the latency of an operation against the given host.
+	 *
+	 * @param host
+	 *            host name
+	 * @param startNanos
+	 *            start time from {@link System#nanoTime()}
+	 * @return the recorded latency in nano seconds
+	 */
+	public long recordSince(String host, long startNanos) {
+		return get(host).recordSince(startNanos);
+	}
+
+	/**
+	 * Get the statistics of every host seen so far.
+	 *
+	 * @return statistics keyed by host name
+	 */
+	public Map<String, LatencyStatistics> getAll() {
+		return Collections.unmodifiableMap(m_statistics);
+	}
+}
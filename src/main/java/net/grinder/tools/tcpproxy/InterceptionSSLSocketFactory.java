@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Factory which terminates the TLS connection of a browser on the proxy side of an intercepted
+ * CONNECT tunnel.
+ *
+ * @since 1.0
+ * @see HTTPProxyTCPProxyEngineEx#setInterceptionSSLSocketFactory(InterceptionSSLSocketFactory)
+ */
+public interface InterceptionSSLSocketFactory {
+
+	/**
+	 * Layer a server side TLS socket over the given browser socket. The handshake happens on the
+	 * first read or write.
+	 *
+	 * @param clientSocket
+	 *            plain socket connected to the browser, after the CONNECT response has been sent
+	 * @param remoteEndPoint
+	 *            the server the browser believes it talks to
+	 * @return TLS socket which reads and writes the decrypted stream. Closing it closes the
+	 *         browser socket.
+	 * @throws IOException
+	 *             if the socket can not be created
+	 */
+	Socket createInterceptionSocket(Socket clientSocket, EndPoint remoteEndPoint) throws IOException;
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import net.grinder.common.Closer;
+import net.grinder.common.SSLContextFactory.SSLContextFactoryException;
+import net.grinder.util.InsecureSSLContextFactory;
+
+/**
+ * {@link InterceptionSSLSocketFactory} which presents the certificate of a key store to every
+ * browser, like {@link TCPProxySSLSocketFactoryImplementation} does for the delegate engine.
+ *
+ * @since 1.0
+ */
+public final class KeyStoreInterceptionSSLSocketFactory implements InterceptionSSLSocketFactory {
+
+	private final SSLSocketFactory m_socketFactory;
+
+	/**
+	 * Constructor which uses the key store bundled with The Grinder.
+	 *
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is invalid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public KeyStoreInterceptionSSLSocketFactory() throws IOException, GeneralSecurityException,
+					SSLContextFactoryException {
+		this(TCPProxySSLSocketFactoryImplementation.class.getResourceAsStream("resources/default.keystore"),
+						"passphrase".toCharArray(), "jks");
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyStoreFile
+	 *            key store file
+	 * @param keyStorePassword
+	 *            key store password
+	 * @param keyStoreType
+	 *            key store type, or null for the default type
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is invalid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public KeyStoreInterceptionSSLSocketFactory(File keyStoreFile, char[] keyStorePassword, String keyStoreType)
+					throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		this(new FileInputStream(keyStoreFile), keyStorePassword, keyStoreType);
+	}
+
+	private KeyStoreInterceptionSSLSocketFactory(InputStream keyStoreStream, char[] keyStorePassword,
+					String keyStoreType) throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		try {
+			m_socketFactory = new InsecureSSLContextFactory(keyStoreStream, keyStorePassword, keyStoreType)
+							.getSSLContext().getSocketFactory();
+		} finally {
+			Closer.close(keyStoreStream);
+		}
+	}
+
+	@Override
+	public Socket createInterceptionSocket(Socket clientSocket, EndPoint remoteEndPoint) throws IOException {
+		final SSLSocket socket = (SSLSocket) m_socketFactory.createSocket(clientSocket, remoteEndPoint.getHost(),
+						remoteEndPoint.getPort(), true);
+		socket.setUseClientMode(false);
+		return socket;
+	}
+
+	@Override
+	public String toString() {
+		return "Key store certificate for all hosts";
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe accumulator of the latencies of a proxy operation.
+ *
+ * @since 1.0
+ */
+public final class LatencyStatistics {
+	private final String m_name;
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_totalNanos = new AtomicLong();
+	private final AtomicLong m_maxNanos = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            name of the measured operation
+	 */
+	public LatencyStatistics(String name) {
+		m_name = name;
+	}
+
+	/**
+	 * Record the latency of an operation which started at the given time.
+	 *
+	 * @param startNanos
+	 *            start time from {@link System#nanoTime()}
+	 * @return the recorded latency in nano seconds
+	 */
+	public long recordSince(long startNanos) {
+		final long latency = System.nanoTime() - startNanos;
+		record(latency);
+		return latency;
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            latency in nano seconds
+	 */
+	public void record(long nanos) {
+		m_count.incrementAndGet();
+		m_totalNanos.addAndGet(nanos);
+
+		long max = m_maxNanos.get();
+
+		while (nanos > max && !m_maxNanos.compareAndSet(max, nanos)) {
+			max = m_maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return m_count.get();
+	}
+
+	/**
+	 * Get the average latency.
+	 *
+	 * @return average latency in milliseconds. 0 if nothing is recorded.
+	 */
+	public double getAverageMillis() {
+		final long count = m_count.get();
+		return count == 0 ? 0 : (double) m_totalNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Get the maximum latency.
+	 *
+	 * @return maximum latency in milliseconds
+	 */
+	public double getMaxMillis() {
+		return (double) m_maxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: count=%d, avg=%.2fms, max=%.2fms", m_name, getCount(), getAverageMillis(),
+						getMaxMillis());
+	}
+}
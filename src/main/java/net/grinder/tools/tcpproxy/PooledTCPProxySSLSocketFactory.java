@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+
+import net.grinder.common.Closer;
+import net.grinder.util.thread.ExecutorFactory;
+
+/**
+ * {@link TCPProxySSLSocketFactory} which keeps a few idle, already handshaken upstream connections
+ * for each {@link EndPoint}.
+ *
+ * <p>
+ * A browser opens several tunnels to the same host when it loads a page. Whenever a tunnel
+ * takes an upstream connection, a spare one is opened and handshaken in the background, so the
+ * following tunnels to that host do not wait for the TCP connect and the TLS handshake. An
+ * upstream connection is never returned to the pool once a tunnel has used it, because the bytes
+ * of a tunnel are opaque to the proxy.
+ * </p>
+ *
+ * <p>
+ * All the connections share the TLS client session cache of the delegate factory, so the spares
+ * and the connections opened on a miss mostly resume a session. The number of the resumed and
+ * the full handshakes is counted.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class PooledTCPProxySSLSocketFactory implements TCPProxySSLSocketFactory {
+
+	/**
+	 * Default number of the idle connections kept for each end point. None, as each spare is a
+	 * connection to the server which the browser did not ask for.
+	 */
+	public static final int DEFAULT_SPARES = 0;
+
+	/** Default time after which an idle connection is closed, in milli seconds. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10000;
+
+	private final TCPProxySSLSocketFactory m_delegate;
+	private final int m_spares;
+	private final UpstreamConnectionPool m_pool;
+
+	private final ConcurrentMap<EndPoint, Boolean> m_refilling = new ConcurrentHashMap<EndPoint, Boolean>();
+	private final ExecutorService m_executor = ExecutorFactory
+					.createCachedThreadPool("tcp_proxy_https_upstream_spares");
+	private volatile boolean m_closed;
+
+	private final AtomicLong m_fullHandshakes = new AtomicLong();
+	private final AtomicLong m_resumedHandshakes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate
+	 *            factory which creates the sockets
+	 * @param spares
+	 *            maximum number of the idle connections kept for each end point
+	 * @param idleTimeout
+	 *            time after which an idle connection is closed, in milli seconds. It should be
+	 *            shorter than the keep alive timeout of the recorded servers.
+	 */
+	public PooledTCPProxySSLSocketFactory(TCPProxySSLSocketFactory delegate, int spares, long idleTimeout) {
+		m_delegate = delegate;
+		m_spares = Math.max(1, spares);
+		m_pool = new UpstreamConnectionPool(m_spares, idleTimeout);
+	}
+
+	@Override
+	public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+		return m_delegate.createServerSocket(localEndPoint, timeout);
+	}
+
+	@Override
+	public Socket createClientSocket(Socket existingSocket, EndPoint remoteEndPoint) throws IOException {
+		// Layered over a chained proxy connection, which can not be pooled.
+		return m_delegate.createClientSocket(existingSocket, remoteEndPoint);
+	}
+
+	@Override
+	public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+		final Socket idleSocket = m_pool.acquire(remoteEndPoint);
+
+		if (idleSocket != null) {
+			refill(remoteEndPoint);
+			return idleSocket;
+		}
+
+		final Socket socket = m_delegate.createClientSocket(remoteEndPoint);
+
+		if (socket instanceof SSLSocket) {
+			// The handshake happens when the tunnel first writes.
+			final long startTime = System.currentTimeMillis();
+
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					countHandshake(event.getSession().getCreationTime(), startTime);
+				}
+			});
+		}
+
+		refill(remoteEndPoint);
+		return socket;
+	}
+
+	private void refill(final EndPoint remoteEndPoint) {
+		if (m_closed || m_refilling.putIfAbsent(remoteEndPoint, Boolean.TRUE) != null) {
+			return;
+		}
+
+		try {
+			m_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fill(remoteEndPoint);
+					} finally {
+						m_refilling.remove(remoteEndPoint);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// Rejected after close.
+			m_refilling.remove(remoteEndPoint);
+		}
+	}
+
+	private void fill(EndPoint remoteEndPoint) {
+		while (!m_closed && m_pool.getIdleCount(remoteEndPoint) < m_spares) {
+			final Socket socket;
+
+			try {
+				socket = m_delegate.createClientSocket(remoteEndPoint);
+			} catch (IOException e) {
+				// The tunnel which needed the end point reports the problem.
+				return;
+			}
+
+			try {
+				if (socket instanceof SSLSocket) {
+					final long startTime = System.currentTimeMillis();
+					((SSLSocket) socket).startHandshake();
+					countHandshake(((SSLSocket) socket).getSession().getCreationTime(), startTime);
+				}
+			} catch (IOException e) {
+				Closer.close(socket);
+				return;
+			}
+
+			if (!m_pool.release(remoteEndPoint, socket)) {
+				return;
+			}
+		}
+	}
+
+	private void countHandshake(long sessionCreationTime, long handshakeStartTime) {
+		// A resumed session keeps the creation time of the session it resumes.
+		if (sessionCreationTime < handshakeStartTime) {
+			m_resumedHandshakes.incrementAndGet();
+		} else {
+			m_fullHandshakes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Close the idle connections and stop opening new ones.
+	 */
+	public void close() {
+		m_closed = true;
+		m_executor.shutdownNow();
+		m_pool.close();
+	}
+
+	@Override
+	public String toString() {
+		final long handshakes = m_fullHandshakes.get() + m_resumedHandshakes.get();
+
+		return String.format("Upstream HTTPS connections: spare hits=%d/%d, resumed handshakes=%d/%d (%d%%), %s",
+						m_pool.getHits(), m_pool.getHits() + m_pool.getMisses(), m_resumedHandshakes.get(),
+						handshakes, handshakes == 0 ? 0 : m_resumedHandshakes.get() * 100 / handshakes, m_pool);
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.grinder.common.Closer;
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.tools.tcpproxy.AbstractTCPProxyEngine.OutputStreamFilterTee;
+import net.grinder.tools.tcpproxy.AbstractTCPProxyEngine.StreamThread;
+import net.grinder.util.thread.InterruptibleRunnable;
+import net.grinder.util.thread.InterruptibleRunnableAdapter;
+
+/**
+ * Starts the threads which serve the streams of a proxy engine.
+ *
+ * <p>
+ * By default each stream gets a {@link StreamThread} of the engine. On a JDK which has virtual
+ * threads, they can be used instead, so the number of the sockets the recorder can serve at once
+ * is not bound by the number of the OS threads. The recorder is built for older JDKs too, so the
+ * virtual thread API is only reached by reflection.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class StreamThreads {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_NAME_COUNTER;
+	private static final Method BUILDER_UNSTARTED;
+	private static final Method BUILDER_FACTORY;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderNameCounter = null;
+		Method builderUnstarted = null;
+		Method builderFactory = null;
+		Method newThreadPerTaskExecutor = null;
+
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class);
+			builderNameCounter = builderClass.getMethod("name", String.class, long.class);
+			builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+			builderFactory = builderClass.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+			// Virtual threads are a preview feature on some JDKs, and throw if it is disabled.
+			ofVirtual.invoke(null);
+		} catch (Exception e) {
+			ofVirtual = null;
+		} catch (LinkageError e) {
+			ofVirtual = null;
+		}
+
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_NAME_COUNTER = builderNameCounter;
+		BUILDER_UNSTARTED = builderUnstarted;
+		BUILDER_FACTORY = builderFactory;
+		NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+	}
+
+	private final AbstractTCPProxyEngine m_engine;
+	private final boolean m_virtual;
+	private final Map<Thread, InputStream> m_virtualThreads = new ConcurrentHashMap<Thread, InputStream>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param engine
+	 *            engine which owns the streams
+	 * @param virtual
+	 *            true to use virtual threads. It must only be true if
+	 *            {@link #isVirtualThreadSupported()} is.
+	 */
+	StreamThreads(AbstractTCPProxyEngine engine, boolean virtual) {
+		m_engine = engine;
+		m_virtual = virtual;
+	}
+
+	/**
+	 * Check if this JDK has virtual threads.
+	 *
+	 * @return true if virtual threads can be used
+	 */
+	static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create an executor which runs each task on its own virtual thread.
+	 *
+	 * @param name
+	 *            prefix of the thread names
+	 * @return executor
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		final ThreadFactory factory = (ThreadFactory) invoke(BUILDER_FACTORY,
+						invoke(BUILDER_NAME_COUNTER, invoke(OF_VIRTUAL, null), name + "-", 0L));
+		return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, factory);
+	}
+
+	private static Object invoke(Method method, Object target, Object... arguments) {
+		try {
+			return method.invoke(target, arguments);
+		} catch (IllegalAccessException e) {
+			throw new AssertionError(e);
+		} catch (InvocationTargetException e) {
+			throw new AssertionError(e.getCause());
+		}
+	}
+
+	/**
+	 * Check if the threads are virtual.
+	 *
+	 * @return true if virtual
+	 */
+	boolean isVirtual() {
+		return m_virtual;
+	}
+
+	/**
+	 * Start a thread which runs the given runnable.
+	 *
+	 * @param runnable
+	 *            runnable
+	 * @param name
+	 *            thread name
+	 * @param in
+	 *            stream the runnable reads. It is closed to stop the thread.
+	 */
+	void start(InterruptibleRunnable runnable, String name, final InputStream in) {
+		if (!m_virtual) {
+			m_engine.new StreamThread(runnable, name, in).start();
+			return;
+		}
+
+		final Runnable adapter = new InterruptibleRunnableAdapter(runnable);
+		final Thread thread = (Thread) invoke(BUILDER_UNSTARTED, invoke(BUILDER_NAME, invoke(OF_VIRTUAL, null), name),
+						new Runnable() {
+							@Override
+							public void run() {
+								try {
+									adapter.run();
+								} finally {
+									m_virtualThreads.remove(Thread.currentThread());
+								}
+							}
+						});
+
+		m_virtualThreads.put(thread, in);
+		thread.start();
+	}
+
+	/**
+	 * Start the two threads which filter the traffic between the given sockets, as
+	 * {@link AbstractTCPProxyEngine#launchThreadPair} does.
+	 *
+	 * @param localSocket
+	 *            local socket
+	 * @param remoteSocket
+	 *            remote socket
+	 * @param sourceEndPoint
+	 *            local end point
+	 * @param targetEndPoint
+	 *            remote end point
+	 * @param isSecure
+	 *            true if the connection is secure
+	 * @throws IOException
+	 *             if the streams of the sockets are not available
+	 */
+	void launchThreadPair(Socket localSocket, Socket remoteSocket, EndPoint sourceEndPoint,
+					EndPoint targetEndPoint, boolean isSecure) throws IOException {
+		if (!m_virtual) {
+			m_engine.launchThreadPair(localSocket, remoteSocket, sourceEndPoint, targetEndPoint, isSecure);
+			return;
+		}
+
+		final ConnectionDetails connectionDetails = new ConnectionDetails(sourceEndPoint, targetEndPoint, isSecure);
+
+		startFilteredStream(localSocket.getInputStream(), m_engine.new OutputStreamFilterTee(connectionDetails,
+						remoteSocket.getOutputStream(), m_engine.getRequestFilter(), m_engine.getRequestColour()));
+		startFilteredStream(remoteSocket.getInputStream(), m_engine.new OutputStreamFilterTee(
+						connectionDetails.getOtherEnd(), localSocket.getOutputStream(), m_engine.getResponseFilter(),
+						m_engine.getResponseColour()));
+	}
+
+	private void startFilteredStream(final InputStream in, final OutputStreamFilterTee outputStreamFilterTee) {
+		start(new InterruptibleRunnable() {
+			@Override
+			public void interruptibleRun() {
+				outputStreamFilterTee.connectionOpened();
+				final byte[] buffer = new byte[BUFFER_SIZE];
+
+				try {
+					while (true) {
+						final int bytesRead = in.read(buffer, 0, BUFFER_SIZE);
+
+						if (bytesRead == -1) {
+							break;
+						}
+
+						outputStreamFilterTee.handle(buffer, bytesRead);
+					}
+				} catch (SocketException e) {
+					// Most likely the other end closed the socket.
+					UncheckedInterruptedException.ioException(e);
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					m_engine.logIOException(e);
+				} finally {
+					outputStreamFilterTee.connectionClosed();
+				}
+
+				Closer.close(in);
+			}
+		}, "Filter thread for " + outputStreamFilterTee.getConnectionDetails(), in);
+	}
+
+	/**
+	 * Stop the virtual threads, by closing their streams and interrupting them. The
+	 * {@link StreamThread}s are stopped by the engine.
+	 */
+	void stop() {
+		for (Map.Entry<Thread, InputStream> each : m_virtualThreads.entrySet()) {
+			Closer.close(each.getValue());
+			each.getKey().interrupt();
+		}
+
+		for (Thread each : m_virtualThreads.keySet()) {
+			try {
+				each.join();
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * {@link TCPProxySocketFactory} which creates the listen socket from a {@link ServerSocketChannel}
+ * so that accepted sockets can be handed to a {@link java.nio.channels.Selector}.
+ *
+ * Client sockets are created by the plain {@link TCPProxySocketFactoryImplementation}.
+ *
+ * @since 1.0
+ */
+final class TCPProxyChannelSocketFactory implements TCPProxySocketFactory {
+
+	private static final int BACKLOG = 50;
+
+	private final TCPProxySocketFactory m_clientSocketFactory = new TCPProxySocketFactoryImplementation();
+
+	@Override
+	public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+		final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		final ServerSocket serverSocket = serverSocketChannel.socket();
+		serverSocket.setSoTimeout(timeout);
+		serverSocket.bind(
+						new InetSocketAddress(InetAddress.getByName(localEndPoint.getHost()), localEndPoint.getPort()),
+						BACKLOG);
+		return serverSocket;
+	}
+
+	@Override
+	public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+		return m_clientSocketFactory.createClientSocket(remoteEndPoint);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.grinder.common.Closer;
+
+/**
+ * Bounded pool of idle upstream connections, keyed by the remote {@link EndPoint}.
+ *
+ * <p>
+ * An idle connection is closed once it has waited longer than the idle timeout, and a connection
+ * is only handed out after a short read has shown that the server did not close it meanwhile.
+ * The pool never blocks; when it has no connection for an end point, the caller opens a new one.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class UpstreamConnectionPool {
+
+	/**
+	 * Default maximum number of the idle connections kept for each end point. None, so that the
+	 * upstream connections close with the browser connections unless the pool is enabled.
+	 */
+	public static final int DEFAULT_MAX_IDLE_PER_END_POINT = 0;
+
+	/**
+	 * Default time after which an idle connection is closed, in milli seconds. It is below the
+	 * default keep alive timeout of the common servers.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 4000;
+
+	private final int m_maxIdlePerEndPoint;
+	private final long m_idleTimeoutNanos;
+	private final ConcurrentMap<EndPoint, BlockingQueue<IdleConnection>> m_idleConnections = //
+					new ConcurrentHashMap<EndPoint, BlockingQueue<IdleConnection>>();
+	private volatile boolean m_closed;
+
+	private final AtomicInteger m_idle = new AtomicInteger();
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_released = new AtomicLong();
+	private final AtomicLong m_expired = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxIdlePerEndPoint
+	 *            maximum number of the idle connections kept for each end point
+	 * @param idleTimeout
+	 *            time after which an idle connection is closed, in milli seconds
+	 */
+	public UpstreamConnectionPool(int maxIdlePerEndPoint, long idleTimeout) {
+		m_maxIdlePerEndPoint = Math.max(1, maxIdlePerEndPoint);
+		m_idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Take an idle connection to the given end point.
+	 *
+	 * @param remoteEndPoint
+	 *            end point
+	 * @return connection, or {@code null} if the pool has none
+	 */
+	public Socket acquire(EndPoint remoteEndPoint) {
+		final BlockingQueue<IdleConnection> queue = m_idleConnections.get(remoteEndPoint);
+
+		if (queue != null) {
+			// The most recently released connections are at the tail, but any live one will do.
+			for (IdleConnection connection = queue.poll(); connection != null; connection = queue.poll()) {
+				m_idle.decrementAndGet();
+
+				if (!connection.isExpired(System.nanoTime()) && isAlive(connection.getSocket())) {
+					m_hits.incrementAndGet();
+					return connection.getSocket();
+				}
+
+				m_expired.incrementAndGet();
+				Closer.close(connection.getSocket());
+			}
+		}
+
+		m_misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Return a connection which is at a message boundary. The connection is closed if the pool
+	 * already holds enough connections to the end point, or is closed.
+	 *
+	 * @param remoteEndPoint
+	 *            end point the connection is connected to
+	 * @param socket
+	 *            connection
+	 * @return true if the pool kept the connection
+	 */
+	public boolean release(EndPoint remoteEndPoint, Socket socket) {
+		expire();
+
+		if (!m_closed && !socket.isClosed()) {
+			final BlockingQueue<IdleConnection> queue = getQueue(remoteEndPoint);
+
+			if (queue.size() < m_maxIdlePerEndPoint
+							&& queue.offer(new IdleConnection(socket, System.nanoTime() + m_idleTimeoutNanos))) {
+				m_idle.incrementAndGet();
+				m_released.incrementAndGet();
+
+				if (m_closed) {
+					close();
+				}
+
+				return true;
+			}
+		}
+
+		Closer.close(socket);
+		return false;
+	}
+
+	/**
+	 * Get the number of the idle connections to the given end point.
+	 *
+	 * @param remoteEndPoint
+	 *            end point
+	 * @return number of the idle connections
+	 */
+	public int getIdleCount(EndPoint remoteEndPoint) {
+		final BlockingQueue<IdleConnection> queue = m_idleConnections.get(remoteEndPoint);
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Get the number of all the idle connections.
+	 *
+	 * @return number of the idle connections
+	 */
+	public int getIdleCount() {
+		return m_idle.get();
+	}
+
+	/**
+	 * Get the number of the connections taken from the pool.
+	 *
+	 * @return hit count
+	 */
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	/**
+	 * Get the number of the times the pool had no connection to give.
+	 *
+	 * @return miss count
+	 */
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Close all the idle connections, and every connection released later.
+	 */
+	public void close() {
+		m_closed = true;
+
+		for (BlockingQueue<IdleConnection> queue : m_idleConnections.values()) {
+			for (IdleConnection connection = queue.poll(); connection != null; connection = queue.poll()) {
+				m_idle.decrementAndGet();
+				Closer.close(connection.getSocket());
+			}
+		}
+	}
+
+	private BlockingQueue<IdleConnection> getQueue(EndPoint remoteEndPoint) {
+		final BlockingQueue<IdleConnection> queue = m_idleConnections.get(remoteEndPoint);
+
+		if (queue != null) {
+			return queue;
+		}
+
+		final BlockingQueue<IdleConnection> newQueue = new LinkedBlockingQueue<IdleConnection>();
+		final BlockingQueue<IdleConnection> existing = m_idleConnections.putIfAbsent(remoteEndPoint, newQueue);
+		return existing != null ? existing : newQueue;
+	}
+
+	private void expire() {
+		final long now = System.nanoTime();
+
+		for (BlockingQueue<IdleConnection> queue : m_idleConnections.values()) {
+			for (IdleConnection connection : queue) {
+				if (connection.isExpired(now) && queue.remove(connection)) {
+					m_idle.decrementAndGet();
+					m_expired.incrementAndGet();
+					Closer.close(connection.getSocket());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check that the server has not closed an idle connection. Nothing is expected from it, so a
+	 * short read either times out or sees the end of the stream. The socket is left without a
+	 * read timeout.
+	 *
+	 * @param socket
+	 *            idle connection
+	 * @return true if the connection can be used
+	 */
+	static boolean isAlive(Socket socket) {
+		if (socket.isClosed()) {
+			return false;
+		}
+
+		try {
+			socket.setSoTimeout(1);
+
+			try {
+				socket.getInputStream().read();
+				// Either the end of the stream, or unexpected data such as a timeout response.
+				return false;
+			} catch (SocketTimeoutException e) {
+				socket.setSoTimeout(0);
+				return true;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final long hits = m_hits.get();
+		final long total = hits + m_misses.get();
+
+		return String.format("Upstream pool: idle=%d, hits=%d/%d (%d%%), released=%d, expired=%d", m_idle.get(),
+						hits, total, total == 0 ? 0 : hits * 100 / total, m_released.get(), m_expired.get());
+	}
+
+	/**
+	 * Connection waiting in the pool.
+	 */
+	private static final class IdleConnection {
+		private final Socket m_socket;
+		private final long m_expiryTime;
+
+		public IdleConnection(Socket socket, long expiryTime) {
+			m_socket = socket;
+			m_expiryTime = expiryTime;
+		}
+
+		public Socket getSocket() {
+			return m_socket;
+		}
+
+		public boolean isExpired(long now) {
+			return now - m_expiryTime > 0;
+		}
+	}
+}
@@ -29,7 +29,7 @@ import net.grinder.plugin.http.xml.TokenType;
  */
 public enum Language {
 	/** Jython Language. */
-	Jython("jython_template", "text/python") {
+	Jython("jython_template", "jython_page_template", "text/python", "py") {
 		@Override
 		public Functions createFunctions(Map<String, BaseURIType> urlMap, Map<String, CommonHeadersType> headerMap,
 						Map<String, TokenType> tokenMap, Set<GenerationOption> options) {
@@ -37,7 +37,7 @@ public enum Language {
 		}
 	},
 	/** Groovy Language. */
-	Groovy("groovy_template", "text/groovy") {
+	Groovy("groovy_template", "groovy_page_template", "text/groovy", "groovy") {
 		@Override
 		public Functions createFunctions(Map<String, BaseURIType> urlMap, Map<String, CommonHeadersType> headerMap,
 						Map<String, TokenType> tokenMap, Set<GenerationOption> options) {
@@ -45,19 +45,27 @@ public enum Language {
 		}
 	};
 	private final String templateName;
+	private final String pageTemplateName;
 	private final String contentType;
+	private final String extension;
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param templateName
 	 *            freemarker template name
+	 * @param pageTemplateName
+	 *            freemarker template name of the page methods
 	 * @param contentType
 	 *            content type
+	 * @param extension
+	 *            extension of the script files
 	 */
-	Language(String templateName, String contentType) {
+	Language(String templateName, String pageTemplateName, String contentType, String extension) {
 		this.templateName = templateName;
+		this.pageTemplateName = pageTemplateName;
 		this.contentType = contentType;
+		this.extension = extension;
 	}
 
 	/**
@@ -81,8 +89,16 @@ public enum Language {
 		return templateName;
 	}
 
+	public String getPageTemplateName() {
+		return pageTemplateName;
+	}
+
 	public String getContentType() {
 		return contentType;
 	}
 
+	public String getExtension() {
+		return extension;
+	}
+
 }
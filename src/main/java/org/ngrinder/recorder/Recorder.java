@@ -254,7 +254,8 @@ public class Recorder {
 			size = screenSize;
 		}
 		boolean frameUse = recorderConfig.getPropertyBoolean("use.frame", false);
-		RecordingControlPanel recordingControlPanel = new RecordingControlPanel(proxy.getConnectionFilter());
+		RecordingControlPanel recordingControlPanel = new RecordingControlPanel(proxy.getConnectionFilter(),
+						proxy.getUpstreamConnectionPool());
 		frame.getContentPane().add(createSplitPane(tabbedPane, recordingControlPanel));
 		if (!frameUse) {
 			frame.setUndecorated(true);
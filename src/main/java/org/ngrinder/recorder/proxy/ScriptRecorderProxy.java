@@ -19,13 +19,21 @@ import static org.ngrinder.recorder.util.NetworkUtil.getAvailablePort;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.StringWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+import net.grinder.plugin.http.tcpproxyfilter.BodyStore;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectedHostHTTPFilterEventListener;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionAwareNullRequestFilter;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionCache;
@@ -45,21 +53,29 @@ import net.grinder.plugin.http.tcpproxyfilter.SwitchableTcpProxyFilter;
 import net.grinder.plugin.http.tcpproxyfilter.options.FileTypeCategory;
 import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
 import net.grinder.tools.tcpproxy.AbstractTCPProxyEngine;
+import net.grinder.tools.tcpproxy.BufferPool;
 import net.grinder.tools.tcpproxy.CommentSourceImplementation;
 import net.grinder.tools.tcpproxy.CompositeFilter;
 import net.grinder.tools.tcpproxy.EndPoint;
 import net.grinder.tools.tcpproxy.HTTPProxyTCPProxyEngineEx;
+import net.grinder.tools.tcpproxy.HostCertificateInterceptionSSLSocketFactory;
+import net.grinder.tools.tcpproxy.InterceptionSSLSocketFactory;
+import net.grinder.tools.tcpproxy.KeyStoreInterceptionSSLSocketFactory;
 import net.grinder.tools.tcpproxy.NullFilter;
+import net.grinder.tools.tcpproxy.PooledTCPProxySSLSocketFactory;
 import net.grinder.tools.tcpproxy.TCPProxyFilter;
 import net.grinder.tools.tcpproxy.TCPProxySSLSocketFactory;
 import net.grinder.tools.tcpproxy.TCPProxySSLSocketFactoryImplementation;
 import net.grinder.tools.tcpproxy.UpdatableCommentSource;
+import net.grinder.tools.tcpproxy.UpstreamConnectionPool;
 import net.grinder.util.AttributeStringParserImplementation;
 import net.grinder.util.Language;
 import net.grinder.util.Pair;
 import net.grinder.util.SimpleStringEscaper;
 import net.grinder.util.http.URIParserImplementation;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.ngrinder.recorder.event.MessageBus;
 import org.ngrinder.recorder.event.MessageBusConnection;
@@ -81,8 +97,13 @@ import org.slf4j.LoggerFactory;
  */
 public class ScriptRecorderProxy {
 	private static final Logger LOG = LoggerFactory.getLogger(ScriptRecorderProxy.class);
+	private static final int SCRIPT_BUFFER_SIZE = 0x10000;
+	private static final String SCRIPT_PREFIX = "script_";
+	private static final int SCRIPT_FILES_KEPT = 10;
 
 	private AbstractTCPProxyEngine m_httpProxyEngine;
+	private PooledTCPProxySSLSocketFactory m_upstreamSocketFactory;
+	private UpstreamConnectionPool m_upstreamConnectionPool;
 
 	private DefaultPicoContainer m_filterContainer;
 
@@ -104,7 +125,17 @@ public class ScriptRecorderProxy {
 	 */
 	public synchronized void stopProxy() {
 		m_httpProxyEngine.stop();
+		if (m_upstreamSocketFactory != null) {
+			LOG.info("{}", m_upstreamSocketFactory);
+			m_upstreamSocketFactory.close();
+		}
+		if (m_upstreamConnectionPool != null) {
+			LOG.info("{}", m_upstreamConnectionPool);
+			m_upstreamConnectionPool.close();
+		}
 		if (m_filterContainer.getLifecycleState().isStarted()) {
+			LOG.info("{}", m_filterContainer.getComponent(ConnectionHandlerFactoryImplEx.class).getExchangeStatistics());
+			LOG.info("{}", m_filterContainer.getComponent(HTTPRecordingImplEx.class).getBodyStore());
 			m_filterContainer.stop();
 			m_filterContainer.dispose();
 		}
@@ -155,8 +186,21 @@ public class ScriptRecorderProxy {
 		m_filterContainer.addComponent(URIParserImplementation.class);
 		m_filterContainer.addComponent(SimpleStringEscaper.class);
 		m_filterContainer.addComponent(recorderConfig);
+		// #proxy.buffer.pool.size and #proxy.buffer.direct tune the I/O buffers shared by the
+		// proxy engine and the connection handlers.
+		final BufferPool bufferPool = new BufferPool(recorderConfig.getPropertyInt("proxy.buffer.pool.size",
+						BufferPool.DEFAULT_CAPACITY), recorderConfig.getPropertyBoolean("proxy.buffer.direct", false));
+		m_filterContainer.addComponent(bufferPool);
 		m_filterContainer.start();
 		LOG.info("Pico container initiated..");
+		final ConnectionHandlerFactoryImplEx connectionHandlerFactory = m_filterContainer
+						.getComponent(ConnectionHandlerFactoryImplEx.class);
+		// #recorder.token.keys=comma separated names of the JSON keys whose string values are tokens
+		connectionHandlerFactory.setTokenKeys(StringUtils.split(recorderConfig.getProperty("recorder.token.keys", ""),
+						", "));
+		// #recorder.body.memory.limit=size of the largest request body kept in memory
+		connectionHandlerFactory.setBodyMemoryLimit(recorderConfig.getPropertyInt("recorder.body.memory.limit",
+						ConnectionHandlerFactoryImplEx.DEFAULT_BODY_MEMORY_LIMIT));
 
 		final SwitchableResponseTcpProxyFilter switchableResponseFilter = m_filterContainer
 						.getComponent(SwitchableResponseTcpProxyFilter.class);
@@ -169,6 +213,11 @@ public class ScriptRecorderProxy {
 						.getComponent(ConnectionAwareNullRequestFilter.class);
 		final FileTypeFilterImpl fileTypeFilter = m_filterContainer.getComponent(FileTypeFilterImpl.class);
 		final HTTPRecordingImplEx httpRecording = m_filterContainer.getComponent(HTTPRecordingImplEx.class);
+		httpRecording.setBodyStore(new BodyStore(recorderConfig.getHome().getFile("bodies")));
+		final ProcessHTTPRecordingWithFreeMarker processor = m_filterContainer
+						.getComponent(ProcessHTTPRecordingWithFreeMarker.class);
+		processor.setTemplateDirectory(recorderConfig.getHome().getFile("template"));
+		processor.setRenderThreads(recorderConfig.getPropertyInt("recorder.script.render.threads", 1));
 		final ConnectedHostHTTPFilterEventListener connectionCache = m_filterContainer
 						.getComponent(ConnectedHostHTTPFilterEventListener.class);
 		final MessageBus messageBus = MessageBus.getInstance();
@@ -193,11 +242,7 @@ public class ScriptRecorderProxy {
 				ProcessHTTPRecordingWithFreeMarker httpOutput = m_filterContainer
 								.getComponent(ProcessHTTPRecordingWithFreeMarker.class);
 				HTTPRecordingImplEx recoding = m_filterContainer.getComponent(HTTPRecordingImplEx.class);
-				StringWriter writer = new StringWriter();
 				Set<GenerationOption> second = (Set<GenerationOption>) pair.getSecond();
-				httpOutput.setGenerationOptions(second);
-				httpOutput.setWriter(writer);
-				recoding.generate();
 				Language lang = Language.Jython;
 				for (GenerationOption each : second) {
 					if (StringUtils.equals("Language", each.getGroup())) {
@@ -205,7 +250,27 @@ public class ScriptRecorderProxy {
 						break;
 					}
 				}
-				Pair<Language, String> result = Pair.of(lang, writer.toString());
+				// The script is written to a file as it is rendered, and the script tab reads it from there.
+				String time = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+				File script = recorderConfig.getHome().getFile(
+								"scripts/" + SCRIPT_PREFIX + time + "." + lang.getExtension());
+				Writer writer = null;
+				try {
+					FileUtils.forceMkdir(script.getParentFile());
+					writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(script), "UTF-8"),
+									SCRIPT_BUFFER_SIZE);
+					httpOutput.setGenerationOptions(second);
+					httpOutput.setWriter(writer);
+					recoding.generate();
+					writer.close();
+				} catch (IOException e) {
+					LOG.error("Failed to write the script to {}", script, e);
+					return;
+				} finally {
+					IOUtils.closeQuietly(writer);
+				}
+				deleteOldScripts(script.getParentFile());
+				Pair<Language, File> result = Pair.of(lang, script);
 				messageBus.getPublisher(Topics.SHOW_SCRIPT).propertyChange(
 								new PropertyChangeEvent(this, "Show Script", null, result));
 			}
@@ -238,8 +303,49 @@ public class ScriptRecorderProxy {
 		final TCPProxyFilter responseFilter = responseFilterChain.resolveFilter();
 		try {
 			TCPProxySSLSocketFactory sslSocketFactory = ceateTCPProxySSlSocketFactory();
-			m_httpProxyEngine = new HTTPProxyTCPProxyEngineEx(sslSocketFactory, requestFilter, responseFilter, LOG,
-							localHttpEndPoint, null, null);
+			// #proxy.https.upstream.spares keeps handshaken upstream connections for the next tunnels.
+			int spares = recorderConfig.getPropertyInt("proxy.https.upstream.spares",
+							PooledTCPProxySSLSocketFactory.DEFAULT_SPARES);
+			if (spares > 0) {
+				m_upstreamSocketFactory = new PooledTCPProxySSLSocketFactory(sslSocketFactory, spares,
+								recorderConfig.getPropertyInt("proxy.https.upstream.idle.timeout",
+												(int) PooledTCPProxySSLSocketFactory.DEFAULT_IDLE_TIMEOUT));
+				sslSocketFactory = m_upstreamSocketFactory;
+			}
+			// #proxy.nio=true multiplexes plain HTTP connections over proxy.nio.threads event loops.
+			int eventLoopCount = 0;
+			if (recorderConfig.getPropertyBoolean("proxy.nio", false)) {
+				eventLoopCount = Math.max(1, recorderConfig.getPropertyInt("proxy.nio.threads", 2));
+				LOG.info("NIO proxy engine is used with {} event loops", eventLoopCount);
+			}
+			HTTPProxyTCPProxyEngineEx httpProxyEngine = new HTTPProxyTCPProxyEngineEx(sslSocketFactory, requestFilter,
+							responseFilter, LOG, localHttpEndPoint, null, null, eventLoopCount, bufferPool);
+			// #proxy.virtual.threads=true serves the connections with virtual threads on JDK 21 or later.
+			if (recorderConfig.getPropertyBoolean("proxy.virtual.threads", false)) {
+				if (httpProxyEngine.setVirtualThreads(true)) {
+					LOG.info("Connections are served with virtual threads");
+				} else {
+					LOG.warn("Virtual threads are not supported by this JDK. Platform threads are used.");
+				}
+			}
+			// #proxy.https.inprocess=true terminates the browser TLS connections in the tunnel threads.
+			// #proxy.https.certificate.generate=true does so with a certificate per host.
+			if (recorderConfig.getPropertyBoolean("proxy.https.certificate.generate", false)) {
+				LOG.info("HTTPS connections are intercepted in process with generated certificates");
+				httpProxyEngine.setInterceptionSSLSocketFactory(createHostCertificateInterceptionSSLSocketFactory());
+			} else if (recorderConfig.getPropertyBoolean("proxy.https.inprocess", false)) {
+				LOG.info("HTTPS connections are intercepted in process");
+				httpProxyEngine.setInterceptionSSLSocketFactory(createInterceptionSSLSocketFactory());
+			}
+			// #proxy.http.upstream.pool.size keeps idle upstream HTTP connections for reuse.
+			int poolSize = recorderConfig.getPropertyInt("proxy.http.upstream.pool.size",
+							UpstreamConnectionPool.DEFAULT_MAX_IDLE_PER_END_POINT);
+			if (poolSize > 0) {
+				m_upstreamConnectionPool = new UpstreamConnectionPool(poolSize, recorderConfig.getPropertyInt(
+								"proxy.http.upstream.idle.timeout", (int) UpstreamConnectionPool.DEFAULT_IDLE_TIMEOUT));
+				httpProxyEngine.setUpstreamConnectionPool(m_upstreamConnectionPool);
+			}
+			m_httpProxyEngine = httpProxyEngine;
 			Thread httpProxyThread = new Thread(m_httpProxyEngine);
 			httpProxyThread.start();
 			LOG.info("Finish proxy initailization.");
@@ -280,6 +386,80 @@ public class ScriptRecorderProxy {
 		}
 	}
 
+	/**
+	 * Create InterceptionSSLSocketFactory from the same keystore as
+	 * {@link #ceateTCPProxySSlSocketFactory()}.
+	 * 
+	 * @return configured {@link InterceptionSSLSocketFactory}
+	 */
+	protected InterceptionSSLSocketFactory createInterceptionSSLSocketFactory() {
+		checkNotNull(recorderConfig, "setRecorderConfig should called in advance");
+		File keyStoreFile = recorderConfig.getHome().getFile("keystore");
+		String keyStorePassword = recorderConfig.getProperty("keystore.password", "");
+		String keyStoreType = recorderConfig.getProperty("keystore.type", null);
+		try {
+			if (keyStoreFile.exists() && StringUtils.isNotEmpty(keyStorePassword)) {
+				return new KeyStoreInterceptionSSLSocketFactory(keyStoreFile, keyStorePassword.toCharArray(),
+								keyStoreType);
+			}
+		} catch (Exception e) {
+			LOG.info("exception occurs while configuring InterceptionSSLSocketFactory using {}.", keyStoreFile);
+		}
+		try {
+			return new KeyStoreInterceptionSSLSocketFactory();
+		} catch (Exception e) {
+			throw new RuntimeException("error occurs while configuring default InterceptionSSLSocketFactory", e);
+		}
+	}
+
+	/**
+	 * Create InterceptionSSLSocketFactory which signs a certificate for each host with the recorder
+	 * CA kept in the certificates directory of the recorder home.
+	 * 
+	 * @return configured {@link InterceptionSSLSocketFactory}
+	 */
+	protected InterceptionSSLSocketFactory createHostCertificateInterceptionSSLSocketFactory() {
+		checkNotNull(recorderConfig, "setRecorderConfig should called in advance");
+		File directory = recorderConfig.getHome().getFile("certificates");
+		try {
+			HostCertificateInterceptionSSLSocketFactory socketFactory = new HostCertificateInterceptionSSLSocketFactory(
+							directory, recorderConfig.getPropertyInt("proxy.https.certificate.memory.cache.size",
+											HostCertificateInterceptionSSLSocketFactory.DEFAULT_MEMORY_CAPACITY),
+							recorderConfig.getPropertyInt("proxy.https.certificate.disk.cache.size",
+											HostCertificateInterceptionSSLSocketFactory.DEFAULT_DISK_CAPACITY));
+			LOG.info("import {} into the browser to trust the recorder CA.", new File(directory,
+							HostCertificateInterceptionSSLSocketFactory.CA_CERTIFICATE).getAbsolutePath());
+			return socketFactory;
+		} catch (Exception e) {
+			LOG.info("exception occurs while configuring the recorder CA in {}, {}.", directory, e.getMessage());
+		}
+		return createInterceptionSSLSocketFactory();
+	}
+
+	/**
+	 * Delete the script files of the older recordings, so that only the last
+	 * {@value #SCRIPT_FILES_KEPT} ones are kept. Their names sort by time.
+	 * 
+	 * @param directory
+	 *            script directory
+	 */
+	private void deleteOldScripts(File directory) {
+		File[] scripts = directory.listFiles();
+		if (scripts == null) {
+			return;
+		}
+		List<String> names = new ArrayList<String>();
+		for (File each : scripts) {
+			if (each.getName().startsWith(SCRIPT_PREFIX)) {
+				names.add(each.getName());
+			}
+		}
+		Collections.sort(names);
+		for (int i = 0; i < names.size() - SCRIPT_FILES_KEPT; i++) {
+			FileUtils.deleteQuietly(new File(directory, names.get(i)));
+		}
+	}
+
 	private void initFileTypeFilter(final FileTypeFilterImpl fileTypeFilter, List<FileTypeCategory> categories) {
 		fileTypeFilter.reset();
 		for (FileTypeCategory each : categories) {
@@ -296,6 +476,15 @@ public class ScriptRecorderProxy {
 		return m_filterContainer.getComponent(ConnectionFilter.class);
 	}
 
+	/**
+	 * Get upstream connection pool.
+	 * 
+	 * @return upstream connection pool, or {@code null} if the upstream connections are not pooled
+	 */
+	public UpstreamConnectionPool getUpstreamConnectionPool() {
+		return m_upstreamConnectionPool;
+	}
+
 	private class FilterChain {
 		private final List<Class<? extends TCPProxyFilter>> filter = new ArrayList<Class<? extends TCPProxyFilter>>();
 
@@ -67,6 +67,7 @@ import net.grinder.plugin.http.tcpproxyfilter.ConnectionFilter;
 import net.grinder.plugin.http.tcpproxyfilter.options.FileTypeCategory;
 import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
 import net.grinder.tools.tcpproxy.EndPoint;
+import net.grinder.tools.tcpproxy.UpstreamConnectionPool;
 import net.grinder.util.CollectionUtils;
 import net.grinder.util.NoOp;
 import net.grinder.util.Pair;
@@ -96,6 +97,7 @@ public class RecordingControlPanel extends JPanel {
 	private Timer timer;
 	private MessageBus messageBus;
 	private ConnectionFilter connectionFilter;
+	private UpstreamConnectionPool upstreamConnectionPool;
 	private JComponent typeFilter;
 	private JComponent generationOptions;
 	private OptionPersistencyHandler typeFilterPersistentHandler;
@@ -110,7 +112,20 @@ public class RecordingControlPanel extends JPanel {
 	 *            {@link ConnectionFilter}
 	 */
 	public RecordingControlPanel(ConnectionFilter connectionFilter) {
+		this(connectionFilter, null);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param connectionFilter
+	 *            {@link ConnectionFilter}
+	 * @param upstreamConnectionPool
+	 *            {@link UpstreamConnectionPool} whose usage is shown, or {@code null}
+	 */
+	public RecordingControlPanel(ConnectionFilter connectionFilter, UpstreamConnectionPool upstreamConnectionPool) {
 		this.connectionFilter = connectionFilter;
+		this.upstreamConnectionPool = upstreamConnectionPool;
 		initUI(connectionFilter);
 		initEventHandler();
 	}
@@ -161,6 +176,10 @@ public class RecordingControlPanel extends JPanel {
 		addGrid(gbl, gbc, createRecordingButton(), new Rectangle(0, 0, 1, 1), 0, 0);
 		createFilterTables = createFilterTables(connectionFilter);
 		addGrid(gbl, gbc, wrapScroll(createFilterTables), new Rectangle(0, 1, 1, 5), 1, 0.7);
+		if (upstreamConnectionPool != null) {
+			addGrid(gbl, gbc, createUpstreamConnectionPoolLabel(upstreamConnectionPool), new Rectangle(0, 6, 1, 1), 0,
+							0);
+		}
 		addGrid(gbl, gbc, createFilterButtonPanel(), new Rectangle(0, 7, 1, 1), 0, 0);
 
 		typeFilter = createTypeFilterPanel();
@@ -587,6 +606,26 @@ public class RecordingControlPanel extends JPanel {
 		}, 1000, 1000);
 	}
 
+	private JLabel createUpstreamConnectionPoolLabel(final UpstreamConnectionPool pool) {
+		final JLabel label = new JLabel();
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				final long hits = pool.getHits();
+				final long total = hits + pool.getMisses();
+				final String text = String.format("Upstream pool: %d idle, hits %d/%d (%d%%)", pool.getIdleCount(),
+								hits, total, total == 0 ? 0 : hits * 100 / total);
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						label.setText(text);
+					}
+				});
+			}
+		}, 0, 1000);
+		return label;
+	}
+
 	private void setColumnWidth(TableColumn column, int initial, int max, int min) {
 		if (initial != 0) {
 			column.setPreferredWidth(initial);
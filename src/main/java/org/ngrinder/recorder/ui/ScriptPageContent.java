@@ -19,6 +19,12 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -30,16 +36,20 @@ import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import javax.swing.JToolBar;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingWorker;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 
 import net.grinder.util.Language;
 
+import org.apache.commons.io.IOUtils;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import org.fife.ui.rtextarea.RTextScrollPane;
 import org.fife.ui.rtextarea.SearchContext;
 import org.fife.ui.rtextarea.SearchEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Script Editor Control.
@@ -51,19 +61,22 @@ public class ScriptPageContent extends TabItemContent {
 
 	/** UID. */
 	private static final long serialVersionUID = -1042184585296206770L;
+	private static final Logger LOGGER = LoggerFactory.getLogger(ScriptPageContent.class);
+	private static final int CHUNK_SIZE = 0x10000;
 	private RSyntaxTextArea textArea = null;
 	private JTextField searchField = null;
 	private JTextField replaceField = null;
 
 	/**
-	 * Script page content.
+	 * Script page content. The whole script is read into the editor in the background, chunk by
+	 * chunk, so that a large script does not block the UI.
 	 * 
 	 * @param script
-	 *            script
+	 *            file of the script
 	 * @param language
 	 *            script language
 	 */
-	public ScriptPageContent(String script, Language language) {
+	public ScriptPageContent(File script, Language language) {
 		setLayout(new BorderLayout());
 
 		textArea = new RSyntaxTextArea(20, 60);
@@ -75,7 +88,6 @@ public class ScriptPageContent extends TabItemContent {
 		scrollPane.setFoldIndicatorEnabled(true);
 
 		textArea.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-		textArea.setText(script);
 		textArea.setVisible(true);
 		textArea.addKeyListener(new KeyAdapter() {
 			@Override
@@ -92,6 +104,50 @@ public class ScriptPageContent extends TabItemContent {
 		scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		add(scrollPane, BorderLayout.CENTER);
 		add(createToolBar(), BorderLayout.SOUTH);
+		load(script);
+	}
+
+	private void load(final File script) {
+		textArea.setEditable(false);
+		new SwingWorker<Void, String>() {
+			@Override
+			protected Void doInBackground() throws Exception {
+				Reader reader = null;
+				try {
+					reader = new InputStreamReader(new FileInputStream(script), "UTF-8");
+					final char[] buffer = new char[CHUNK_SIZE];
+					int read;
+					while ((read = reader.read(buffer)) >= 0) {
+						publish(new String(buffer, 0, read));
+					}
+				} finally {
+					IOUtils.closeQuietly(reader);
+				}
+				return null;
+			}
+
+			@Override
+			protected void process(List<String> chunks) {
+				for (String each : chunks) {
+					textArea.append(each);
+				}
+			}
+
+			@Override
+			protected void done() {
+				try {
+					get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					LOGGER.error("Failed to load the script {}", script, e.getCause());
+				}
+				textArea.setEditable(true);
+				textArea.setCaretPosition(0);
+				// The loading is not an edit to undo.
+				textArea.discardAllEdits();
+			}
+		}.execute();
 	}
 
 	private JToolBar createToolBar() {
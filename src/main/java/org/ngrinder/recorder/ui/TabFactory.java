@@ -15,6 +15,7 @@ package org.ngrinder.recorder.ui;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
 import java.util.List;
 
 import net.grinder.util.Language;
@@ -82,12 +83,12 @@ public class TabFactory {
 	 * Create a script tab.
 	 * 
 	 * @param script
-	 *            script to be show.
+	 *            file of the script to be shown
 	 * @param lang
 	 *            the language of script
 	 * @return created tab
 	 */
-	public Tab createScriptTab(Language lang, String script) {
+	public Tab createScriptTab(Language lang, File script) {
 		final TabItem tabItem = new TabItem();
 		tabItem.setTitle("Script");
 		TabItemContent tabItemContent = new ScriptPageContent(script, lang);
@@ -21,6 +21,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -121,7 +122,7 @@ public class TabbedPane extends JPanel {
 			public void propertyChange(final PropertyChangeEvent event) {
 				AsyncUtil.invokeAsync(new Runnable() {
 					public void run() {
-						Pair<Language, String> newValue = cast(event.getNewValue());
+						Pair<Language, File> newValue = cast(event.getNewValue());
 						final Tab tab = tabFactory.createScriptTab(newValue.getFirst(), newValue.getSecond());
 						SwingUtilities.invokeLater(new Runnable() {
 							public void run() {
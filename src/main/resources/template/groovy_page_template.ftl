@@ -0,0 +1,45 @@
+<#-- Generate the method of a page, for each_page and each_page_index. -->
+	def page${each_page_index+1}() {
+	<#assign request_array = each_page.getRequestArray()>
+	<#list request_array as each_request>
+		/***********************************************************************************************
+		 * ${uris[each_request.uri.extends].scheme}://${uris[each_request.uri.extends].host}${each_request.uri.path.getStringValue()}
+		 ***********************************************************************************************/
+		<#assign token_arrays = []>
+		<#if f.hasOption("AddSleep") && each_request.sleepTime != 0>
+		sleepFor(${each_request.sleepTime?c})
+		</#if>	
+		<#if each_request.uri.queryString?has_content>
+			<#assign token_arrays = each_request.uri.queryString.getTokenReferenceArray()>
+		</#if>
+		<#list token_arrays as each_token>
+			<#if each_token.newValue??>
+		${each_token.tokenId} = ${f.escapeQuote(each_token.newValue)}  <#if each_token.source?has_content>// ${each_token.source}</#if>
+			</#if>
+		</#list>
+		<#if each_request.method == "GET">
+		result = request_${each_request.uri.extends}.${each_request.method}(
+			${f.generatePathString(each_request.uri)},
+			null,	
+		<#else>
+		result = request_${each_request.uri.extends}.${each_request.method}(
+			${f.generatePathString(each_request.uri)},
+			${f.generatePostParameter(token_array, each_request.getBody())},
+		</#if>
+			${f.generateHeaderParameter(each_request.headers)}
+		) 
+		<#if each_request.response.getTokenReferenceArray()?has_content>
+			<#list each_request.response.getTokenReferenceArray() as each_token>
+				<#if each_token.newValue?has_content>
+		${f.generateTokenReference(each_token)}
+				</#if>
+			</#list>
+		</#if>
+		<#if f.hasOption("FollowRedirection")>
+		assertThat("${uris[each_request.uri.extends].scheme}://${uris[each_request.uri.extends].host} should returns ${each_request.response.statusCode}", result.statusCode, is(200))
+		<#else>
+		assertThat("${uris[each_request.uri.extends].scheme}://${uris[each_request.uri.extends].host} should returns ${each_request.response.statusCode}", result.statusCode, is(${each_request.response.statusCode}))
+		/** The followed request might be useless because the redirection is handled above. */
+		</#if>
+		</#list>
+	}
@@ -0,0 +1,345 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.grinder.plugin.http.tcpproxyfilter.options.FileType;
+import net.grinder.plugin.http.xml.FormFieldType;
+import net.grinder.plugin.http.xml.RequestType;
+import net.grinder.plugin.http.xml.TokenReferenceType;
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.EndPoint;
+import net.grinder.util.AttributeStringParserImplementation;
+import net.grinder.util.SimpleStringEscaper;
+import net.grinder.util.http.URIParserImplementation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class ConnectionHandlerImplExTest {
+	private final RecordingStub m_recording = new RecordingStub();
+	private final ExchangeStatistics m_statistics = new ExchangeStatistics();
+	private final FileTypeFilterImpl m_fileTypeFilter = new FileTypeFilterImpl();
+	private final ConnectionHandlerImplEx m_handler = newHandler(1000);
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(m_recording.m_bodyStore.getDirectory());
+	}
+
+	/**
+	 * Test the requests and the responses are recorded however the streams are split.
+	 */
+	@Test
+	public void testFragmentedMessages() throws Exception {
+		request("POST http://www.test.com/form HTTP/1.1\r\nHost: www.test.com\r\n"
+						+ "Content-Type: application/x-www-form-urlencoded\r\n"
+						+ "Authorization: Basic dXNlcjpwYXNz\r\nContent-Length: 7\r\n\r\na=1&b=2");
+		response("HTTP/1.1 302 Found\r\nLocation: /next?token=abc\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "0\r\n\r\n");
+		request("GET /next?token=abc HTTP/1.1\r\nHost: www.test.com\r\n\r\n");
+		response("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		m_handler.requestFinished();
+
+		assertThat(m_recording.m_requests).hasSize(2);
+
+		final RequestType post = m_recording.m_requests.get(0);
+		assertThat(post.getMethod()).isEqualTo(RequestType.Method.POST);
+		assertThat(post.getHeaders().getAuthorizationArray(0).getBasic().getUserid()).isEqualTo("user");
+		assertThat(post.getHeaders().getAuthorizationArray(0).getBasic().getPassword()).isEqualTo("pass");
+		final FormFieldType[] fields = post.getBody().getForm().getFormFieldArray();
+		assertThat(fields).hasSize(2);
+		assertThat(fields[1].getName()).isEqualTo("b");
+		assertThat(fields[1].getValue()).isEqualTo("2");
+		assertThat(post.getResponse().getStatusCode()).isEqualTo(302);
+		assertThat(post.getResponse().getReasonPhrase()).isEqualTo("Found");
+		assertThat(m_recording.m_tokens.get("token")).isEqualTo("abc");
+
+		final RequestType get = m_recording.m_requests.get(1);
+		assertThat(m_recording.m_uris.get(1)).isEqualTo("/next?token=abc");
+		assertThat(get.getBody()).isNull();
+		assertThat(get.getResponse().getStatusCode()).isEqualTo(200);
+	}
+
+	/**
+	 * Test the tokens of a response are found as soon as they pass, whatever its framing.
+	 */
+	@Test
+	public void testResponseFraming() throws Exception {
+		request("GET /a HTTP/1.1\r\n\r\n");
+		response("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "11\r\n<input type=\"hidd\r\n1b\r\nen\" name=\"sid\" value=\"42\"/>\r\n0\r\n\r\n");
+		assertThat(m_recording.m_tokens.get("sid")).isEqualTo("42");
+
+		request("GET /b HTTP/1.0\r\n\r\n");
+		response("HTTP/1.0 200 OK\r\n\r\n<input type=\"hidden\" name=\"sid\" value=\"43\"/>");
+		assertThat(m_recording.m_tokens.get("sid")).isEqualTo("43");
+		m_handler.requestFinished();
+		assertThat(m_recording.m_tokens.get("sid")).isEqualTo("43");
+	}
+
+	/**
+	 * Test the responses are matched to the requests which were sent before any response.
+	 */
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		m_fileTypeFilter.addFilteredType(FileType.css);
+		request("GET /a HTTP/1.1\r\n\r\nPOST /b HTTP/1.1\r\nContent-Length: 3\r\n"
+						+ "Content-Type: application/x-www-form-urlencoded\r\n\r\nx=1"
+						+ "GET /c.css HTTP/1.1\r\n\r\nHEAD /d HTTP/1.1\r\n\r\n");
+		response("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+						+ "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n"
+						+ "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nbody"
+						+ "HTTP/1.1 404 Not Found\r\nContent-Length: 100\r\n\r\n");
+		request("GET /e HTTP/1.1\r\n\r\n");
+		m_handler.requestFinished();
+
+		// The style sheet is filtered out, but its response is still consumed.
+		assertThat(m_recording.m_uris).containsExactly("/a", "/b", "/d", "/e");
+		assertThat(m_recording.m_requests.get(0).getResponse().getStatusCode()).isEqualTo(200);
+		assertThat(m_recording.m_requests.get(1).getResponse().getStatusCode()).isEqualTo(201);
+		assertThat(m_recording.m_requests.get(1).getBody().getForm().getFormFieldArray(0).getValue())
+						.isEqualTo("1");
+		assertThat(m_recording.m_requests.get(2).getResponse().getStatusCode()).isEqualTo(404);
+		assertThat(m_recording.m_requests.get(3).getResponse()).isNull();
+
+		assertThat(m_statistics.getMatchedResponses()).isEqualTo(4);
+		assertThat(m_statistics.getDroppedResponses()).isEqualTo(0);
+		assertThat(m_statistics.getUnansweredRequests()).isEqualTo(1);
+		assertThat(m_statistics.getPipelinedRequests()).isEqualTo(3);
+		assertThat(m_statistics.getMaxOutstandingRequests()).isEqualTo(4);
+
+		response("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertThat(m_statistics.getDroppedResponses()).isEqualTo(1);
+	}
+
+	/**
+	 * Test the frames which follow a protocol switch are not parsed as requests.
+	 */
+	@Test
+	public void testSwitchingProtocols() throws Exception {
+		request("GET /chat HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n");
+		response("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n");
+		request("\u0081\u0085frame\nGET /x HTTP/1.1\r\n\r\n");
+		response("\u0081\u0002\n\n");
+		m_handler.requestFinished();
+
+		assertThat(m_recording.m_uris).containsExactly("/chat");
+		assertThat(m_recording.m_requests.get(0).getResponse().getStatusCode()).isEqualTo(101);
+		assertThat(m_statistics.getMatchedResponses()).isEqualTo(1);
+		assertThat(m_statistics.getUnansweredRequests()).isEqualTo(0);
+		assertThat(m_statistics.getPipelinedRequests()).isEqualTo(0);
+	}
+
+	/**
+	 * Test the tokens are found in compressed and large bodies.
+	 */
+	@Test
+	public void testEncodedResponses() throws Exception {
+		final StringBuilder page = new StringBuilder();
+
+		for (int i = 0; i < 5000; ++i) {
+			page.append("<p>Lorem ipsum dolor sit amet.</p>\n");
+
+			if (i == 2500) {
+				page.append("<a href=\"/view?item=7\">item</a>\n");
+			}
+		}
+
+		page.append("<input type=\"hidden\" name=\"sid\" value=\"44\"/>");
+
+		final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		final GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+		gzipStream.write(page.toString().getBytes("ISO8859_1"));
+		gzipStream.close();
+
+		request("GET /a HTTP/1.1\r\n\r\n");
+		response(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + gzipped.size() + "\r\n\r\n")
+						.getBytes("ISO8859_1"));
+		response(gzipped.toByteArray());
+		assertThat(m_recording.m_tokens.get("item")).isEqualTo("7");
+		assertThat(m_recording.m_tokens.get("sid")).isEqualTo("44");
+
+		final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(deflated);
+		deflaterStream.write("<a href='/view?item=8'>".getBytes("ISO8859_1"));
+		deflaterStream.close();
+
+		request("GET /b HTTP/1.1\r\n\r\n");
+		response(("HTTP/1.1 200 OK\r\nContent-Encoding: deflate\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ Integer.toHexString(deflated.size()) + "\r\n").getBytes("ISO8859_1"));
+		response(deflated.toByteArray());
+		response("\r\n0\r\n\r\n");
+		assertThat(m_recording.m_tokens.get("item")).isEqualTo("8");
+	}
+
+	/**
+	 * Test each kind of the token markers is found.
+	 */
+	@Test
+	public void testTokenMarkers() throws Exception {
+		request("GET /a HTTP/1.1\r\n\r\n");
+		response("HTTP/1.1 200 OK\r\nContent-Length: 232\r\n\r\n"
+						+ "<A HREF = \"/x?a=1\">x</A><form action='/y;b=2'>"
+						+ "<input name=\"c\" value=\"3\"\r\n type=\"Hidden\">"
+						+ "<input type=\"text\" name=\"d\" value=\"4\"><inputs href=\"/z?e=5\">"
+						+ "<script>var s = {\"csrfToken\" : \"f\\\"6\", \"other\": \"7\"};</script>"
+						+ "<a href=\"/unterminated");
+		m_handler.requestFinished();
+
+		assertThat(m_recording.m_tokens.get("a")).isEqualTo("1");
+		assertThat(m_recording.m_tokens.get("b")).isEqualTo("2");
+		assertThat(m_recording.m_tokens.get("c")).isEqualTo("3");
+		assertThat(m_recording.m_tokens.containsKey("d")).isFalse();
+		assertThat(m_recording.m_tokens.get("e")).isEqualTo("5");
+		assertThat(m_recording.m_tokens.get("csrfToken")).isEqualTo("f\"6");
+		assertThat(m_recording.m_tokens.containsKey("other")).isFalse();
+	}
+
+	/**
+	 * Test a body beyond the memory limit is written to the body store, once for the same content.
+	 */
+	@Test
+	public void testLargeRequestBody() throws Exception {
+		final ConnectionHandlerImplEx handler = newHandler(16);
+		final String form = "a=1&b=22222222222222222222&c=3";
+		final String post = "POST /form HTTP/1.1\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+						+ "Content-Length: " + form.length() + "\r\n\r\n" + form;
+		final String message = post + post + "GET /next HTTP/1.1\r\n\r\n";
+
+		for (byte each : message.getBytes("ISO8859_1")) {
+			handler.handleRequest(new byte[] { each }, 1);
+		}
+
+		handler.requestFinished();
+
+		final File file = new File(m_recording.m_requests.get(0).getBody().getFile());
+		assertThat(m_recording.m_requests.get(0).getBody().getForm()).isNull();
+		assertThat(FileUtils.readFileToString(file, "ISO8859_1")).isEqualTo(form);
+		assertThat(m_recording.m_requests.get(1).getBody().getFile()).isEqualTo(file.getPath());
+		assertThat(m_recording.m_requests.get(2).getBody()).isNull();
+		assertThat(m_recording.m_bodyStore.getStoredCount()).isEqualTo(1);
+		assertThat(m_recording.m_bodyStore.getDuplicateCount()).isEqualTo(1);
+		assertThat(m_recording.m_bodyStore.getDirectory().list()).hasSize(1);
+	}
+
+	private ConnectionHandlerImplEx newHandler(int bodyMemoryLimit) {
+		return new ConnectionHandlerImplEx(m_recording, new TokenExtractor(new AttributeStringParserImplementation(),
+						new String[] { "csrfToken" }, TokenExtractor.DEFAULT_MAX_VALUE_LENGTH),
+						new URIParserImplementation(), new SimpleStringEscaper(), new ConnectionDetails(new EndPoint(
+										"localhost", 1000), new EndPoint("www.test.com", 80), false), m_fileTypeFilter,
+						m_statistics, bodyMemoryLimit);
+	}
+
+	private void request(String message) throws Exception {
+		final byte[] bytes = message.getBytes("ISO8859_1");
+
+		// One byte at a time.
+		for (int i = 0; i < bytes.length; ++i) {
+			m_handler.handleRequest(new byte[] { bytes[i] }, 1);
+		}
+	}
+
+	private void response(String message) throws Exception {
+		response(message.getBytes("ISO8859_1"));
+	}
+
+	private void response(byte[] bytes) throws Exception {
+		// Three bytes at a time.
+		for (int i = 0; i < bytes.length; i += 3) {
+			final byte[] packet = new byte[Math.min(3, bytes.length - i)];
+			System.arraycopy(bytes, i, packet, 0, packet.length);
+			m_handler.handleResponse(packet, packet.length);
+		}
+	}
+
+	private static final class RecordingStub implements HTTPRecordingEx {
+		private final List<RequestType> m_requests = new ArrayList<RequestType>();
+		private final List<String> m_uris = new ArrayList<String>();
+		private final Map<String, String> m_tokens = new HashMap<String, String>();
+		private final BodyStore m_bodyStore = new BodyStore(new File(FileUtils.getTempDirectory(), "bodies-"
+						+ System.nanoTime()));
+
+		@Override
+		public HTTPRecordingParameters getParameters() {
+			return new HTTPRecordingParameters() {
+				@Override
+				public int getTestNumberOffset() {
+					return 0;
+				}
+
+				@Override
+				public boolean isCommonHeader(String name) {
+					return false;
+				}
+
+				@Override
+				public boolean isMirroredHeader(String name) {
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public RequestType addRequest(ConnectionDetails connectionDetails, String method, String relativeURI) {
+			final RequestType request = RequestType.Factory.newInstance();
+			request.addNewHeaders();
+			request.setMethod(RequestType.Method.Enum.forString(method));
+			m_requests.add(request);
+			m_uris.add(relativeURI);
+			return request;
+		}
+
+		@Override
+		public void markLastResponseTime() {
+		}
+
+		@Override
+		public void setTokenReference(String name, String value, TokenReferenceType tokenReference) {
+			m_tokens.put(name, value);
+		}
+
+		@Override
+		public String getLastValueForToken(String name) {
+			return m_tokens.get(name);
+		}
+
+		@Override
+		public boolean tokenReferenceExists(String name, String source) {
+			return m_tokens.containsKey(name);
+		}
+
+		@Override
+		public File createBodyDataFileName() {
+			return m_bodyStore.newFileName();
+		}
+
+		@Override
+		public BodyStore getBodyStore() {
+			return m_bodyStore;
+		}
+
+		@Override
+		public void delete(RequestType requestType) {
+			m_requests.remove(requestType);
+		}
+
+		@Override
+		public void requestEnded(RequestType requestType) {
+		}
+
+		@Override
+		public void reset() {
+			m_requests.clear();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import net.grinder.plugin.http.xml.CommonHeadersType;
+import net.grinder.plugin.http.xml.HTTPRecordingType;
+import net.grinder.plugin.http.xml.HeaderType;
+import net.grinder.plugin.http.xml.HeadersType;
+import net.grinder.plugin.http.xml.HttpRecordingDocument;
+import net.grinder.plugin.http.xml.PageType;
+import net.grinder.plugin.http.xml.RequestType;
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.EndPoint;
+import net.grinder.util.http.URIParserImplementation;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class HTTPRecordingImplExTest {
+	private static final int THREADS = 8;
+	private static final int REQUESTS = 500;
+	private static final int HOSTS = 4;
+	private static final int WARM_UP_ROUNDS = 2;
+	private static final int ROUNDS = 3;
+	private static final Set<String> COMMON_HEADERS = new HashSet<String>(Arrays.asList("Accept",
+					"Accept-Language", "User-Agent"));
+
+	private HttpRecordingDocument m_result;
+	private final ConnectionFilterImpl m_connectionFilter = new ConnectionFilterImpl();
+
+	private final HTTPRecordingImplEx m_recording = createRecording();
+
+	/**
+	 * Test the requests of many connections are all recorded, with one base URL per host and one
+	 * token per name.
+	 */
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		m_recording.setNewPageRequested();
+		addRequest(0, 0);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < THREADS; ++i) {
+			final int thread = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int j = 0; j < REQUESTS; ++j) {
+						addRequest(thread, j);
+					}
+				}
+			});
+		}
+
+		for (Thread each : threads) {
+			each.start();
+		}
+
+		start.countDown();
+
+		for (Thread each : threads) {
+			each.join();
+		}
+
+		m_recording.generate();
+
+		final HTTPRecordingType recording = m_result.getHttpRecording();
+		int requests = 0;
+
+		for (PageType page : recording.getPageArray()) {
+			requests += page.sizeOfRequestArray();
+		}
+
+		assertThat(requests).isEqualTo(THREADS * REQUESTS + 1);
+		assertThat(recording.getBaseUriArray()).hasSize(HOSTS);
+		assertThat(recording.getTokenArray()).hasSize(2);
+		assertThat(m_recording.getLastValueForToken("session")).isNotNull();
+	}
+
+	/**
+	 * Test the requests which ended are recorded as they were, and can still be deleted.
+	 */
+	@Test
+	public void testEndedRequests() throws Exception {
+		m_recording.setNewPageRequested();
+		final RequestType first = addRequest(0, 1);
+		first.getHeaders().addNewHeader().setName("Accept");
+		first.getHeaders().getHeaderArray(0).setValue("text/html");
+		first.addNewBody().setEscapedString("a=1&b=2");
+		final String expected = first.xmlText();
+		m_recording.requestEnded(first);
+
+		final RequestType deleted = addRequest(0, 3);
+		m_recording.requestEnded(deleted);
+		m_recording.delete(deleted);
+
+		final RequestType live = addRequest(0, 5);
+		m_recording.delete(addRequest(0, 7));
+
+		m_recording.generate();
+
+		final RequestType[] requests = m_result.getHttpRecording().getPageArray(0).getRequestArray();
+		assertThat(requests).hasSize(2);
+		assertThat(requests[0].xmlText()).isEqualTo(expected);
+		assertThat(requests[1].getUri().getUnparsed()).isEqualTo(live.getUri().getUnparsed());
+	}
+
+	/**
+	 * Test the pages which are kept between the recordings follow the filters and the deletions.
+	 */
+	@Test
+	public void testRecordingAgain() throws Exception {
+		for (int page = 0; page < 3; ++page) {
+			m_recording.setNewPageRequested();
+
+			for (int i = 0; i < HOSTS * 2; ++i) {
+				addRequest(0, i);
+			}
+		}
+
+		m_recording.generate();
+		final String first = m_result.getHttpRecording().xmlText();
+		m_recording.generate();
+		assertThat(m_result.getHttpRecording().xmlText()).isEqualTo(first);
+		assertThat(countRequests()).isEqualTo(3 * HOSTS * 2);
+
+		m_connectionFilter.setFilter(new EndPoint("www0.test.com", 80), true);
+		m_recording.generate();
+		assertThat(countRequests()).isEqualTo(3 * (HOSTS - 1) * 2);
+
+		m_connectionFilter.setFilter(new EndPoint("www0.test.com", 80), false);
+		final RequestType deleted = addRequest(0, 1);
+		m_recording.requestEnded(deleted);
+		m_recording.generate();
+		assertThat(countRequests()).isEqualTo(3 * HOSTS * 2 + 1);
+
+		m_recording.delete(deleted);
+		m_recording.generate();
+		assertThat(m_result.getHttpRecording().xmlText()).isEqualTo(first);
+	}
+
+	/**
+	 * Test the common headers of a large recording are grouped, and the headers every group
+	 * shares become the default headers.
+	 */
+	@Test
+	public void testCommonHeaders() throws Exception {
+		final int count = 3000;
+		m_recording.setNewPageRequested();
+
+		for (int i = 0; i < count; ++i) {
+			final HeadersType headers = addRequest(0, i * 2 + 1).getHeaders();
+			addHeader(headers, "Host", "www" + i % HOSTS + ".test.com");
+			addHeader(headers, "User-Agent", "Mozilla/5.0");
+			addHeader(headers, "Accept", i % 3 == 0 ? "text/html" : "*/*");
+			headers.addNewAuthorization().addNewBasic().setUserid("user" + i);
+			addHeader(headers, "Accept-Language", "en");
+			addHeader(headers, "Referer", "/page" + i);
+		}
+
+		m_recording.generate();
+
+		final CommonHeadersType[] commonHeaders = m_result.getHttpRecording().getCommonHeadersArray();
+		assertThat(commonHeaders).hasSize(3);
+		assertThat(commonHeaders[0].getHeadersId()).isEqualTo("defaultHeaders");
+		assertThat(commonHeaders[0].getHeaderArray()).hasSize(2);
+		assertThat(commonHeaders[1].getHeadersId()).isEqualTo("headers0");
+		assertThat(commonHeaders[1].getExtends()).isEqualTo("defaultHeaders");
+		assertThat(commonHeaders[1].getHeaderArray(0).getValue()).isEqualTo("text/html");
+		assertThat(commonHeaders[2].getHeaderArray(0).getValue()).isEqualTo("*/*");
+
+		final RequestType[] requests = m_result.getHttpRecording().getPageArray(0).getRequestArray();
+		assertThat(requests).hasSize(count);
+		assertThat(requests[1].getHeaders().getExtends()).isEqualTo("headers1");
+		// The uncommon headers keep their order.
+		assertThat(requests[1].getHeaders().xmlText().replaceAll(" xmlns:ns=\"[^\"]*\"", "")).isEqualTo(
+						"<xml-fragment extends=\"headers1\"><ns:header name=\"Host\" value=\"www1.test.com\"/>"
+										+ "<ns:authorization><ns:basic userid=\"user1\"/></ns:authorization>"
+										+ "<ns:header name=\"Referer\" value=\"/page1\"/></xml-fragment>");
+	}
+
+	/**
+	 * Test the body data file names are new files in the directory of the body store.
+	 */
+	@Test
+	public void testCreateBodyDataFileName() throws Exception {
+		final File first = m_recording.createBodyDataFileName();
+		final File second = m_recording.createBodyDataFileName();
+
+		assertThat(first.getParentFile()).isEqualTo(m_recording.getBodyStore().getDirectory());
+		assertThat(first.exists()).isFalse();
+		assertThat(second).isNotEqualTo(first);
+	}
+
+	/**
+	 * Time the recording of the same number of requests by 1 to 16 threads. The throughput should
+	 * stay flat as the threads are added.
+	 *
+	 * <p>
+	 * Run only when asked for: {@code mvn test -Dtest=HTTPRecordingImplExTest -Dbenchmark=true}.
+	 * </p>
+	 */
+	@Test
+	public void benchmarkContention() throws Exception {
+		assumeTrue(Boolean.getBoolean("benchmark"));
+
+		final int requests = 32000;
+
+		for (int round = 0; round < WARM_UP_ROUNDS; ++round) {
+			recordConcurrently(THREADS, requests);
+		}
+
+		double singleThreadThroughput = 0;
+
+		for (int threads = 1; threads <= 16; threads *= 2) {
+			long time = Long.MAX_VALUE;
+
+			for (int round = 0; round < ROUNDS; ++round) {
+				time = Math.min(time, recordConcurrently(threads, requests));
+			}
+
+			final double throughput = requests * 1000000000.0 / time;
+
+			if (threads == 1) {
+				singleThreadThroughput = throughput;
+			}
+
+			System.out.printf("%2d threads: %,.0f requests per second (%.2f of 1 thread)%n", threads, throughput,
+							throughput / singleThreadThroughput);
+
+			// Contention on a shared lock would make the throughput fall well below the one of a
+			// single thread.
+			assertThat(throughput).isGreaterThan(singleThreadThroughput / 2);
+		}
+	}
+
+	/**
+	 * Record the requests split among the threads on a new recording, and answer the nanoseconds it
+	 * took.
+	 */
+	private long recordConcurrently(int threads, final int requests) throws InterruptedException {
+		final HTTPRecordingImplEx recording = createRecording();
+		recording.setNewPageRequested();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> workers = new ArrayList<Thread>();
+
+		for (int i = 0; i < threads; ++i) {
+			final int thread = i;
+			final int count = requests / threads;
+
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int j = 0; j < count; ++j) {
+						addRequest(recording, thread, j);
+					}
+				}
+			});
+		}
+
+		for (Thread each : workers) {
+			each.start();
+		}
+
+		final long startTime = System.nanoTime();
+		start.countDown();
+
+		for (Thread each : workers) {
+			each.join();
+		}
+
+		return System.nanoTime() - startTime;
+	}
+
+	private HTTPRecordingImplEx createRecording() {
+		return new HTTPRecordingImplEx(new HTTPRecordingParameters() {
+			@Override
+			public int getTestNumberOffset() {
+				return 0;
+			}
+
+			@Override
+			public boolean isCommonHeader(String name) {
+				return COMMON_HEADERS.contains(name);
+			}
+
+			@Override
+			public boolean isMirroredHeader(String name) {
+				return false;
+			}
+		}, new HTTPRecordingResultProcessor() {
+			@Override
+			public void process(HttpRecordingDocument result) throws IOException {
+				m_result = result;
+			}
+		}, m_connectionFilter, new FileTypeFilterImpl(), LoggerFactory.getLogger(HTTPRecordingImplExTest.class),
+						new RegularExpressionsImplementation(), new URIParserImplementation());
+	}
+
+	private static void addHeader(HeadersType headers, String name, String value) {
+		final HeaderType header = headers.addNewHeader();
+		header.setName(name);
+		header.setValue(value);
+	}
+
+	private int countRequests() {
+		int requests = 0;
+
+		for (PageType page : m_result.getHttpRecording().getPageArray()) {
+			requests += page.sizeOfRequestArray();
+		}
+
+		return requests;
+	}
+
+	private RequestType addRequest(int thread, int index) {
+		return addRequest(m_recording, thread, index);
+	}
+
+	private static RequestType addRequest(HTTPRecordingImplEx recording, int thread, int index) {
+		final ConnectionDetails connectionDetails = new ConnectionDetails(new EndPoint("localhost", 1000 + thread),
+						new EndPoint("www" + index % HOSTS + ".test.com", 80), false);
+
+		final RequestType request = recording.addRequest(connectionDetails, "GET", "/page" + index + "?session="
+						+ thread + "&page=" + index);
+		request.addNewResponse().setStatusCode(200);
+
+		if (index % 2 == 0) {
+			recording.requestEnded(request);
+		}
+
+		return request;
+	}
+}
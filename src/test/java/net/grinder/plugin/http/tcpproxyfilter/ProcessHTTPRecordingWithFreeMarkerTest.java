@@ -0,0 +1,127 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.EnumSet;
+
+import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
+import net.grinder.plugin.http.xml.HeaderType;
+import net.grinder.plugin.http.xml.HttpRecordingDocument;
+import net.grinder.plugin.http.xml.RequestType;
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.EndPoint;
+import net.grinder.util.http.URIParserImplementation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class ProcessHTTPRecordingWithFreeMarkerTest {
+	private final ProcessHTTPRecordingWithFreeMarker m_processor = new ProcessHTTPRecordingWithFreeMarker();
+	private final HttpRecordingDocument m_document = HttpRecordingDocument.Factory.newInstance();
+	private File m_directory;
+
+	@Before
+	public void before() throws IOException {
+		m_directory = File.createTempFile("template", "");
+		FileUtils.deleteQuietly(m_directory);
+		FileUtils.forceMkdir(m_directory);
+		m_processor.setTemplateDirectory(m_directory);
+		m_processor.setGenerationOptions(EnumSet.of(GenerationOption.Jython));
+		m_document.addNewHttpRecording().addNewMetadata().setTime(Calendar.getInstance());
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(m_directory);
+	}
+
+	/**
+	 * Test a user template replaces the template of the recorder until it is removed, and is read
+	 * again when it changes.
+	 */
+	@Test
+	public void testUserTemplate() throws Exception {
+		final String original = process();
+		assertThat(original).contains("recorded by nGrinder Recorder");
+
+		final File file = new File(m_directory, "jython_template.ftl");
+		FileUtils.writeStringToFile(file, "pages=${pages?size}", "UTF-8");
+		assertThat(process()).isEqualTo("pages=0");
+
+		FileUtils.writeStringToFile(file, "changed", "UTF-8");
+		assertThat(file.setLastModified(file.lastModified() + 2000)).isTrue();
+		assertThat(process()).isEqualTo("changed");
+
+		FileUtils.deleteQuietly(file);
+		assertThat(process()).isEqualTo(original);
+	}
+
+	/**
+	 * Test the pages rendered concurrently make the same script as the ones rendered in order.
+	 */
+	@Test
+	public void testRenderThreads() throws Exception {
+		final HTTPRecordingImplEx recording = new HTTPRecordingImplEx(new HTTPRecordingParameters() {
+			@Override
+			public int getTestNumberOffset() {
+				return 0;
+			}
+
+			@Override
+			public boolean isCommonHeader(String name) {
+				return "Accept".equals(name);
+			}
+
+			@Override
+			public boolean isMirroredHeader(String name) {
+				return false;
+			}
+		}, m_processor, new ConnectionFilterImpl(), new FileTypeFilterImpl(),
+						LoggerFactory.getLogger(ProcessHTTPRecordingWithFreeMarkerTest.class),
+						new RegularExpressionsImplementation(), new URIParserImplementation());
+
+		for (int i = 0; i < 200; ++i) {
+			if (i % 10 == 0) {
+				recording.setNewPageRequested();
+			}
+
+			final RequestType request = recording.addRequest(new ConnectionDetails(new EndPoint("localhost", 1000),
+							new EndPoint("www" + i % 3 + ".test.com", 80), false), "GET", "/page" + i + "?id=" + i);
+			final HeaderType header = request.getHeaders().addNewHeader();
+			header.setName("Accept");
+			header.setValue(i % 2 == 0 ? "text/html" : "*/*");
+			request.addNewResponse().setStatusCode(200);
+		}
+
+		for (GenerationOption each : EnumSet.of(GenerationOption.Jython, GenerationOption.Groovy)) {
+			m_processor.setGenerationOptions(EnumSet.of(each));
+			final StringWriter serial = new StringWriter();
+			m_processor.setWriter(serial);
+			m_processor.setRenderThreads(1);
+			recording.generate();
+
+			final StringWriter concurrent = new StringWriter();
+			m_processor.setWriter(concurrent);
+			m_processor.setRenderThreads(4);
+			recording.generate();
+
+			assertThat(serial.toString()).contains("def page20(");
+			assertThat(concurrent.toString().replaceAll("Recorder at .*", "")).isEqualTo(
+							serial.toString().replaceAll("Recorder at .*", ""));
+		}
+	}
+
+	private String process() throws IOException {
+		final StringWriter writer = new StringWriter();
+		m_processor.setWriter(writer);
+		m_processor.process(m_document);
+		return writer.toString();
+	}
+}
@@ -0,0 +1,198 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import net.grinder.util.AttributeStringParser;
+import net.grinder.util.AttributeStringParserImplementation;
+import net.grinder.util.http.URIParser;
+import net.grinder.util.http.URIParserImplementation;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link TokenExtractor} with the regular expressions it replaced, on a fixed corpus.
+ *
+ * <p>
+ * The timing is run only when asked for: {@code mvn test -Dtest=TokenExtractorBenchmarkTest
+ * -Dbenchmark=true}.
+ * </p>
+ */
+public class TokenExtractorBenchmarkTest {
+	private static final int WARM_UP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	private final AttributeStringParser m_attributeStringParser = new AttributeStringParserImplementation();
+	private final URIParser m_uriParser = new URIParserImplementation();
+	private final RegularExpressions m_regularExpressions = new RegularExpressionsImplementation();
+	private final TokenExtractor m_tokenExtractor = new TokenExtractor(m_attributeStringParser, new String[0],
+					TokenExtractor.DEFAULT_MAX_VALUE_LENGTH);
+
+	/**
+	 * Test both paths find the same tokens in the corpus.
+	 */
+	@Test
+	public void testSameTokens() throws Exception {
+		final byte[] corpus = createCorpus(64 * 1024);
+		final List<String> expected = extractWithRegularExpressions(corpus);
+		final List<String> actual = extractWithTokenExtractor(corpus);
+
+		// The links are found before the inputs by the regular expressions, in document order by
+		// the extractor.
+		Collections.sort(expected);
+		Collections.sort(actual);
+
+		assertThat(expected).isNotEmpty();
+		assertThat(actual).isEqualTo(expected);
+	}
+
+	/**
+	 * Time both paths over 4 MB of HTML.
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		assumeTrue(Boolean.getBoolean("benchmark"));
+
+		final byte[] corpus = createCorpus(4 * 1024 * 1024);
+
+		for (int i = 0; i < WARM_UP_ROUNDS; ++i) {
+			extractWithRegularExpressions(corpus);
+			extractWithTokenExtractor(corpus);
+		}
+
+		long regularExpressionsTime = 0;
+		long tokenExtractorTime = 0;
+		int tokens = 0;
+
+		for (int i = 0; i < ROUNDS; ++i) {
+			long start = System.nanoTime();
+			tokens = extractWithRegularExpressions(corpus).size();
+			regularExpressionsTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			assertThat(extractWithTokenExtractor(corpus)).hasSize(tokens);
+			tokenExtractorTime += System.nanoTime() - start;
+		}
+
+		System.out.printf("%d bytes, %d tokens: regular expressions %d ms, token extractor %d ms per round%n",
+						corpus.length, tokens, regularExpressionsTime / ROUNDS / 1000000, tokenExtractorTime / ROUNDS
+										/ 1000000);
+	}
+
+	/**
+	 * The path of the former ResponseBody.end(): one pass for the links and one for the hidden
+	 * inputs, over the whole body decoded as ISO8859_1.
+	 */
+	private List<String> extractWithRegularExpressions(byte[] corpus) throws Exception {
+		final List<String> tokens = new ArrayList<String>();
+		final String iso85591String = new String(corpus, "ISO8859_1");
+
+		final Matcher uriMatcher = m_regularExpressions.getHyperlinkURIPattern().matcher(iso85591String);
+
+		while (uriMatcher.find()) {
+			m_uriParser.parse(uriMatcher.group(1), new TokenListener(tokens));
+		}
+
+		final Matcher hiddenParameterMatcher = m_regularExpressions.getHiddenInputPattern().matcher(iso85591String);
+
+		while (hiddenParameterMatcher.find()) {
+			final AttributeStringParser.AttributeMap map = m_attributeStringParser.parse(hiddenParameterMatcher
+							.group());
+			addHiddenInput(tokens, map.get("name"), map.get("value"));
+		}
+
+		return tokens;
+	}
+
+	private List<String> extractWithTokenExtractor(byte[] corpus) {
+		final List<String> tokens = new ArrayList<String>();
+
+		final ByteSink scanner = m_tokenExtractor.newScanner(new TokenExtractor.Listener() {
+			@Override
+			public void uri(String uri) {
+				m_uriParser.parse(uri, new TokenListener(tokens));
+			}
+
+			@Override
+			public void nameValue(String name, String value) {
+				addHiddenInput(tokens, name, value);
+			}
+		});
+
+		// In the chunks a connection reads.
+		for (int offset = 0; offset < corpus.length; offset += 8192) {
+			scanner.write(corpus, offset, Math.min(8192, corpus.length - offset));
+		}
+
+		scanner.end();
+		return tokens;
+	}
+
+	private static void addHiddenInput(List<String> tokens, String name, String value) {
+		if (name != null && value != null) {
+			tokens.add("hidden " + name + "=" + value);
+		}
+	}
+
+	/**
+	 * Create HTML with links, hidden inputs and text. The same length always gives the same bytes.
+	 */
+	private static byte[] createCorpus(int length) throws Exception {
+		final Random random = new Random(42);
+		final StringBuilder html = new StringBuilder(length + 1024);
+		html.append("<html><head><title>Corpus</title></head><body>\n");
+
+		while (html.length() < length) {
+			final int id = random.nextInt(100000);
+
+			switch (random.nextInt(4)) {
+			case 0:
+				html.append("<a href=\"/page/").append(id).append(";jsessionid=").append(random.nextLong())
+								.append("?item=").append(random.nextInt(1000)).append("&amp;sort=asc\">Item ")
+								.append(id).append("</a>\n");
+				break;
+			case 1:
+				html.append("<input type=\"hidden\" name=\"token").append(random.nextInt(20)).append("\" value=\"")
+								.append(Long.toHexString(random.nextLong())).append("\"/>\n");
+				break;
+			case 2:
+				html.append("<link rel=\"stylesheet\" href='/static/").append(id).append(".css?v=")
+								.append(random.nextInt(10)).append("'>\n");
+				break;
+			default:
+				html.append("<p class=\"text\">Lorem ipsum dolor sit amet, consectetur adipiscing elit, ")
+								.append("sed do eiusmod tempor incididunt ut labore et dolore magna aliqua ")
+								.append(id).append(".</p>\n");
+			}
+		}
+
+		html.append("</body></html>\n");
+		return html.toString().getBytes("ISO8859_1");
+	}
+
+	private static final class TokenListener extends URIParser.AbstractParseListener {
+		private final List<String> m_tokens;
+
+		public TokenListener(List<String> tokens) {
+			m_tokens = tokens;
+		}
+
+		@Override
+		public boolean pathParameterNameValue(String name, String value) {
+			m_tokens.add("path " + name + "=" + value);
+			return true;
+		}
+
+		@Override
+		public boolean queryStringNameValue(String name, String value) {
+			m_tokens.add("query " + name + "=" + value);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class HTTPMessageParserTest {
+	private final HTTPMessageParser m_requestParser = new HTTPMessageParser(null);
+	private final HTTPMessageParser m_responseParser = new HTTPMessageParser(m_requestParser, null);
+
+	/**
+	 * Test the message boundaries are found whatever way the bytes are split.
+	 */
+	@Test
+	public void testFraming() throws Exception {
+		parse(m_requestParser, "GET /a HTTP/1.1\r\nHost: a\r\n\r\nHEAD /b HTTP/1.1\r\nHost: a\r\n\r\n"
+						+ "POST /c HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+		assertThat(m_requestParser.getMessageCount()).isEqualTo(3);
+		assertThat(m_requestParser.getOutstandingRequests()).isEqualTo(3);
+
+		parse(m_responseParser, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+		parse(m_responseParser, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n");
+		assertThat(m_responseParser.isAtMessageBoundary()).isTrue();
+		assertThat(m_requestParser.getOutstandingRequests()).isEqualTo(1);
+
+		parse(m_responseParser, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok");
+		assertThat(m_responseParser.getMessageCount()).isEqualTo(4);
+		assertThat(m_responseParser.getStatusCode()).isEqualTo(201);
+		assertThat(m_requestParser.getOutstandingRequests()).isEqualTo(0);
+		assertThat(m_responseParser.isPersistent()).isTrue();
+	}
+
+	/**
+	 * Test a response without length can not be followed by another one.
+	 */
+	@Test
+	public void testUntilClose() throws Exception {
+		parse(m_requestParser, "GET / HTTP/1.1\r\n\r\n");
+		parse(m_responseParser, "HTTP/1.1 200 OK\r\n\r\nbody");
+		assertThat(m_responseParser.isAtMessageBoundary()).isFalse();
+		assertThat(m_responseParser.isPersistent()).isFalse();
+		m_responseParser.close();
+		assertThat(m_responseParser.getMessageCount()).isEqualTo(1);
+	}
+
+	private static void parse(HTTPMessageParser parser, String message) throws Exception {
+		final byte[] bytes = message.getBytes("US-ASCII");
+
+		// One byte at a time.
+		for (int i = 0; i < bytes.length; ++i) {
+			parser.parse(bytes, i, 1);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class HTTPProxyTCPProxyEngineExTest {
+	private static final int TIMEOUT = 10000;
+
+	private final List<String> m_originRequests = Collections.synchronizedList(new ArrayList<String>());
+	private final RecordingFilter m_requestFilter = new RecordingFilter();
+	private final RecordingFilter m_responseFilter = new RecordingFilter();
+	private ServerSocket m_origin;
+	private HTTPProxyTCPProxyEngineEx m_engine;
+	private EndPoint m_proxy;
+
+	@Before
+	public void before() throws Exception {
+		m_origin = new ServerSocket(0);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serveOrigin();
+			}
+		}, "Origin server").start();
+
+		// A plain socket factory stands in for the SSL one, so the CONNECT tunnel carries plain
+		// HTTP.
+		final TCPProxySocketFactoryImplementation socketFactory = new TCPProxySocketFactoryImplementation();
+		final TCPProxySSLSocketFactory sslSocketFactory = new TCPProxySSLSocketFactory() {
+			@Override
+			public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+				return socketFactory.createServerSocket(localEndPoint, timeout);
+			}
+
+			@Override
+			public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+				return socketFactory.createClientSocket(remoteEndPoint);
+			}
+
+			@Override
+			public Socket createClientSocket(Socket existingSocket, EndPoint remoteEndPoint) {
+				return existingSocket;
+			}
+		};
+
+		m_engine = new HTTPProxyTCPProxyEngineEx(sslSocketFactory, m_requestFilter, m_responseFilter,
+						LoggerFactory.getLogger(HTTPProxyTCPProxyEngineExTest.class), new EndPoint("localhost", 0),
+						null, null, 1);
+		m_proxy = m_engine.getListenEndPoint();
+		new Thread(m_engine, "Proxy engine").start();
+	}
+
+	@After
+	public void after() throws Exception {
+		m_engine.stop();
+		m_origin.close();
+	}
+
+	/**
+	 * Test a plain HTTP request goes through the event loop and its filters.
+	 */
+	@Test
+	public void testPlainRequest() throws Exception {
+		final Socket socket = connectToProxy();
+		final OutputStream out = socket.getOutputStream();
+		out.write(("GET http://localhost:" + m_origin.getLocalPort() + "/plain HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes("US-ASCII"));
+
+		final String response = readAll(socket.getInputStream());
+		socket.close();
+
+		assertThat(response).startsWith("HTTP/1.1 200 OK").endsWith("hello");
+		assertThat(m_originRequests).hasSize(1);
+		assertThat(m_originRequests.get(0)).contains("/plain HTTP/1.1");
+		assertThat(m_requestFilter.getText()).contains("/plain HTTP/1.1");
+		assertThat(m_responseFilter.getText()).endsWith("hello");
+		assertThat(m_requestFilter.getOpened()).isEqualTo(1);
+	}
+
+	/**
+	 * Test a CONNECT request is handed from the event loop to the blocking tunnel path.
+	 */
+	@Test
+	public void testConnectRequest() throws Exception {
+		final Socket socket = connectToProxy();
+		final OutputStream out = socket.getOutputStream();
+		out.write(("CONNECT localhost:" + m_origin.getLocalPort() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes("US-ASCII"));
+
+		final InputStream in = socket.getInputStream();
+		assertThat(readHeader(in)).contains(" 200 ");
+
+		out.write("GET /tunnel HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+
+		final String response = readAll(in);
+		socket.close();
+
+		assertThat(response).startsWith("HTTP/1.1 200 OK").endsWith("hello");
+		assertThat(m_originRequests).hasSize(1);
+		assertThat(m_originRequests.get(0)).startsWith("GET /tunnel HTTP/1.1");
+		assertThat(m_requestFilter.getText()).contains("GET /tunnel HTTP/1.1");
+	}
+
+	private Socket connectToProxy() throws IOException {
+		final Socket socket = new Socket(m_proxy.getHost(), m_proxy.getPort());
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+
+	private void serveOrigin() {
+		while (!m_origin.isClosed()) {
+			try {
+				final Socket socket = m_origin.accept();
+
+				try {
+					socket.setSoTimeout(TIMEOUT);
+					m_originRequests.add(readHeader(socket.getInputStream()));
+					socket.getOutputStream().write(
+									"HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello"
+													.getBytes("US-ASCII"));
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// Closed by the test, or a broken connection.
+				continue;
+			}
+		}
+	}
+
+	private static String readHeader(InputStream in) throws IOException {
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+		while (!header.toString("US-ASCII").endsWith("\r\n\r\n")) {
+			final int b = in.read();
+
+			if (b == -1) {
+				break;
+			}
+
+			header.write(b);
+		}
+
+		return header.toString("US-ASCII");
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+
+		while ((n = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+
+		return bytes.toString("US-ASCII");
+	}
+
+	/**
+	 * Filter which keeps what passes through it.
+	 */
+	private static final class RecordingFilter implements TCPProxyFilter {
+		private final StringBuffer m_text = new StringBuffer();
+		private int m_opened;
+
+		@Override
+		public byte[] handle(ConnectionDetails connectionDetails, byte[] buffer, int bytesRead) {
+			try {
+				m_text.append(new String(buffer, 0, bytesRead, "US-ASCII"));
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+
+			return null;
+		}
+
+		@Override
+		public synchronized void connectionOpened(ConnectionDetails connectionDetails) {
+			++m_opened;
+		}
+
+		@Override
+		public void connectionClosed(ConnectionDetails connectionDetails) {
+		}
+
+		public String getText() {
+			return m_text.toString();
+		}
+
+		public synchronized int getOpened() {
+			return m_opened;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+
+public class HTTPRequestLineScannerTest {
+
+	/**
+	 * Test absolute http request lines.
+	 */
+	@Test
+	public void testHTTPRequest() throws UnsupportedEncodingException {
+		HTTPRequestLineScanner scanner = scan("GET http://www.test.com:8080/hello HTTP/1.1\r\nHost: a\r\n\r\nbody");
+		assertThat(scanner.getType()).isEqualTo(HTTPRequestLineScanner.Type.HTTP);
+		assertThat(scanner.getEndPoint()).isEqualTo(new EndPoint("www.test.com", 8080));
+		assertThat(scanner.isHeaderComplete()).isTrue();
+		assertThat(scanner.getScannedLength()).isEqualTo(56);
+
+		scanner = scan("POST \thttp://www.test.com/ HTTP/1.1\r\n");
+		assertThat(scanner.getType()).isEqualTo(HTTPRequestLineScanner.Type.HTTP);
+		assertThat(scanner.isSameEndPoint(new EndPoint("www.test.com", 80))).isTrue();
+		assertThat(scanner.isSameEndPoint(new EndPoint("www.test.co", 80))).isFalse();
+		assertThat(scanner.isHeaderComplete()).isFalse();
+
+		assertThat(scan("GET http://www.test.com:/ HTTP/1.1").getPort()).isEqualTo(80);
+	}
+
+	/**
+	 * Test CONNECT request lines.
+	 */
+	@Test
+	public void testConnectRequest() throws UnsupportedEncodingException {
+		HTTPRequestLineScanner scanner = scan("CONNECT www.test.com:443 HTTP/1.1\r\n\r\n");
+		assertThat(scanner.getType()).isEqualTo(HTTPRequestLineScanner.Type.CONNECT);
+		assertThat(scanner.getEndPoint()).isEqualTo(new EndPoint("www.test.com", 443));
+		assertThat(scanner.isHeaderComplete()).isTrue();
+
+		assertThat(scan("CONNECT www.test.com: HTTP/1.1").getType()).isEqualTo(HTTPRequestLineScanner.Type.NONE);
+	}
+
+	/**
+	 * Test requests which are not proxy requests.
+	 */
+	@Test
+	public void testNotProxyRequest() throws UnsupportedEncodingException {
+		assertThat(scan("GET /hello HTTP/1.1\r\n\r\n").getType()).isEqualTo(HTTPRequestLineScanner.Type.NONE);
+		assertThat(scan("get http://www.test.com/ HTTP/1.1").getType()).isEqualTo(
+						HTTPRequestLineScanner.Type.NONE);
+		assertThat(scan("GET http://www.test.com:80a/ HTTP/1.1").getType()).isEqualTo(
+						HTTPRequestLineScanner.Type.NONE);
+		assertThat(scan("GET http:///hello HTTP/1.1").getType()).isEqualTo(HTTPRequestLineScanner.Type.NONE);
+		assertThat(scan("<html>").getType()).isEqualTo(HTTPRequestLineScanner.Type.NONE);
+	}
+
+	/**
+	 * Test a request line which is fragmented over several reads.
+	 */
+	@Test
+	public void testFragmentedRequest() throws UnsupportedEncodingException {
+		HTTPRequestLineScanner scanner = new HTTPRequestLineScanner();
+		byte[] request = "GET http://www.test.com:8080/ HTTP/1.1\r\n\r\n".getBytes("US-ASCII");
+
+		assertThat(scanner.scan(request, 0, 3)).isEqualTo(HTTPRequestLineScanner.Type.UNKNOWN);
+		assertThat(scanner.isInsideAuthority()).isFalse();
+		assertThat(scanner.scan(request, 3, 12)).isEqualTo(HTTPRequestLineScanner.Type.UNKNOWN);
+		assertThat(scanner.isInsideAuthority()).isTrue();
+		assertThat(scanner.scan(request, 15, 11)).isEqualTo(HTTPRequestLineScanner.Type.UNKNOWN);
+		assertThat(scanner.scan(request, 26, request.length - 26)).isEqualTo(HTTPRequestLineScanner.Type.HTTP);
+		assertThat(scanner.getEndPoint()).isEqualTo(new EndPoint("www.test.com", 8080));
+		assertThat(scanner.isHeaderComplete()).isTrue();
+
+		scanner.reset();
+		assertThat(scanner.getType()).isEqualTo(HTTPRequestLineScanner.Type.UNKNOWN);
+		assertThat(scanner.isHeaderComplete()).isFalse();
+	}
+
+	private HTTPRequestLineScanner scan(String request) throws UnsupportedEncodingException {
+		HTTPRequestLineScanner scanner = new HTTPRequestLineScanner();
+		byte[] bytes = request.getBytes("US-ASCII");
+		scanner.scan(bytes, 0, bytes.length);
+		return scanner;
+	}
+}
@@ -0,0 +1,128 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostCertificateInterceptionSSLSocketFactoryTest {
+	private File m_directory;
+
+	@Before
+	public void before() {
+		m_directory = new File(System.getProperty("java.io.tmpdir"), "host-certificate-test-"
+						+ System.nanoTime());
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(m_directory);
+	}
+
+	/**
+	 * Test the CA is kept between instances, and old host certificates are evicted from disk.
+	 */
+	@Test
+	public void testPersistence() throws Exception {
+		HostCertificateInterceptionSSLSocketFactory factory = new HostCertificateInterceptionSSLSocketFactory(
+						m_directory, 1, 2);
+		handshake(factory, "a.test.com");
+		handshake(factory, "b.test.com");
+		handshake(factory, "c.test.com");
+		assertThat(new File(m_directory, "hosts").list()).hasSize(2);
+		assertThat(new File(m_directory, "hosts/c.test.com.cer").exists()).isTrue();
+
+		HostCertificateInterceptionSSLSocketFactory reloaded = new HostCertificateInterceptionSSLSocketFactory(
+						m_directory, 1, 2);
+		assertThat(reloaded.getCACertificate()).isEqualTo(factory.getCACertificate());
+		handshake(reloaded, "c.test.com");
+		assertThat(reloaded.toString()).contains("disk hits=1").contains("generated=0");
+	}
+
+	/**
+	 * Test the CA key store is protected by a password of its own, and is replaced when it can not
+	 * be opened with it.
+	 */
+	@Test
+	public void testPassword() throws Exception {
+		HostCertificateInterceptionSSLSocketFactory factory = new HostCertificateInterceptionSSLSocketFactory(
+						m_directory, 1, 2);
+		File password = new File(m_directory, "ca.password");
+		assertThat(FileUtils.readFileToString(password)).isNotEmpty().isNotEqualTo("passphrase");
+
+		FileUtils.writeStringToFile(password, "another");
+		HostCertificateInterceptionSSLSocketFactory replaced = new HostCertificateInterceptionSSLSocketFactory(
+						m_directory, 1, 2);
+		assertThat(replaced.getCACertificate()).isNotEqualTo(factory.getCACertificate());
+		handshake(replaced, "a.test.com");
+	}
+
+	/**
+	 * Test the browser sees a certificate for the requested host, signed by the CA.
+	 */
+	@Test
+	public void testHostCertificate() throws Exception {
+		HostCertificateInterceptionSSLSocketFactory factory = new HostCertificateInterceptionSSLSocketFactory(
+						m_directory, 10, 10);
+		X509Certificate certificate = handshake(factory, "www.test.com");
+		List<?> name = certificate.getSubjectAlternativeNames().iterator().next();
+		assertThat(name.get(1)).isEqualTo("www.test.com");
+		certificate.verify(factory.getCACertificate().getPublicKey());
+
+		certificate = handshake(factory, "127.0.0.1");
+		name = certificate.getSubjectAlternativeNames().iterator().next();
+		assertThat(name.get(1)).isEqualTo("127.0.0.1");
+	}
+
+	private X509Certificate handshake(final HostCertificateInterceptionSSLSocketFactory factory, final String host)
+					throws Exception {
+		KeyStore trustStore = KeyStore.getInstance("jks");
+		trustStore.load(null, null);
+		trustStore.setCertificateEntry("ca", factory.getCACertificate());
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory
+						.getDefaultAlgorithm());
+		trustManagerFactory.init(trustStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagerFactory.getTrustManagers(), null);
+
+		final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = factory.createInterceptionSocket(serverSocket.accept(), new EndPoint(host, 443));
+					socket.getOutputStream().write(1);
+					socket.close();
+				} catch (Exception e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		server.start();
+
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(serverSocket.getInetAddress(),
+						serverSocket.getLocalPort());
+		try {
+			assertThat(socket.getInputStream().read()).isEqualTo(1);
+			return (X509Certificate) socket.getSession().getPeerCertificates()[0];
+		} finally {
+			socket.close();
+			serverSocket.close();
+			server.join();
+		}
+	}
+}